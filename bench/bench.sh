@@ -0,0 +1,19 @@
+#!/bin/sh
+# compile src and bench into a temporary directory and run the benchmarks;
+# all arguments are passed on to XferBench (-json <file>, -filter <regex>, -quick)
+# or, with -loopback first, to LoopbackBench
+set -o errexit
+set -o nounset
+
+here=`dirname $0`/..
+classes=`mktemp -d`
+trap "rm -rf ${classes}" EXIT
+
+main=xfer.XferBench
+if [ "$#" != 0 ] && [ "$1" = "-loopback" ] ; then
+    main=xfer.LoopbackBench
+    shift
+fi
+
+javac -encoding UTF-8 -d ${classes} -g ${here}/src/xfer/*.java ${here}/bench/xfer/*.java
+java -Xms512m -Xmx512m -cp ${classes} ${main} "$@"
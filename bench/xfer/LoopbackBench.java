@@ -0,0 +1,466 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+
+/**
+* End-to-end benchmark: a TransferServer in this process listens on an ephemeral
+* loopback port and a TransferClient sends generated datasets to it.
+*
+* For each dataset and configuration (classic or event driven receiver,
+* with or without compression, encrypted with a pre-shared key, into an
+* archive) the transfer is repeated a few times and
+* the median MB/s and files/s are reported, together with the CPU time of
+* the whole process and the time spent in garbage collection.
+*
+* With <tt>-rtt</tt> and/or <tt>-bw</tt> the connection goes through an
+* in-process shim that delays every chunk by half the round trip time in
+* each direction and limits the bandwidth, so handshake overhead can be
+* measured as it would show on a WAN link.
+*
+* <pre>
+*   bench.sh -loopback [-datasets small,large,sparse,mixed] [-configs plain,z,nio,nioz,aes,aesz,tar]
+*            [-scale 0.01] [-runs 3] [-rtt ms] [-bw 10M] [-B blocksize] [-json file] [-dir tmpdir]
+* </pre>
+* At <tt>-scale 1</tt> the datasets are 1M files of 1 KB, 10k files of 1 MB,
+* one sparse file of 20 GB and 1000 files of 1 MB alternately compressible
+* and incompressible; the default scale is 1/100 of that.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public class LoopbackBench {
+
+    private static final long KB = 1024L;
+    private static final long MB = 1024L * 1024;
+    private static final long GB = 1024L * 1024 * 1024;
+    /** pre-shared key of the "aes" configurations */
+    private static final byte[] KEY = "loopback benchmark key".getBytes();
+
+    private double scale = 0.01;
+    private int runs = 3;
+    private long rttMillis = 0L;
+    private long bandwidth = 0L;
+    private int blocksize = Xfer2.BLOCKSIZE;
+    private File workDir = null;
+    private final List<String> json = new ArrayList<String>();
+
+    /** Generated source tree. */
+    static final class Dataset {
+        final String name;
+        final File root;
+        final long files;
+        final long bytes;
+
+        Dataset(String name, File root, long files, long bytes) {
+            this.name = name;
+            this.root = root;
+            this.files = files;
+            this.bytes = bytes;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // datasets
+
+    Dataset createDataset(String name) throws IOException {
+        File root = new File(workDir, "src-" + name);
+        if ("small".equals(name)) {
+            long n = scaled(1000000);
+            writeFiles(root, n, KB, false);
+            return new Dataset(name, root, n, n * KB);
+        } else if ("large".equals(name)) {
+            long n = scaled(10000);
+            writeFiles(root, n, MB, false);
+            return new Dataset(name, root, n, n * MB);
+        } else if ("sparse".equals(name)) {
+            long size = Math.max(MB, (long) (20 * GB * scale));
+            mkdirs(root);
+            // length without data: the file system stores a hole
+            RandomAccessFile raf = new RandomAccessFile(new File(root, "sparse.img"), "rw");
+            try {
+                raf.setLength(size);
+            } finally {
+                raf.close();
+            }
+            return new Dataset(name, root, 1, size);
+        } else if ("mixed".equals(name)) {
+            long n = scaled(1000);
+            writeFiles(root, n, MB, true);
+            return new Dataset(name, root, n, n * MB);
+        }
+        throw new IllegalArgumentException("Unknown dataset " + name);
+    }
+
+    private long scaled(long n) {
+        return Math.max(1, (long) (n * scale));
+    }
+
+    /** <tt>n</tt> files of <tt>size</tt> bytes, 1000 per directory; random data or alternately text. */
+    private static void writeFiles(File root, long n, long size, boolean mixed) throws IOException {
+        Random rnd = new Random(4711);
+        byte[] random = new byte[(int) size];
+        rnd.nextBytes(random);
+        byte[] text = new byte[(int) size];
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("line ").append(sb.length()).append(" of some fairly compressible text\n");
+        }
+        System.arraycopy(sb.toString().getBytes("US-ASCII"), 0, text, 0, text.length);
+        for (long i = 0; i < n; i++) {
+            File dir = new File(root, "d" + (i / 1000));
+            if (i % 1000 == 0) {
+                mkdirs(dir);
+            }
+            byte[] data = mixed && i % 2 == 0 ? text : random;
+            // vary the first bytes so files don't all hash alike
+            data[0] = (byte) i;
+            data[1] = (byte) (i >> 8);
+            data[2] = (byte) (i >> 16);
+            FileOutputStream out = new FileOutputStream(new File(dir, "f" + i));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static long countFiles(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            return f.isFile() ? 1 : 0;
+        }
+        long n = 0;
+        for (File c : children) {
+            n += countFiles(c);
+        }
+        return n;
+    }
+
+    // ------------------------------------------------------------------
+    // transfers
+
+    /** Transfer <tt>data</tt> <tt>runs</tt> times with configuration <tt>config</tt> and report. */
+    void run(Dataset data, String config) throws Exception {
+        TransferConfig settings = new TransferConfig()
+            .setBlocksize(blocksize)
+            .setCompress(config.endsWith("z"))
+            .setIoThreads(config.startsWith("nio") ? 2 : 0)
+            .setPresharedKey(config.startsWith("aes") ? KEY : null)
+            .setArchive(config.startsWith("tar"))
+            .setLogLevel(Level.WARNING);
+        double[] mbs = new double[runs];
+        double[] fps = new double[runs];
+        long cpuNanos = 0L;
+        long gcMillis = 0L;
+        long gcCount = 0L;
+        for (int r = 0; r < runs; r++) {
+            File target = new File(workDir, "dst");
+            deleteTree(target);
+            TransferServer server = new TransferServer(0, target, settings);
+            server.start();
+            int port = server.getPort();
+            Shim shim = null;
+            if (rttMillis > 0 || bandwidth > 0) {
+                shim = new Shim(port, rttMillis, bandwidth);
+                shim.start();
+                port = shim.getLocalPort();
+            }
+
+            long cpuStart = processCpuNanos();
+            long[] gcStart = gc();
+            long start = System.nanoTime();
+            TransferClient client = new TransferClient(settings);
+            client.send("127.0.0.1", port, Arrays.asList(data.root)).get();
+            client.close();
+            long nanos = System.nanoTime() - start;
+            // the receiver still sets the modification date of the last file
+            awaitIdle();
+            long[] gcEnd = gc();
+            cpuNanos += processCpuNanos() - cpuStart;
+            gcCount += gcEnd[0] - gcStart[0];
+            gcMillis += gcEnd[1] - gcStart[1];
+
+            if (shim != null) shim.shutdown();
+            server.stop();
+            long received = countFiles(target);
+            // the "tar" receiver writes one archive holding them all
+            if (received != (config.startsWith("tar") ? 1 : data.files)) {
+                throw new IOException(data.name + "/" + config + ": received " + received + " of " + data.files + " files");
+            }
+            mbs[r] = data.bytes / (double) MB / (nanos / 1e9);
+            fps[r] = data.files / (nanos / 1e9);
+        }
+        deleteTree(new File(workDir, "dst"));
+        double medianMbs = median(mbs);
+        double medianFps = median(fps);
+        String label = data.name + "/" + config + (rttMillis > 0 ? "/rtt=" + rttMillis + "ms" : "")
+                + (bandwidth > 0 ? "/bw=" + bandwidth : "");
+        System.out.println(String.format(Locale.ROOT, "%-36s %10.1f MB/s %12.1f files/s   cpu %8.0f ms   gc %6d ms (%d)",
+                label, medianMbs, medianFps, cpuNanos / 1e6 / runs, gcMillis / runs, gcCount / runs));
+        json.add(String.format(Locale.ROOT,
+                "{\"dataset\":\"%s\",\"config\":\"%s\",\"rttMillis\":%d,\"bandwidth\":%d,\"blocksize\":%d,"
+                + "\"files\":%d,\"bytes\":%d,\"runs\":%d,\"mbPerSecond\":%.3f,\"filesPerSecond\":%.3f,"
+                + "\"rawMbPerSecond\":%s,\"cpuMillis\":%.1f,\"gcMillis\":%d,\"gcCount\":%d}",
+                data.name, config, rttMillis, bandwidth, blocksize, data.files, data.bytes, runs,
+                medianMbs, medianFps, Arrays.toString(mbs), cpuNanos / 1e6 / runs, gcMillis / runs, gcCount / runs));
+    }
+
+    /** Wait until both sides have closed their sessions. */
+    private static void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (Metrics.activeSessions.sum() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /** CPU time of all threads of this process, sender and receiver alike. */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0L;
+    }
+
+    /** Number of collections and milliseconds spent collecting so far. */
+    private static long[] gc() {
+        long[] result = new long[2];
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(0, bean.getCollectionCount());
+            result[1] += Math.max(0, bean.getCollectionTime());
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------
+    // WAN emulation
+
+    /**
+    * TCP relay on loopback that emulates a WAN link: every chunk is
+    * forwarded half a round trip time after it arrived, and with a
+    * bandwidth given both directions are throttled to it.
+    */
+    static final class Shim extends Thread {
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final long delayNanos;
+        private final BandwidthShaper shaper;
+        private final List<Socket> sockets = new ArrayList<Socket>();
+
+        Shim(int targetPort, long rttMillis, long bandwidth) throws IOException {
+            super("Shim");
+            setDaemon(true);
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.targetPort = targetPort;
+            this.delayNanos = rttMillis * 1000000L / 2;
+            this.shaper = bandwidth > 0 ? new BandwidthShaper(0, bandwidth) : null;
+        }
+
+        int getLocalPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    synchronized (sockets) {
+                        sockets.add(client);
+                        sockets.add(server);
+                    }
+                    pump(client, server);
+                    pump(server, client);
+                } catch (IOException ioe) {
+                    return;
+                }
+            }
+        }
+
+        void shutdown() {
+            try { serverSocket.close(); } catch (IOException ioe1){}
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    try { s.close(); } catch (IOException ioe1){}
+                }
+            }
+        }
+
+        /** Forward from <tt>from</tt> to <tt>to</tt> through a delay line. */
+        private void pump(final Socket from, final Socket to) throws IOException {
+            final InputStream in = from.getInputStream();
+            OutputStream os = to.getOutputStream();
+            if (shaper != null) {
+                os = new ThrottledOutputStream(os, shaper.register(1));
+            }
+            final OutputStream out = os;
+            final BlockingQueue<Object[]> line = new LinkedBlockingQueue<Object[]>();
+            Thread reader = new Thread("Shim-in") {
+                public void run() {
+                    byte[] buf = new byte[64 * 1024];
+                    try {
+                        int len;
+                        while ((len = in.read(buf)) != -1) {
+                            line.put(new Object[]{System.nanoTime() + delayNanos, Arrays.copyOf(buf, len)});
+                        }
+                    } catch (Exception e) {
+                        // connection closed
+                    }
+                    line.add(new Object[]{System.nanoTime() + delayNanos, null});
+                }
+            };
+            Thread writer = new Thread("Shim-out") {
+                public void run() {
+                    try {
+                        while (true) {
+                            Object[] chunk = line.take();
+                            long wait = (Long) chunk[0] - System.nanoTime();
+                            if (wait > 0) {
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                            if (chunk[1] == null) {
+                                to.shutdownOutput();
+                                return;
+                            }
+                            out.write((byte[]) chunk[1]);
+                            out.flush();
+                        }
+                    } catch (Exception e) {
+                        // connection closed
+                    }
+                }
+            };
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+    }
+
+    // ------------------------------------------------------------------
+
+    private void writeJson(File file) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            out.println("[");
+            for (int i = 0; i < json.size(); i++) {
+                out.println("  " + json.get(i) + (i + 1 < json.size() ? "," : ""));
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoopbackBench bench = new LoopbackBench();
+        String[] datasets = {"small", "large", "sparse", "mixed"};
+        String[] configs = {"plain", "z", "nio", "nioz", "aes", "aesz", "tar"};
+        File jsonFile = null;
+        for (int a = 0; a < args.length; a++) {
+            String opt = args[a];
+            String parm = a + 1 < args.length ? args[a + 1] : null;
+            if (parm == null) {
+                usage();
+            } else if ("-datasets".equals(opt)) {
+                datasets = parm.split(",");
+            } else if ("-configs".equals(opt)) {
+                configs = parm.split(",");
+            } else if ("-scale".equals(opt)) {
+                bench.scale = Double.parseDouble(parm);
+            } else if ("-runs".equals(opt)) {
+                bench.runs = Math.max(1, Integer.parseInt(parm));
+            } else if ("-rtt".equals(opt)) {
+                bench.rttMillis = Long.parseLong(parm);
+            } else if ("-bw".equals(opt)) {
+                bench.bandwidth = BandwidthShaper.parseRate(parm);
+            } else if ("-B".equals(opt)) {
+                bench.blocksize = Integer.parseInt(parm);
+            } else if ("-json".equals(opt)) {
+                jsonFile = new File(parm);
+            } else if ("-dir".equals(opt)) {
+                bench.workDir = new File(parm);
+            } else {
+                usage();
+            }
+            a++;
+        }
+        if (bench.workDir == null) {
+            bench.workDir = File.createTempFile("xferloop", "");
+            bench.workDir.delete();
+        }
+        mkdirs(bench.workDir);
+        try {
+            for (String name : datasets) {
+                System.out.println("Creating dataset " + name + " (scale " + bench.scale + ")");
+                Dataset data = bench.createDataset(name);
+                try {
+                    for (String config : configs) {
+                        bench.run(data, config);
+                    }
+                } finally {
+                    deleteTree(data.root);
+                }
+            }
+        } finally {
+            deleteTree(bench.workDir);
+        }
+        if (jsonFile != null) {
+            bench.writeJson(jsonFile);
+            System.out.println("Results written to " + jsonFile.getAbsolutePath());
+        }
+        // the receivers' worker pools are daemons, but be sure
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoopbackBench [-datasets small,large,sparse,mixed] [-configs plain,z,nio,nioz,aes,aesz,tar]");
+        System.err.println("    [-scale <fraction of full size>] [-runs <n>] [-rtt <ms>] [-bw <bytes/s>]");
+        System.err.println("    [-B <blocksize>] [-json <file>] [-dir <work dir>]");
+        System.exit(1);
+    }
+}
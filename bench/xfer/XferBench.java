@@ -0,0 +1,448 @@
+package xfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+* Micro benchmarks for the hot paths: block compression and decompression,
+* tree scanning, digests and encryption.
+*
+* Self contained (like the rest of xfer there are no dependencies), but
+* run the way JMH runs benchmarks: warmup iterations, then measured
+* iterations, score = mean throughput with a 99.9% confidence interval.
+* Results are printed as a table and optionally written in JMH's JSON
+* result format, so runs of different builds can be compared with the
+* usual JMH tooling.
+*
+* <pre>
+*   bench.sh [-json result.json] [-filter regex] [-quick]
+* </pre>
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public class XferBench {
+
+    private static final int MIB = 1024 * 1024;
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000L;
+    private String filter = null;
+    private final List<Result> results = new ArrayList<Result>();
+
+    /** One benchmark with its parameters. */
+    abstract static class Bench {
+        final String name;
+        final Map<String, String> params = new LinkedHashMap<String, String>();
+        /** unit of the score, e.g. "MB/s" or "ops/s" */
+        final String unit;
+
+        Bench(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        Bench param(String key, Object value) {
+            params.put(key, String.valueOf(value));
+            return this;
+        }
+
+        void setup() throws Exception {
+        }
+
+        /** Run one operation; returns the amount of work in units of the score (bytes for MB/s, 1 for ops/s). */
+        abstract long op() throws Exception;
+
+        void teardown() throws Exception {
+        }
+
+        String label() {
+            return name + params;
+        }
+    }
+
+    /** Scores of one benchmark. */
+    static final class Result {
+        final Bench bench;
+        final double[] scores;
+        final double score;
+        final double error;
+
+        Result(Bench bench, double[] scores) {
+            this.bench = bench;
+            this.scores = scores;
+            double sum = 0;
+            for (double s : scores) sum += s;
+            score = sum / scores.length;
+            double var = 0;
+            for (double s : scores) var += (s - score) * (s - score);
+            double stddev = scores.length > 1 ? Math.sqrt(var / (scores.length - 1)) : 0.0;
+            // 99.9% two-sided, normal approximation like JMH for n >= 30; close enough here
+            error = scores.length > 1 ? 3.29 * stddev / Math.sqrt(scores.length) : Double.NaN;
+        }
+    }
+
+    /** Run <tt>bench</tt> if it matches the filter and record its result. */
+    void run(Bench bench) throws Exception {
+        if (filter != null && !bench.label().matches(".*(" + filter + ").*")) {
+            return;
+        }
+        bench.setup();
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(bench);
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iteration(bench);
+            }
+            Result result = new Result(bench, scores);
+            results.add(result);
+            System.out.println(String.format(Locale.ROOT, "%-70s %12.2f +- %8.2f %s",
+                    bench.label(), result.score, result.error, bench.unit));
+        } finally {
+            bench.teardown();
+        }
+    }
+
+    private double iteration(Bench bench) throws Exception {
+        long work = 0;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1000000L;
+        long now;
+        do {
+            work += bench.op();
+            now = System.nanoTime();
+        } while (now < end);
+        double seconds = (now - start) / 1e9;
+        return "MB/s".equals(bench.unit) ? work / seconds / MIB : work / seconds;
+    }
+
+    // ------------------------------------------------------------------
+    // data
+
+    /** Test data of the given compressibility: "zeros", "text" or "random". */
+    static byte[] data(String kind, int size) {
+        byte[] b = new byte[size];
+        Random rnd = new Random(4711);
+        if ("random".equals(kind)) {
+            rnd.nextBytes(b);
+        } else if ("text".equals(kind)) {
+            String[] words = {"the ", "quick ", "brown ", "fox ", "jumps ", "over ", "lazy ", "dog ",
+                "xfer ", "block ", "stream ", "file ", "\n", "1234 ", "receiver ", "sender "};
+            int i = 0;
+            while (i < size) {
+                byte[] w = words[rnd.nextInt(words.length)].getBytes();
+                int n = Math.min(w.length, size - i);
+                System.arraycopy(w, 0, b, i, n);
+                i += n;
+            }
+        }
+        return b;
+    }
+
+    /** Discards everything, but counts. */
+    static final class NullOutputStream extends OutputStream {
+        long count = 0;
+        public void write(int b) { count++; }
+        public void write(byte[] b, int off, int len) { count += len; }
+    }
+
+    // ------------------------------------------------------------------
+    // benchmarks
+
+    void compressionBenchmarks(int[] blockSizes, int[] levels, String[] kinds) throws Exception {
+        final int dataSize = 8 * MIB;
+        for (final String kind : kinds) {
+            final byte[] input = data(kind, dataSize);
+            for (final int blocksize : blockSizes) {
+                for (final int level : levels) {
+                    run(new Bench("compress", "MB/s") {
+                        long op() throws IOException {
+                            NullOutputStream sink = new NullOutputStream();
+                            CompressedBlockOutputStream out = new CompressedBlockOutputStream(sink,
+                                    blocksize, level, Deflater.DEFAULT_STRATEGY);
+                            try {
+                                // written in pieces of the copy buffer size like Sender does
+                                for (int off = 0; off < input.length; off += blocksize) {
+                                    out.write(input, off, Math.min(blocksize, input.length - off));
+                                }
+                                out.flush();
+                            } finally {
+                                // the Deflater's native memory and the pooled buffers
+                                out.close();
+                            }
+                            return input.length;
+                        }
+                    }.param("data", kind).param("B", blocksize).param("Z", level));
+
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    CompressedBlockOutputStream out = new CompressedBlockOutputStream(compressed,
+                            blocksize, level, Deflater.DEFAULT_STRATEGY);
+                    try {
+                        out.write(input);
+                    } finally {
+                        out.close();
+                    }
+                    final byte[] stream = compressed.toByteArray();
+                    run(new Bench("decompress", "MB/s") {
+                        byte[] buf = new byte[blocksize];
+                        long op() throws IOException {
+                            InputStream in = new CompressedBlockInputStream(new ByteArrayInputStream(stream));
+                            long total = 0;
+                            try {
+                                int n;
+                                while ((n = in.read(buf)) != -1) {
+                                    total += n;
+                                }
+                            } finally {
+                                in.close();
+                            }
+                            if (total != input.length) {
+                                throw new IOException("Round trip failed: " + total + " != " + input.length);
+                            }
+                            return total;
+                        }
+                    }.param("data", kind).param("B", blocksize).param("Z", level));
+                }
+            }
+        }
+    }
+
+    void scanBenchmarks(File tmp) throws Exception {
+        // name, directories per level, depth, files per directory
+        Object[][] shapes = {
+            {"flat", 1, 1, 20000},
+            {"deep", 2, 10, 10},
+            {"bushy", 20, 3, 2},
+        };
+        for (Object[] shape : shapes) {
+            final File root = new File(tmp, (String) shape[0]);
+            final int files = createTree(root, (Integer) shape[1], (Integer) shape[2], (Integer) shape[3]);
+            run(new Bench("scan.getFiles", "ops/s") {
+                long op() {
+                    DirTree.getFiles(root);
+                    return 1;
+                }
+            }.param("tree", shape[0]).param("files", files));
+            run(new Bench("scan.getEntries", "ops/s") {
+                long op() {
+                    DirTree.getEntries(root);
+                    return 1;
+                }
+            }.param("tree", shape[0]).param("files", files));
+        }
+    }
+
+    /** Creates a tree of empty files; returns the number of files and directories. */
+    private static int createTree(File dir, int fanout, int depth, int filesPerDir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        int count = 0;
+        for (int f = 0; f < filesPerDir; f++) {
+            new FileOutputStream(new File(dir, "file" + f + ".dat")).close();
+            count++;
+        }
+        if (depth > 1) {
+            for (int d = 0; d < fanout; d++) {
+                count += 1 + createTree(new File(dir, "dir" + d), fanout, depth - 1, filesPerDir);
+            }
+        }
+        return count;
+    }
+
+    void digestBenchmarks(int[] blockSizes) throws Exception {
+        final byte[] input = data("random", 8 * MIB);
+        for (final String algorithm : new String[]{"MD5", "SHA-256", "tree"}) {
+            for (final int blocksize : blockSizes) {
+                // "tree": Merkle digest with leaves hashed on all cores
+                final MessageDigest digest = algorithm.equals("tree") ? new TreeDigest()
+                        : MessageDigest.getInstance(algorithm);
+                run(new Bench("digest", "MB/s") {
+                    long op() {
+                        // same update pattern as the send loop
+                        digest.reset();
+                        for (int off = 0; off < input.length; off += blocksize) {
+                            digest.update(input, off, Math.min(blocksize, input.length - off));
+                        }
+                        digest.digest();
+                        return input.length;
+                    }
+                }.param("algorithm", algorithm).param("B", blocksize));
+            }
+        }
+    }
+
+    void encryptionBenchmarks(int[] blockSizes) throws Exception {
+        final byte[] input = data("random", 8 * MIB);
+        final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+        for (final int blocksize : blockSizes) {
+            run(new Bench("encrypt", "MB/s") {
+                final Random random = new Random(4711);
+                final byte[] sessionKey = new byte[32];
+                long op() throws IOException {
+                    // a key is never used twice with the same nonce, i.e. per session
+                    random.nextBytes(sessionKey);
+                    OutputStream out = new EncryptedBlockOutputStream(new NullOutputStream(),
+                            new SecretKeySpec(sessionKey, "AES"));
+                    // written in pieces of the copy buffer size like Sender does
+                    for (int off = 0; off < input.length; off += blocksize) {
+                        out.write(input, off, Math.min(blocksize, input.length - off));
+                    }
+                    out.flush();
+                    return input.length;
+                }
+            }.param("B", blocksize));
+
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            OutputStream out = new EncryptedBlockOutputStream(sealed, key);
+            out.write(input);
+            out.flush();
+            final byte[] stream = sealed.toByteArray();
+            run(new Bench("decrypt", "MB/s") {
+                byte[] buf = new byte[blocksize];
+                long op() throws IOException {
+                    InputStream in = new EncryptedBlockInputStream(new ByteArrayInputStream(stream), key);
+                    long total = 0;
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        total += n;
+                    }
+                    in.close();
+                    if (total != input.length) {
+                        throw new IOException("Round trip failed: " + total + " != " + input.length);
+                    }
+                    return total;
+                }
+            }.param("B", blocksize));
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // output
+
+    /** Results in the JSON format of JMH's "-rf json". */
+    void writeJson(File file) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.println("    {");
+                out.println("        \"benchmark\" : \"XferBench." + result.bench.name + "\",");
+                out.println("        \"mode\" : \"thrpt\",");
+                out.println("        \"threads\" : 1,");
+                out.println("        \"forks\" : 1,");
+                out.println("        \"jvm\" : \"" + json(System.getProperty("java.home")) + "\",");
+                out.println("        \"jdkVersion\" : \"" + json(System.getProperty("java.version")) + "\",");
+                out.println("        \"vmName\" : \"" + json(System.getProperty("java.vm.name")) + "\",");
+                out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+                out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"measurementIterations\" : " + iterations + ",");
+                out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"params\" : {");
+                int p = 0;
+                for (Map.Entry<String, String> e : result.bench.params.entrySet()) {
+                    out.print("            \"" + json(e.getKey()) + "\" : \"" + json(e.getValue()) + "\"");
+                    out.println(++p < result.bench.params.size() ? "," : "");
+                }
+                out.println("        },");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + number(result.score) + ",");
+                out.println("            \"scoreError\" : " + number(result.error) + ",");
+                out.println("            \"scoreConfidence\" : [ " + number(result.score - result.error)
+                        + ", " + number(result.score + result.error) + " ],");
+                out.println("            \"scoreUnit\" : \"" + result.bench.unit + "\",");
+                StringBuilder raw = new StringBuilder();
+                for (int i = 0; i < result.scores.length; i++) {
+                    raw.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+                }
+                out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {}");
+                out.println(r + 1 < results.size() ? "    }," : "    }");
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String json(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String number(double d) {
+        return Double.isNaN(d) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        XferBench bench = new XferBench();
+        File json = null;
+        boolean quick = false;
+        for (int a = 0; a < args.length; a++) {
+            if ("-json".equals(args[a]) && a + 1 < args.length) {
+                json = new File(args[++a]);
+            } else if ("-filter".equals(args[a]) && a + 1 < args.length) {
+                bench.filter = args[++a];
+            } else if ("-quick".equals(args[a])) {
+                quick = true;
+            } else {
+                System.err.println("Usage: XferBench [-json <file>] [-filter <regex>] [-quick]");
+                System.exit(1);
+            }
+        }
+        if (quick) {
+            bench.warmupIterations = 1;
+            bench.iterations = 3;
+            bench.iterationMillis = 300L;
+        }
+        // Metrics.enabled stays off as in normal operation without -metrics
+        Xfer2.log(java.util.logging.Level.INFO, "Benchmarks on " + System.getProperty("java.vm.name")
+                + " " + System.getProperty("java.version"));
+
+        int[] blockSizes = quick ? new int[]{16 * 1024, 256 * 1024} : new int[]{4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, MIB};
+        int[] levels = quick ? new int[]{1, 9} : new int[]{1, 5, 9};
+        bench.compressionBenchmarks(blockSizes, levels, new String[]{"zeros", "text", "random"});
+        bench.digestBenchmarks(blockSizes);
+        bench.encryptionBenchmarks(blockSizes);
+        File tmp = File.createTempFile("xferbench", "");
+        tmp.delete();
+        try {
+            bench.scanBenchmarks(tmp);
+        } finally {
+            deleteTree(tmp);
+        }
+        if (json != null) {
+            bench.writeJson(json);
+            System.out.println("Results written to " + json.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package xfer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+* Asynchronous log sink ("-async" and "-logfile" options).
+*
+* {@link Xfer2#log} hands records to {@link #append}, which only claims a
+* slot in a ring buffer and stores the references of level, thread name,
+* time, message and exception; no locks, no formatting and, apart from
+* the message string the caller built anyway, no allocation on the
+* transfer thread. A daemon thread drains the ring, formats the records
+* into one reused buffer and writes them in batches to the console (as
+* before: WARNING and up to stderr) or to a log file that is rotated at a
+* given size.
+*
+* If the ring is full, producers wait for the writer instead of dropping
+* records. Whatever is still queued is written by a shutdown hook.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class AsyncLog {
+
+    private static final int RING_SIZE = 8192;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /** One record. <tt>seq</tt> tells whose turn it is, see {@link #append}. */
+    private static final class Slot {
+        volatile long seq;
+        Level level;
+        String thread;
+        long millis;
+        String message;
+        Exception exception;
+        boolean stackTrace;
+    }
+
+    private static volatile AsyncLog instance = null;
+
+    private final Slot[] ring = new Slot[RING_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    /** next sequence to be written; only changed by the writer thread */
+    private volatile long tail = 0L;
+    private final Thread writer;
+    private volatile boolean waiting = false;
+
+    private final File file;
+    private final long maxBytes;
+    private final int keep;
+    private OutputStream fileOut = null;
+    private long fileBytes = 0L;
+    private final StringBuilder line = new StringBuilder(256);
+
+    private AsyncLog(File file, long maxBytes, int keep) throws IOException {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot();
+            ring[i].seq = i;
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        if (file != null) {
+            openFile();
+        }
+        writer = new Thread("Log") {
+            public void run() {
+                drainLoop();
+            }
+        };
+        writer.setDaemon(true);
+    }
+
+    /**
+    * Route all further log records through the ring buffer.
+    *
+    * @param file - log file, <tt>null</tt> for the console
+    * @param maxBytes - rotate the file when it gets larger than this
+    * @param keep - number of rotated files (file.1 ... file.keep) to keep
+    */
+    static synchronized void start(File file, long maxBytes, int keep) throws IOException {
+        if (instance != null) {
+            return;
+        }
+        final AsyncLog log = new AsyncLog(file, maxBytes, keep);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                log.flush();
+            }
+        });
+        instance = log;
+    }
+
+    /** Queue a record; returns false if the async sink isn't running. */
+    static boolean append(Level level, String message, Exception exception, boolean stackTrace) {
+        AsyncLog log = instance;
+        if (log == null) {
+            return false;
+        }
+        long seq = log.head.getAndIncrement();
+        Slot slot = log.ring[(int) (seq & (RING_SIZE - 1))];
+        // the slot is free once the writer has consumed the record one lap before
+        while (slot.seq != seq) {
+            log.wakeWriter();
+            LockSupport.parkNanos(100000L);
+        }
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.millis = System.currentTimeMillis();
+        slot.message = message;
+        slot.exception = exception;
+        slot.stackTrace = stackTrace;
+        // publish
+        slot.seq = seq + 1;
+        if (log.waiting) {
+            log.wakeWriter();
+        }
+        return true;
+    }
+
+    private void wakeWriter() {
+        LockSupport.unpark(writer);
+    }
+
+    /** Wait until everything queued so far has been written. */
+    private void flush() {
+        long target = head.get();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (tail < target && System.currentTimeMillis() < deadline) {
+            wakeWriter();
+            LockSupport.parkNanos(1000000L);
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int n = drain();
+            if (n == 0) {
+                waiting = true;
+                // re-check after announcing that we wait, a producer may have published meanwhile
+                if (!available()) {
+                    LockSupport.parkNanos(50000000L);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    private boolean available() {
+        return ring[(int) (tail & (RING_SIZE - 1))].seq == tail + 1;
+    }
+
+    /** Write all published records; returns how many. */
+    private int drain() {
+        int n = 0;
+        PrintStream lastConsole = null;
+        while (available()) {
+            Slot slot = ring[(int) (tail & (RING_SIZE - 1))];
+            PrintStream console = slot.level.intValue() >= Level.WARNING.intValue() || slot.exception != null
+                ? System.err : System.out;
+            format(slot);
+            slot.message = null;
+            slot.exception = null;
+            slot.thread = null;
+            // hand the slot to the producer one lap ahead
+            slot.seq = tail + RING_SIZE;
+            tail++;
+            n++;
+            if (fileOut != null) {
+                writeFile();
+            } else {
+                if (lastConsole != null && lastConsole != console) {
+                    lastConsole.flush();
+                }
+                console.print(line);
+                lastConsole = console;
+            }
+        }
+        try {
+            if (fileOut != null && n > 0) fileOut.flush();
+        } catch (IOException ioe1){}
+        if (lastConsole != null) lastConsole.flush();
+        return n;
+    }
+
+    private void format(Slot slot) {
+        line.setLength(0);
+        line.append('[').append(slot.level).append('|')
+            .append(slot.thread).append('|')
+            .append(formatTime(slot.millis))
+            .append("]: ").append(slot.message).append(' ');
+        if (slot.exception != null) {
+            line.append(LINE_SEPARATOR).append(' ').append(slot.exception.toString());
+            if (slot.stackTrace) {
+                for (StackTraceElement ste : slot.exception.getStackTrace()) {
+                    line.append(LINE_SEPARATOR).append("         ").append(ste.toString()).append(" : ");
+                }
+            }
+        }
+        line.append(LINE_SEPARATOR);
+    }
+
+    private void writeFile() {
+        byte[] bytes = line.toString().getBytes(UTF8);
+        try {
+            if (maxBytes > 0 && fileBytes + bytes.length > maxBytes && fileBytes > 0) {
+                rotate();
+            }
+            fileOut.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException ioe) {
+            System.err.print(line);
+        }
+    }
+
+    private void openFile() throws IOException {
+        fileOut = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        fileBytes = file.length();
+    }
+
+    /** file -> file.1 -> file.2 ... up to file.keep */
+    private void rotate() throws IOException {
+        fileOut.close();
+        new File(file.getPath() + "." + keep).delete();
+        for (int i = keep - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists()) {
+                from.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (keep > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        openFile();
+    }
+
+    // ------------------------------------------------------------------
+    // time stamps
+
+    /** Formatted time of one second; replaced when the second changes. */
+    private static final class CachedTime {
+        final long second;
+        final String text;
+
+        CachedTime(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static volatile CachedTime cachedTime = new CachedTime(-1L, "");
+    private static final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss z");
+    static {
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /** "HH:mm:ss z" in UTC, formatted at most once per second. */
+    static String formatTime(long millis) {
+        long second = millis / 1000L;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            synchronized (timeFormat) {
+                cached = new CachedTime(second, timeFormat.format(second * 1000L));
+            }
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+}
@@ -0,0 +1,301 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+* Token bucket rate limiting for all connections of this process.
+*
+* There is one global bucket (option "-rate") and one bucket per connection
+* (a {@link Share}, option "-srate"). While the global limit is in force,
+* the global rate is split between the connections that were busy during
+* the last second in proportion to their weights, so concurrent transfers
+* share the line fairly and an idle connection doesn't hold back bandwidth.
+*
+* Limits and weights can be changed at runtime through {@link #setLimits}
+* or a limits file (option "-ratefile") that is reread when it changes:
+* <pre>
+*   global=20M
+*   session=5M
+*   weight.10.1.=4
+* </pre>
+* Rates are bytes per second with optional K, M or G suffix (powers of
+* 1024), 0 means unlimited. <tt>weight.&lt;ip prefix&gt;</tt> sets the weight of
+* connections from matching addresses (default 1).
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class BandwidthShaper {
+
+    /** A connection counts as busy if it asked for bandwidth this recently. */
+    private static final long ACTIVE_NANOS = 1000L * 1000 * 1000;
+    /** Buckets hold at most this many seconds worth of tokens. */
+    private static final double BURST_SECONDS = 0.1;
+    private static final long MIN_BURST = 16 * 1024;
+    private static final long RELOAD_MILLIS = 5000L;
+
+    private long globalRate = 0;
+    private long sessionRate = 0;
+    private double globalTokens = 0;
+    private long globalRefill = System.nanoTime();
+    /** the busy connections, least recently used first, and the sum of their weights */
+    private final LinkedHashSet<Share> active = new LinkedHashSet<Share>();
+    private int activeWeight = 0;
+    private final List<String[]> weights = new ArrayList<String[]>();
+
+    private File limitsFile = null;
+    private long limitsModified = 0L;
+
+    public BandwidthShaper(long globalRate, long sessionRate) {
+        this.globalRate = globalRate;
+        this.sessionRate = sessionRate;
+    }
+
+    /** Change the limits (bytes per second, 0 = unlimited) for all connections at once. */
+    public synchronized void setLimits(long globalRate, long sessionRate) {
+        this.globalRate = globalRate;
+        this.sessionRate = sessionRate;
+        Xfer2.log(Level.CONFIG, "Bandwidth limits: global " + formatRate(globalRate)
+                + ", per connection " + formatRate(sessionRate));
+    }
+
+    public synchronized long getGlobalRate() {
+        return globalRate;
+    }
+
+    public synchronized long getSessionRate() {
+        return sessionRate;
+    }
+
+    /** Register a new connection with the given weight. */
+    public synchronized Share register(int weight) {
+        return new Share(Math.max(1, weight));
+    }
+
+    /** Register a new connection, weight taken from the limits file by client address. */
+    public synchronized Share register(String clientAddress) {
+        int weight = 1;
+        for (String[] w : weights) {
+            if (clientAddress.startsWith(w[0])) {
+                try {
+                    weight = Integer.parseInt(w[1].trim());
+                } catch (NumberFormatException nfe) {
+                    Xfer2.log(Level.WARNING, "Could not parse weight for " + w[0] + ": " + w[1]);
+                }
+                break;
+            }
+        }
+        return register(weight);
+    }
+
+    /**
+    * Read limits and weights from <tt>file</tt> now and whenever it is
+    * modified later on.
+    */
+    public void watch(File file) {
+        limitsFile = file;
+        reload();
+        Thread watcher = new Thread("RateFile") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(RELOAD_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    reload();
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void reload() {
+        long modified = limitsFile.lastModified();
+        if (modified == 0L || modified == limitsModified) {
+            return;
+        }
+        limitsModified = modified;
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(limitsFile);
+            props.load(in);
+        } catch (IOException ioe) {
+            Xfer2.log(Level.WARNING, "Could not read limits file " + limitsFile, ioe);
+            return;
+        } finally {
+            try { if (in != null) in.close(); } catch (IOException ioe1){}
+        }
+        synchronized (this) {
+            weights.clear();
+            for (String key : props.stringPropertyNames()) {
+                if (key.startsWith("weight.")) {
+                    weights.add(new String[]{key.substring("weight.".length()), props.getProperty(key)});
+                }
+            }
+            setLimits(rateProperty(props, "global", globalRate), rateProperty(props, "session", sessionRate));
+        }
+    }
+
+    /** The rate <tt>key</tt> of the limits file; <tt>current</tt> if missing or not parseable. */
+    private long rateProperty(Properties props, String key, long current) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return current;
+        }
+        try {
+            return parseRate(value);
+        } catch (NumberFormatException nfe) {
+            Xfer2.log(Level.WARNING, "Could not parse " + key + "=" + value + " in limits file " + limitsFile
+                    + " (" + nfe.getMessage() + "), keeping " + formatRate(current));
+            return current;
+        }
+    }
+
+    /**
+    * Parses "1500", "64K", "10M", "1G" into bytes per second.
+    *
+    * @throws NumberFormatException if it isn't a finite, non-negative rate
+    */
+    static long parseRate(String rate) {
+        return Xfer2.parseBytes(rate, "rate");
+    }
+
+    private static String formatRate(long rate) {
+        return rate <= 0 ? "unlimited" : Xfer2.formatTransferRate(1000.0, rate);
+    }
+
+    private static double burst(double rate) {
+        return Math.max(rate * BURST_SECONDS, MIN_BURST);
+    }
+
+    /**
+    * Grant up to <tt>n</tt> bytes to <tt>share</tt>, 0 if it has to wait.
+    * Must be called with the lock held.
+    */
+    private long grant(Share share, long n, long now) {
+        // connections idle for a while no longer count, the oldest come first
+        Iterator<Share> it = active.iterator();
+        while (it.hasNext()) {
+            Share s = it.next();
+            if (now - s.lastUse < ACTIVE_NANOS) break;
+            it.remove();
+            activeWeight -= s.weight;
+        }
+        if (active.remove(share)) {
+            activeWeight -= share.weight;
+        }
+        active.add(share);
+        activeWeight += share.weight;
+        share.lastUse = now;
+        double rate = sessionRate;
+        if (globalRate > 0) {
+            double elapsed = (now - globalRefill) / 1e9;
+            globalRefill = now;
+            globalTokens = Math.min(burst(globalRate), globalTokens + elapsed * globalRate);
+            double fair = (double) globalRate * share.weight / Math.max(share.weight, activeWeight);
+            rate = rate > 0 ? Math.min(rate, fair) : fair;
+        }
+        if (rate > 0) {
+            double elapsed = (now - share.refill) / 1e9;
+            share.tokens = Math.min(burst(rate), share.tokens + elapsed * rate);
+        }
+        share.refill = now;
+        share.rate = rate;
+        double available = rate > 0 ? share.tokens : n;
+        if (globalRate > 0) {
+            available = Math.min(available, globalTokens);
+        }
+        long granted = Math.min(n, (long) available);
+        if (granted <= 0) {
+            return 0;
+        }
+        if (rate > 0) {
+            share.tokens -= granted;
+        }
+        if (globalRate > 0) {
+            globalTokens -= granted;
+        }
+        return granted;
+    }
+
+    /** Bandwidth of one connection. */
+    public final class Share {
+        private final int weight;
+        private double tokens = 0;
+        private long refill = System.nanoTime();
+        private long lastUse = System.nanoTime();
+        private double rate = 0;
+
+        private Share(int weight) {
+            this.weight = weight;
+        }
+
+        /** Wait until at least one byte may be transferred; returns how many (at most <tt>n</tt>). */
+        public int acquire(int n) throws InterruptedIOException {
+            while (true) {
+                long granted = tryAcquire(n);
+                if (granted > 0) {
+                    return (int) granted;
+                }
+                try {
+                    long nanos = waitNanos();
+                    Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+
+        /** Up to <tt>n</tt> bytes that may be transferred now, 0 if none. */
+        public int tryAcquire(int n) {
+            synchronized (BandwidthShaper.this) {
+                return (int) grant(this, n, System.nanoTime());
+            }
+        }
+
+        /** Give back bytes that were granted but not used. */
+        public void release(int n) {
+            synchronized (BandwidthShaper.this) {
+                if (rate > 0) {
+                    tokens += n;
+                }
+                if (globalRate > 0) {
+                    globalTokens += n;
+                }
+            }
+        }
+
+        /** Roughly how long until the next byte can be granted. */
+        public long waitNanos() {
+            synchronized (BandwidthShaper.this) {
+                double r = rate > 0 ? rate : globalRate;
+                if (r <= 0) {
+                    return 1000000L;
+                }
+                // wait for a few KiB instead of single bytes, but not too long
+                return Math.max(1000000L, Math.min(100000000L, (long) (4096 / r * 1e9)));
+            }
+        }
+
+        /** The connection is finished. */
+        public void close() {
+            synchronized (BandwidthShaper.this) {
+                if (active.remove(this)) {
+                    activeWeight -= weight;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package xfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+
+/**
+* Per-block checksums with selective retransmit ("-crc" option, feature
+* "crc").
+*
+* With the feature, a file's content is sent in blocks of
+* {@value #BLOCK} bytes, each followed by its CRC32C. The receiver
+* writes every block at its position and notes those whose CRC doesn't
+* match. Instead of bouncing the md5, it then asks for these blocks
+* again, up to {@value #MAX_ROUNDS} times:
+* <pre>
+*   sender: per block: its bytes, then its CRC32C as hex string
+*   sender: the file's md5 as usual
+*   receiver: "resend:3,17" (block numbers)
+*   sender: per listed block: its bytes (read again from the file), its CRC32C
+*   ... until the receiver bounces its md5 as usual
+* </pre>
+* If blocks were sent again, the receiver computes its md5 from the
+* file written, so the md5 stays the final confirmation.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class BlockCheck {
+
+    static final int BLOCK = 64 * 1024;
+    static final int MAX_ROUNDS = 3;
+    /** prefix of the receiver's answer naming blocks to send again */
+    static final String RESEND = "resend:";
+
+    private final RandomAccessFile out;
+    private final FileChannel channel;
+    private final long size;
+    private final TransferConfig config;
+    private final List<Long> bad = new ArrayList<Long>();
+    private boolean repaired = false;
+
+    /**
+    * Receiver side of one file.
+    *
+    * @param out - written at the blocks' positions; <tt>null</tt>: content is dropped
+    */
+    BlockCheck(RandomAccessFile out, long size, TransferConfig config) {
+        this.out = out;
+        this.channel = out == null ? null : out.getChannel();
+        this.size = size;
+        this.config = config;
+    }
+
+    /**
+    * Sender: send the content with a CRC per block.
+    *
+    * @param digest - md5 of the whole file, updated here
+    */
+    static void send(InputStream in, File file, long size, MessageDigest digest, OutputStream rcvos)
+            throws IOException {
+        byte[] buf = BufferPool.take(BLOCK);
+        CRC32C crc = new CRC32C();
+        try {
+            for (long sent = 0; sent < size; ) {
+                int len = (int) Math.min(BLOCK, size - sent);
+                readFully(in, buf, len, file);
+                if (digest != null) digest.update(buf, 0, len);
+                sendBlock(rcvos, buf, len, crc);
+                sent += len;
+                if (Metrics.enabled) Metrics.bytesOut.add(len);
+            }
+        } finally {
+            BufferPool.give(buf);
+        }
+    }
+
+    /**
+    * Sender: send the blocks named in a {@link #RESEND} answer again,
+    * read from the file.
+    */
+    static void resend(String answer, File file, long size, OutputStream rcvos, TransferConfig config)
+            throws IOException {
+        List<Long> blocks = parse(answer.substring(RESEND.length()), size);
+        Xfer2.log(config, Level.WARNING, "Receiver asks for " + blocks.size() + " blocks of " + file + " again");
+        byte[] buf = BufferPool.take(BLOCK);
+        CRC32C crc = new CRC32C();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (long block : blocks) {
+                int len = (int) Math.min(BLOCK, size - block * BLOCK);
+                in.seek(block * BLOCK);
+                in.readFully(buf, 0, len);
+                sendBlock(rcvos, buf, len, crc);
+                if (Metrics.enabled) Metrics.bytesOut.add(len);
+            }
+            rcvos.flush();
+        } finally {
+            try { in.close(); } catch (IOException ioe1){}
+            BufferPool.give(buf);
+        }
+    }
+
+    private static void sendBlock(OutputStream rcvos, byte[] buf, int len, CRC32C crc) throws IOException {
+        crc.reset();
+        crc.update(buf, 0, len);
+        rcvos.write(buf, 0, len);
+        Xfer2.writeToStream(rcvos, Long.toHexString(crc.getValue()), false);
+    }
+
+    /**
+    * Receiver: read all blocks of the file.
+    *
+    * @param digest - md5 of the whole file, updated here as long as all
+    *        blocks are intact, see {@link #repair}
+    * @return the number of content bytes read
+    */
+    long receive(InputStream sendIs, MessageDigest digest) throws IOException {
+        byte[] buf = BufferPool.take(BLOCK);
+        CRC32C crc = new CRC32C();
+        try {
+            long blocks = (size + BLOCK - 1) / BLOCK;
+            for (long block = 0; block < blocks; block++) {
+                int len = (int) Math.min(BLOCK, size - block * BLOCK);
+                boolean ok = receiveBlock(sendIs, block, len, buf, crc);
+                if (!ok) {
+                    bad.add(block);
+                } else if (digest != null && bad.isEmpty()) {
+                    digest.update(buf, 0, len);
+                }
+            }
+        } finally {
+            BufferPool.give(buf);
+        }
+        if (!bad.isEmpty()) {
+            Xfer2.log(config, Level.WARNING, bad.size() + " blocks arrived damaged");
+        }
+        return size;
+    }
+
+    /**
+    * Receiver, after the sender's md5: have damaged blocks sent again and
+    * recompute the md5 from the file if there were any. Returns when the
+    * receiver's md5 is to be bounced.
+    */
+    void repair(InputStream sendIs, OutputStream sendOs, MessageDigest digest) throws IOException {
+        byte[] buf = BufferPool.take(BLOCK);
+        CRC32C crc = new CRC32C();
+        try {
+            for (int round = 0; round < MAX_ROUNDS && !bad.isEmpty(); round++) {
+                StringBuilder answer = new StringBuilder(RESEND);
+                for (int i = 0; i < bad.size(); i++) {
+                    if (i > 0) answer.append(',');
+                    answer.append(bad.get(i));
+                }
+                Xfer2.writeToStream(sendOs, answer.toString());
+                repaired = true;
+                List<Long> stillBad = new ArrayList<Long>();
+                for (long block : bad) {
+                    int len = (int) Math.min(BLOCK, size - block * BLOCK);
+                    if (!receiveBlock(sendIs, block, len, buf, crc)) {
+                        stillBad.add(block);
+                    }
+                }
+                bad.clear();
+                bad.addAll(stillBad);
+            }
+            if (!bad.isEmpty()) {
+                Xfer2.log(config, Level.SEVERE, bad.size() + " blocks still damaged after " + MAX_ROUNDS + " attempts");
+            }
+            if (repaired && digest != null && out != null) {
+                // blocks came out of order, digest what is on disk now
+                digest.reset();
+                for (long pos = 0; pos < size; ) {
+                    int len = (int) Math.min(BLOCK, size - pos);
+                    out.seek(pos);
+                    out.readFully(buf, 0, len);
+                    digest.update(buf, 0, len);
+                    pos += len;
+                }
+            }
+        } finally {
+            BufferPool.give(buf);
+        }
+    }
+
+    /** Read one block and its CRC, write it at its position; whether the CRC matches. */
+    private boolean receiveBlock(InputStream sendIs, long block, int len, byte[] buf, CRC32C crc)
+            throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = sendIs.read(buf, off, len - off);
+            if (n == -1) {
+                throw new EOFException("Connection closed in block " + block);
+            }
+            off += n;
+        }
+        if (Metrics.enabled) Metrics.bytesIn.add(len);
+        String expected = Xfer2.readFromStream(sendIs);
+        crc.reset();
+        crc.update(buf, 0, len);
+        if (channel != null) {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            long at = block * BLOCK;
+            while (bb.hasRemaining()) {
+                at += channel.write(bb, at);
+            }
+        }
+        boolean ok = Long.toHexString(crc.getValue()).equals(expected);
+        if (!ok) {
+            Xfer2.log(config, Level.FINE, "Block " + block + ": CRC " + Long.toHexString(crc.getValue()) + " vs " + expected);
+        }
+        return ok;
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len, File file) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+            if (n == -1) {
+                throw new IOException("File shrank while sending: " + file.getAbsolutePath());
+            }
+            off += n;
+        }
+    }
+
+    private static List<Long> parse(String list, long size) throws IOException {
+        List<Long> blocks = new ArrayList<Long>();
+        long count = (size + BLOCK - 1) / BLOCK;
+        for (String s : list.split(",")) {
+            long block;
+            try {
+                block = Long.parseLong(s);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad block list: " + list);
+            }
+            if (block < 0 || block >= count) {
+                throw new IOException("Bad block list: " + list);
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,180 @@
+package xfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Pool of the I/O buffers of all sessions and streams.
+*
+* {@link #take} hands out arrays of exactly the length asked for, kept in
+* pools per length; the lengths in use are few (block sizes, constants),
+* at most {@value #MAX_LENGTHS} different ones are pooled. Requests whose
+* length varies from block to block use {@link #takeAtLeast}, which rounds
+* up to size classes of powers of two from 2^{@value #MIN_SHIFT} to
+* 2^{@value #MAX_SHIFT} bytes. Each thread keeps up to
+* {@value #PER_THREAD} returned arrays per length for itself, the rest go
+* to a shared queue of up to {@value #SHARED} per length; beyond that they
+* are left to the garbage collector. Once the buffers for the running
+* sessions exist, transfers allocate nothing per file or block.
+* Direct buffers (for channels) are kept in shared queues per size class only.
+*
+* Larger requests are allocated and dropped as before. A buffer must not
+* be used after it was given back, and must be given back at most once.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class BufferPool {
+
+    static final int MIN_SHIFT = 12;
+    static final int MAX_SHIFT = 26;
+    static final int PER_THREAD = 2;
+    static final int SHARED = 32;
+    static final int MAX_LENGTHS = 64;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** the pooled lengths, in the order they were first asked for */
+    private static final int[] lengths = new int[MAX_LENGTHS];
+    private static final AtomicInteger lengthCount = new AtomicInteger();
+
+    private static final ThreadLocal<ArrayDeque<byte[]>[]> local = new ThreadLocal<ArrayDeque<byte[]>[]>() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected ArrayDeque<byte[]>[] initialValue() {
+            ArrayDeque<byte[]>[] caches = new ArrayDeque[MAX_LENGTHS];
+            for (int i = 0; i < MAX_LENGTHS; i++) {
+                caches[i] = new ArrayDeque<byte[]>(PER_THREAD);
+            }
+            return caches;
+        }
+    };
+    private static final Shared<byte[]>[] heap = shared(MAX_LENGTHS);
+    private static final Shared<ByteBuffer>[] direct = shared(CLASSES);
+
+    /** a bounded queue of one length or class */
+    private static final class Shared<T> {
+        final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+        final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null) size.decrementAndGet();
+            return t;
+        }
+
+        void offer(T t) {
+            if (size.incrementAndGet() <= SHARED) {
+                queue.offer(t);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Shared<T>[] shared(int n) {
+        Shared<T>[] pools = new Shared[n];
+        for (int i = 0; i < n; i++) {
+            pools[i] = new Shared<T>();
+        }
+        return pools;
+    }
+
+    private BufferPool() {
+    }
+
+    /** Size class of a buffer of at least <tt>size</tt> bytes, -1 if too large to pool. */
+    static int sizeClass(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+    * The pool of arrays of <tt>length</tt> bytes, -1 if there is none.
+    *
+    * @param add - add a pool for a new length while there are less than {@value #MAX_LENGTHS}
+    */
+    private static int slot(int length, boolean add) {
+        if (length <= 0 || length > 1 << MAX_SHIFT) return -1;
+        int n = lengthCount.get();
+        for (int i = 0; i < n; i++) {
+            if (lengths[i] == length) return i;
+        }
+        if (!add) return -1;
+        synchronized (lengths) {
+            n = lengthCount.get();
+            for (int i = 0; i < n; i++) {
+                if (lengths[i] == length) return i;
+            }
+            if (n == MAX_LENGTHS) return -1;
+            lengths[n] = length;
+            // publishes the length to the readers above
+            lengthCount.set(n + 1);
+            return n;
+        }
+    }
+
+    /** An array of exactly <tt>size</tt> bytes, with undefined content. */
+    static byte[] take(int size) {
+        int s = slot(size, true);
+        byte[] b = null;
+        if (s >= 0) {
+            b = local.get()[s].pollFirst();
+            if (b == null) {
+                b = heap[s].poll();
+            }
+        }
+        if (b == null) {
+            Metrics.buffersAllocated.increment();
+            b = new byte[size];
+        }
+        return b;
+    }
+
+    /**
+    * An array of at least <tt>size</tt> bytes, the next power of two, for
+    * lengths that vary from one use to the next.
+    */
+    static byte[] takeAtLeast(int size) {
+        int c = sizeClass(size);
+        return take(c < 0 ? size : 1 << (c + MIN_SHIFT));
+    }
+
+    /** Return an array from {@link #take} or {@link #takeAtLeast}; <tt>null</tt> is ignored. */
+    static void give(byte[] b) {
+        if (b == null) return;
+        // only pooled lengths, anything else wasn't ours
+        int s = slot(b.length, false);
+        if (s < 0) return;
+        ArrayDeque<byte[]> cache = local.get()[s];
+        if (cache.size() < PER_THREAD) {
+            cache.addFirst(b);
+        } else {
+            heap[s].offer(b);
+        }
+    }
+
+    /** A cleared direct buffer of at least <tt>size</tt> bytes. */
+    static ByteBuffer takeDirect(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            Metrics.buffersAllocated.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer b = direct[c].poll();
+        if (b == null) {
+            Metrics.buffersAllocated.increment();
+            return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        b.clear();
+        return b;
+    }
+
+    /** Return a buffer from {@link #takeDirect}; <tt>null</tt> is ignored. */
+    static void giveDirect(ByteBuffer b) {
+        if (b == null || !b.isDirect()) return;
+        int c = sizeClass(b.capacity());
+        if (c < 0 || b.capacity() != 1 << (c + MIN_SHIFT)) return;
+        direct[c].offer(b);
+    }
+}
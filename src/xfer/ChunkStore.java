@@ -0,0 +1,353 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+* Receiver's store of file chunks for deduplication ("-chunks" and "-dedup"
+* options, feature "dedup").
+*
+* With the feature, a file's content is not sent as a whole. The sender
+* cuts it into content-defined chunks ({@link Chunker}) and first sends
+* their SHA-256 hashes and lengths; the receiver answers which chunks it
+* doesn't have yet, gets only those and assembles the file from the
+* received and stored chunks. New chunks go into the store, so later
+* files and later sessions profit as well. Messages are NUL terminated
+* strings like the rest of the protocol:
+* <pre>
+*   sender: "hash,length" (per chunk), ""
+*   receiver: "0" or "1" per chunk in one string, 1: send it
+*   sender: content of the wanted chunks, then the file's md5 as usual
+* </pre>
+*
+* Chunks are files named after their hash in 256 subdirectories. The
+* index of hashes is kept in memory in least recently used order and
+* rebuilt from the modification times of the chunk files at startup
+* (chunks are touched when used). When the store grows beyond its limit,
+* the least recently used chunks are deleted, but only between files, so
+* the chunks announced as present stay until the file is assembled.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class ChunkStore {
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final long maxBytes;
+    private final TransferConfig config;
+    /** hash -> chunk size, least recently used first */
+    private final LinkedHashMap<String, Integer> index = new LinkedHashMap<String, Integer>(1024, 0.75f, true);
+    private long totalBytes = 0L;
+
+    /**
+    * Open or create the store of <tt>config</tt>'s chunk directory and index
+    * its chunks; the chunk store size limits all chunks together.
+    */
+    ChunkStore(TransferConfig config) throws IOException {
+        this.dir = config.chunkDir;
+        this.maxBytes = config.chunkStoreMax;
+        this.config = config;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create chunk store " + dir.getAbsolutePath());
+        }
+        List<File> chunks = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files == null) continue;
+                for (File f : files) {
+                    if (f.getName().endsWith(TMP_SUFFIX)) {
+                        // left over from a broken session
+                        f.delete();
+                    } else {
+                        chunks.add(f);
+                    }
+                }
+            }
+        }
+        final Map<File, Long> mtimes = new LinkedHashMap<File, Long>();
+        for (File f : chunks) {
+            mtimes.put(f, f.lastModified());
+        }
+        File[] sorted = chunks.toArray(new File[chunks.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(mtimes.get(a), mtimes.get(b));
+            }
+        });
+        for (File f : sorted) {
+            index.put(f.getName(), (int) f.length());
+            totalBytes += f.length();
+        }
+        Xfer2.log(config, Level.CONFIG, "Chunk store " + dir.getAbsolutePath() + ": " + index.size() + " chunks, "
+                + totalBytes + " bytes, limit " + maxBytes);
+        evict();
+    }
+
+    synchronized boolean contains(String hash) {
+        return index.containsKey(hash);
+    }
+
+    /** Read a chunk into <tt>buf</tt>; returns its length. */
+    synchronized int read(String hash, byte[] buf) throws IOException {
+        Integer size = index.get(hash);
+        if (size == null) {
+            throw new IOException("Chunk " + hash + " not in store");
+        }
+        File f = file(hash);
+        InputStream in = new FileInputStream(f);
+        try {
+            readFully(in, buf, size);
+        } finally {
+            try { in.close(); } catch (IOException ioe1){}
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return size;
+    }
+
+    synchronized void put(String hash, byte[] buf, int len) throws IOException {
+        if (index.containsKey(hash)) {
+            return;
+        }
+        File f = file(hash);
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buf, 0, len);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Could not store chunk " + f.getAbsolutePath());
+        }
+        index.put(hash, len);
+        totalBytes += len;
+    }
+
+    /** Delete least recently used chunks until the store fits its limit. */
+    synchronized void evict() {
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            file(e.getKey()).delete();
+            totalBytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    private File file(String hash) {
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+    * Sender: offer the chunks of a file the receiver wants and send
+    * those it lacks.
+    *
+    * @param in - the file's content, read once to cut and hash it
+    * @param file - reopened to send the chunks the receiver lacks
+    * @param digest - md5 of the whole file, updated here
+    * @return the number of content bytes sent
+    */
+    static long send(InputStream in, File file, long size, byte[] buf, MessageDigest digest,
+            InputStream rcvis, OutputStream rcvos, TransferConfig config) throws IOException {
+        MessageDigest sha = sha256();
+        Chunker chunker = new Chunker();
+        List<Integer> lengths = new ArrayList<Integer>();
+        long read = 0;
+        long chunkStart = 0;
+        int len;
+        while (read < size && (len = in.read(buf, 0, (int) Math.min(buf.length, size - read))) != -1) {
+            if (digest != null) digest.update(buf, 0, len);
+            read += len;
+            int off = 0;
+            while (off < len) {
+                int n = chunker.cut(buf, off, len - off);
+                if (n < 0) {
+                    sha.update(buf, off, len - off);
+                    break;
+                }
+                sha.update(buf, off, n);
+                off += n;
+                long chunkEnd = read - len + off;
+                int chunkLength = (int) (chunkEnd - chunkStart);
+                chunkStart = chunkEnd;
+                lengths.add(chunkLength);
+                Xfer2.writeToStream(rcvos, hex(sha.digest()) + "," + chunkLength, false);
+            }
+        }
+        if (read < size) {
+            throw new IOException("File shrank while sending: " + file.getAbsolutePath());
+        }
+        if (read > chunkStart) {
+            int chunkLength = (int) (read - chunkStart);
+            lengths.add(chunkLength);
+            Xfer2.writeToStream(rcvos, hex(sha.digest()) + "," + chunkLength, false);
+        }
+        Xfer2.writeToStream(rcvos, "");
+
+        String wanted = Xfer2.readFromStream(rcvis);
+        if (wanted.length() != lengths.size()) {
+            throw new IOException("Receiver wants " + wanted.length() + " of " + lengths.size() + " chunks");
+        }
+        long sent = 0;
+        if (wanted.indexOf('1') >= 0) {
+            InputStream again = new BufferedInputStream(new FileInputStream(file));
+            try {
+                for (int i = 0; i < lengths.size(); i++) {
+                    int chunkLength = lengths.get(i);
+                    if (wanted.charAt(i) == '1') {
+                        readFully(again, buf, chunkLength, rcvos);
+                        sent += chunkLength;
+                    } else {
+                        skipFully(again, chunkLength);
+                    }
+                }
+            } finally {
+                try { again.close(); } catch (IOException ioe1){}
+            }
+        }
+        Xfer2.log(config, Level.FINE, "Sent " + sent + " of " + size + " bytes, " + lengths.size() + " chunks");
+        return sent;
+    }
+
+    /**
+    * Receiver: answer a chunk list, take the missing chunks and write the
+    * whole file to <tt>out</tt> (if not <tt>null</tt>).
+    *
+    * @param digest - md5 of the whole file, updated here
+    * @return the number of content bytes written
+    */
+    long receive(InputStream sendIs, OutputStream sendOs, OutputStream out, MessageDigest digest)
+            throws IOException {
+        List<String> hashes = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        String msg;
+        while ((msg = Xfer2.readFromStream(sendIs)).length() > 0) {
+            int comma = msg.indexOf(',');
+            int chunkLength;
+            try {
+                chunkLength = Integer.parseInt(msg.substring(comma + 1));
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad chunk: " + msg);
+            }
+            if (comma != 64 || chunkLength <= 0 || chunkLength > Chunker.MAX_SIZE) {
+                throw new IOException("Bad chunk: " + msg);
+            }
+            hashes.add(msg.substring(0, comma));
+            lengths.add(chunkLength);
+        }
+        // a chunk that appears twice is sent once and then taken from the store
+        StringBuilder wanted = new StringBuilder(hashes.size());
+        Set<String> requested = new HashSet<String>();
+        for (String hash : hashes) {
+            wanted.append(contains(hash) || !requested.add(hash) ? '0' : '1');
+        }
+        Xfer2.writeToStream(sendOs, wanted.toString());
+
+        MessageDigest sha = sha256();
+        byte[] buf = BufferPool.take(Chunker.MAX_SIZE);
+        long written = 0;
+        long received = 0;
+        try {
+            for (int i = 0; i < hashes.size(); i++) {
+                String hash = hashes.get(i);
+                int len;
+                if (wanted.charAt(i) == '1') {
+                    len = lengths.get(i);
+                    readFully(sendIs, buf, len);
+                    received += len;
+                    sha.update(buf, 0, len);
+                    if (hash.equals(hex(sha.digest()))) {
+                        put(hash, buf, len);
+                    } else {
+                        // the file changed while sending, its md5 won't agree either
+                        Xfer2.log(config, Level.WARNING, "Chunk " + i + " doesn't match its hash, not stored");
+                    }
+                } else {
+                    len = read(hash, buf);
+                }
+                if (digest != null) digest.update(buf, 0, len);
+                if (out != null) out.write(buf, 0, len);
+                written += len;
+            }
+        } finally {
+            BufferPool.give(buf);
+            evict();
+        }
+        Xfer2.log(config, Level.FINE, "Received " + received + " of " + written + " bytes, " + hashes.size() + " chunks");
+        return written;
+    }
+
+    static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException("SHA-256 not available", nsae);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+            if (n == -1) {
+                throw new EOFException("Chunk ends early");
+            }
+            off += n;
+        }
+    }
+
+    /** Copy <tt>len</tt> bytes from <tt>in</tt> to <tt>out</tt> through <tt>buf</tt>. */
+    private static void readFully(InputStream in, byte[] buf, int len, OutputStream out) throws IOException {
+        while (len > 0) {
+            int n = in.read(buf, 0, Math.min(buf.length, len));
+            if (n == -1) {
+                throw new EOFException("File shrank while sending");
+            }
+            out.write(buf, 0, n);
+            len -= n;
+        }
+    }
+
+    private static void skipFully(InputStream in, long len) throws IOException {
+        while (len > 0) {
+            long n = in.skip(len);
+            if (n <= 0) {
+                throw new EOFException("File shrank while sending");
+            }
+            len -= n;
+        }
+    }
+}
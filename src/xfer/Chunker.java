@@ -0,0 +1,64 @@
+package xfer;
+
+import java.util.Random;
+
+/**
+* Content-defined chunking for "-dedup".
+*
+* A gear hash rolls over the data (each byte shifts the hash left by one
+* and adds a random value for the byte, so the top bits depend on the
+* last 64 bytes); a chunk ends where the top {@value #MASK_BITS} bits
+* are zero, but not before {@value #MIN_SIZE} and at the latest after
+* {@value #MAX_SIZE} bytes. Since boundaries depend on the content only,
+* inserting or removing bytes shifts the boundaries along and the
+* chunks after the change are the same as before. Chunks are about
+* 80 KiB on average (the minimum plus 2^{@value #MASK_BITS}).
+*
+* The random values come from a fixed seed, so all senders cut the same
+* content the same way.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class Chunker {
+
+    static final int MIN_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    private static final int MASK_BITS = 16;
+    /** top bits, they depend on the most bytes */
+    private static final long MASK = -1L << (64 - MASK_BITS);
+
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x78666572L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private long hash = 0L;
+    private int length = 0;
+
+    /**
+    * Feed the next bytes of the data.
+    *
+    * @return the number of bytes up to and including the end of the
+    *         current chunk, -1 if the chunk goes on after these bytes
+    */
+    int cut(byte[] b, int off, int len) {
+        long h = hash;
+        int n = length;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            h = (h << 1) + GEAR[b[i] & 0xff];
+            n++;
+            if ((n >= MIN_SIZE && (h & MASK) == 0) || n >= MAX_SIZE) {
+                hash = 0L;
+                length = 0;
+                return i + 1 - off;
+            }
+        }
+        hash = h;
+        length = n;
+        return -1;
+    }
+}
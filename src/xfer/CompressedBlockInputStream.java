@@ -29,6 +29,8 @@
  * ------
  *  modified by amhlaobh@users.noreply.github.com
  */
+package xfer;
+
 import java.io.*;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
@@ -87,13 +89,18 @@ public class CompressedBlockInputStream extends FilterInputStream {
             (ch3 << 8) + (ch4 << 0));
 
         // Make sure we've got enough space to read the block
+        //vvv modified amhlaobh@users.noreply.github.com
+        // from the BufferPool, so growing blocks don't allocate each time
         if ((inBuf == null) || (inLength > inBuf.length)) {
-            inBuf = new byte[inLength];
+            BufferPool.give(inBuf);
+            inBuf = BufferPool.takeAtLeast(inLength);
         }
 
         if ((outBuf == null) || (outLength > outBuf.length)) {
-            outBuf = new byte[outLength];
+            BufferPool.give(outBuf);
+            outBuf = BufferPool.takeAtLeast(outLength);
         }
+        //^^^
 
         // Read until we're got the entire compressed buffer.
         // read(...) will not necessarily block until all
@@ -110,8 +117,24 @@ public class CompressedBlockInputStream extends FilterInputStream {
         }
 
         inflater.setInput(inBuf, 0, inLength);
+        long start = Metrics.enabled ? System.nanoTime() : 0L;
+        XferEvents.BlockEvent event = new XferEvents.BlockEvent();
+        event.begin();
         try {
-            inflater.inflate(outBuf);
+            //modified amhlaobh@users.noreply.github.com: pooled outBuf may be larger
+            inflater.inflate(outBuf, 0, outLength);
+            event.end();
+            if (Metrics.enabled) {
+                Metrics.inflate.since(start);
+                Metrics.rawBytes.add(outLength);
+                Metrics.compressedBytes.add(inLength);
+            }
+            if (event.shouldCommit()) {
+                event.compress = false;
+                event.rawSize = outLength;
+                event.compressedSize = inLength;
+                event.commit();
+            }
         }
         catch(DataFormatException dfe) {
             throw new IOException(
@@ -171,6 +194,19 @@ public class CompressedBlockInputStream extends FilterInputStream {
         return count;
     }
 
+    //vvv added amhlaobh@users.noreply.github.com
+    public void close() throws IOException {
+        BufferPool.give(inBuf);
+        BufferPool.give(outBuf);
+        inBuf = null;
+        outBuf = null;
+        outOffs = 0;
+        outLength = 0;
+        inflater.end();
+        super.close();
+    }
+    //^^^
+
     public int available() throws IOException {
         // This isn't precise, but should be an adequate
         // lower bound on the actual amount of available data
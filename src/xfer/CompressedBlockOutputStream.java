@@ -61,7 +61,10 @@
  *  modified by amhlaobh@users.noreply.github.com
 
  */
+package xfer;
+
 import java.io.*;
+import java.util.Arrays;
 import java.util.zip.Deflater;
 
 public class CompressedBlockOutputStream extends FilterOutputStream {
@@ -80,6 +83,14 @@ public class CompressedBlockOutputStream extends FilterOutputStream {
      */
     private int len = 0;
 
+    //vvv added amhlaobh@users.noreply.github.com
+    /**
+     * Bytes per compressed block; the buffers come from the
+     * BufferPool, outBuf with room for incompressible data
+     */
+    private int blockSize = 0;
+    //^^^
+
     /**
      * Deflater for compressing data
      */
@@ -113,23 +124,64 @@ public class CompressedBlockOutputStream extends FilterOutputStream {
     public CompressedBlockOutputStream(OutputStream os, int size,
         int level, int strategy) throws IOException {
         super(os);
-        this.inBuf = new byte[size];
-        this.outBuf = new byte[size + 64];
+        //vvv modified amhlaobh@users.noreply.github.com
+        this.blockSize = size;
+        this.inBuf = BufferPool.take(size);
+        this.outBuf = BufferPool.take(size + 64);
+        //^^^
         this.deflater = new Deflater(level);
         this.deflater.setStrategy(strategy);
     }
 
+    //vvv added amhlaobh@users.noreply.github.com
+    /**
+     * Changes the size of the blocks to be compressed; data written
+     * so far is compressed and sent first.
+     */
+    public void setBlockSize(int size) throws IOException {
+        compressAndSend();
+        BufferPool.give(inBuf);
+        BufferPool.give(outBuf);
+        blockSize = size;
+        inBuf = BufferPool.take(size);
+        outBuf = BufferPool.take(size + 64);
+    }
+    //^^^
+
     protected void compressAndSend() throws IOException {
         //vvv added amhlaobh@users.noreply.github.com
-        if (len > inBuf.length){
-            System.err.println("ArrayIndexOutOfBoundsException: len="+len+"   inBuf.length="+inBuf.length);
+        if (len > blockSize){
+            System.err.println("ArrayIndexOutOfBoundsException: len="+len+"   blockSize="+blockSize);
             //return;
         }
         //^^^
         if (len > 0) {
             deflater.setInput(inBuf, 0, len);
             deflater.finish();
+            long start = Metrics.enabled ? System.nanoTime() : 0L;
+            XferEvents.BlockEvent event = new XferEvents.BlockEvent();
+            event.begin();
             int size = deflater.deflate(outBuf);
+            //vvv added amhlaobh@users.noreply.github.com
+            // incompressible data grows by a few bytes per 16 KiB, so for
+            // large blocks outBuf can be too small
+            while (!deflater.finished()) {
+                outBuf = Arrays.copyOf(outBuf, outBuf.length + blockSize / 8 + 64);
+                size += deflater.deflate(outBuf, size, outBuf.length - size);
+            }
+            //^^^
+            event.end();
+            if (Metrics.enabled) {
+                Metrics.deflate.since(start);
+                Metrics.rawBytes.add(len);
+                Metrics.compressedBytes.add(size);
+            }
+            if (event.shouldCommit()) {
+                event.compress = true;
+                event.rawSize = len;
+                event.compressedSize = size;
+                event.commit();
+            }
 
             // Write the size of the compressed data, followed
             // by the size of the uncompressed data
@@ -157,20 +209,19 @@ public class CompressedBlockOutputStream extends FilterOutputStream {
         //ArrayIndexOutOfBoundsException, therefore forward to other write
         //method
         //vvv
-        write(new byte[]{(byte)b});
-        /*
-        inBuf[len++] = (byte) b;
-        if (len == inBuf.length) {
+        // no array per byte: the other write method may leave the buffer
+        // full, so send it before, not after adding the byte
+        if (len >= blockSize) {
             compressAndSend();
         }
-        */
+        inBuf[len++] = (byte) b;
         //^^^
     }
 
     public void write(byte[] b, int boff, int blen)
         throws IOException {
-        while ((len + blen) > inBuf.length) {
-            int toCopy = inBuf.length - len;
+        while ((len + blen) > blockSize) {
+            int toCopy = blockSize - len;
             System.arraycopy(b, boff, inBuf, len, toCopy);
             len += toCopy;
             compressAndSend();
@@ -187,7 +238,22 @@ public class CompressedBlockOutputStream extends FilterOutputStream {
     }
 
     public void close() throws IOException {
-        compressAndSend();
+        //vvv modified amhlaobh@users.noreply.github.com
+        // closing twice must not return the buffers twice
+        if (inBuf == null) {
+            out.close();
+            return;
+        }
+        try {
+            compressAndSend();
+        } finally {
+            BufferPool.give(inBuf);
+            BufferPool.give(outBuf);
+            inBuf = null;
+            outBuf = null;
+            deflater.end();
+        }
+        //^^^
         out.close();
     }
 }
@@ -0,0 +1,188 @@
+package xfer;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+/**
+* One receiver of a fan-out ({@link FanOutSender}) or the next hop of a
+* chain (feature "relay").
+*
+* Wraps a {@link Xfer2.Sender} whose per-file steps are driven from
+* outside: announce, answer, content, checksum. If the connection fails,
+* the destination is dropped and logged instead of breaking off the
+* transfer to the others; all further calls do nothing.
+*
+* A hop of a chain sends its upstream the checksum of the next hop if it
+* differs from its own, so the original sender learns about failures
+* anywhere down the chain.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class Destination {
+
+    /** bounced upstream for a file the next hop lost */
+    static final String RELAY_FAILED = "relayFailed";
+
+    private final String target;
+    private Xfer2.Sender sender;
+    private final TransferConfig config;
+    private final long startTime = System.currentTimeMillis();
+    private boolean wanted = false;
+
+    private Destination(String target, Xfer2.Sender sender, TransferConfig config) {
+        this.target = target;
+        this.sender = sender;
+        this.config = config;
+    }
+
+    /**
+    * Connect and handshake; <tt>null</tt> if the receiver can't be reached.
+    *
+    * @param target - "host:port"
+    * @param relay - hops the receiver forwards to, <tt>null</tt>: none
+    */
+    static Destination open(String target, String relay, boolean forceOverwrite, TransferConfig config) {
+        Xfer2.Sender sender = new Xfer2.Sender(config);
+        sender.setRelay(relay);
+        sender.setStepwise();
+        try {
+            sender.open(host(target), port(target));
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Could not connect to " + target, ioe);
+            return null;
+        }
+        try {
+            sender.handshake(forceOverwrite);
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Handshake with " + target + " failed", ioe);
+            sender.close();
+            return null;
+        }
+        return new Destination(target, sender, config);
+    }
+
+    /**
+    * The first reachable of the comma separated hops, forwarding to those
+    * after it; <tt>null</tt> if none can be reached.
+    */
+    static Destination relay(String chain, boolean forceOverwrite, TransferConfig config) {
+        String[] hops = chain.split(",");
+        for (int i = 0; i < hops.length; i++) {
+            StringBuilder rest = new StringBuilder();
+            for (int j = i + 1; j < hops.length; j++) {
+                if (rest.length() > 0) rest.append(',');
+                rest.append(hops[j]);
+            }
+            Destination next = open(hops[i], rest.length() == 0 ? null : rest.toString(), forceOverwrite, config);
+            if (next != null) {
+                Xfer2.log(config, Level.INFO, "Forwarding to " + hops[i] + (rest.length() == 0 ? "" : ", then " + rest));
+                return next;
+            }
+        }
+        return null;
+    }
+
+    static String host(String target) {
+        int colon = target.lastIndexOf(':');
+        return colon < 0 ? target : target.substring(0, colon);
+    }
+
+    static int port(String target) {
+        int colon = target.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("No port in " + target);
+        }
+        return Integer.parseInt(target.substring(colon + 1));
+    }
+
+    boolean isBroken() {
+        return sender == null;
+    }
+
+    void announce(String path, long modDate, long size) {
+        wanted = false;
+        if (sender == null) return;
+        try {
+            sender.announce(path, modDate, size);
+        } catch (IOException ioe) {
+            drop(ioe);
+        }
+    }
+
+    /** Whether the announced file's content is to be sent; false once broken. */
+    boolean readAnswer() {
+        if (sender == null) return false;
+        try {
+            wanted = sender.readAnswer();
+        } catch (IOException ioe) {
+            drop(ioe);
+        }
+        return wanted;
+    }
+
+    void write(byte[] b, int off, int len) {
+        if (sender == null || !wanted) return;
+        try {
+            sender.write(b, off, len);
+        } catch (IOException ioe) {
+            drop(ioe);
+        }
+    }
+
+    void sendChecksum(String md5) {
+        if (sender == null || !wanted) return;
+        try {
+            sender.sendChecksum(md5);
+        } catch (IOException ioe) {
+            drop(ioe);
+        }
+    }
+
+    /**
+    * After {@link #sendChecksum}: <tt>null</tt> if the receiver got the
+    * file intact, its checksum if not, {@link #RELAY_FAILED} if the
+    * destination broke during this file.
+    */
+    String readChecksum() {
+        if (!wanted) return null;
+        wanted = false;
+        if (sender == null) return RELAY_FAILED;
+        try {
+            return sender.readChecksum();
+        } catch (IOException ioe) {
+            drop(ioe);
+            return RELAY_FAILED;
+        }
+    }
+
+    /** End the session regularly. */
+    void finish() {
+        if (sender == null) return;
+        try {
+            sender.finish();
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.WARNING, "Could not finish session with " + target, ioe);
+        }
+        close();
+    }
+
+    void close() {
+        if (sender == null) return;
+        sender.close();
+        sender = null;
+    }
+
+    TransferResult getResult() {
+        return sender == null ? null : sender.getResult(System.currentTimeMillis() - startTime);
+    }
+
+    public String toString() {
+        return target;
+    }
+
+    private void drop(IOException ioe) {
+        Xfer2.log(config, Level.SEVERE, "Lost " + target + ", continuing without it", ioe);
+        sender.close();
+        sender = null;
+    }
+}
@@ -0,0 +1,227 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+* Library to recursively list files.
+*  
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class DirTree {
+
+  /**
+  * Command line use.
+  * @param args - <tt>args[0]</tt> seed directory to start from
+  */
+  public static void main(String[] args) throws FileNotFoundException {
+    if (args.length == 0){
+        return;
+    }
+    File seedDir = new File(args[0]);
+    List<File> files = DirTree.getFiles(seedDir);
+
+    //print out all file names, in the the order of File.compareTo()
+    for(File file : files ){
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(file.lastModified());
+        Date d = cal.getTime();
+        System.out.printf("%10d %tH:%tM:%tS %Td.%Tm.%TY %s%n",
+                file.length(), 
+                d,d,d,d,d,d, 
+                file.toString());
+    }
+  }
+  
+  /**
+  * Recursively walk a directory tree and return a list of all
+  * Files found.
+  *
+  * @param seedDir - the existing directory to start recursing from 
+  */
+    public static List<File> getFiles(File seedDir) {
+        List<File> result =new ArrayList<File>();
+        try {
+            result = getFileList(seedDir);
+        } catch (FileNotFoundException fnfe) {
+            System.err.println("Starting directory could not be found: " + seedDir);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+  /**
+  * Recursively walk a directory tree and return compact entries for all
+  * files and directories found below <tt>seedDir</tt>. Every entry is
+  * stat'ed exactly once; directories precede their contents.
+  *
+  * @param seedDir - the existing directory to start recursing from
+  */
+    public static List<FileEntry> getEntries(File seedDir) {
+        return getEntries(seedDir, null);
+    }
+
+  /**
+  * Like {@link #getEntries(File)}, but directories that are unchanged
+  * since the scan recorded in <tt>snapshot</tt> are not listed again;
+  * the names taken from it are stat'ed as usual. The listing of this
+  * scan is recorded in <tt>snapshot</tt>.
+  *
+  * @param seedDir - the existing directory to start recursing from
+  * @param snapshot - previous scan, may be <tt>null</tt>
+  */
+    public static List<FileEntry> getEntries(File seedDir, ScanSnapshot snapshot) {
+        FileEntry root;
+        try {
+            root = FileEntry.stat(null, seedDir.getName(), seedDir.toPath());
+        } catch (IOException ioe) {
+            System.err.println("Starting directory could not be found: " + seedDir);
+            return new ArrayList<FileEntry>();
+        }
+        if (!root.isDirectory()) {
+            System.err.println("Is not a directory: " + seedDir);
+            return new ArrayList<FileEntry>();
+        }
+        return getEntries(root, seedDir, snapshot);
+    }
+
+  /**
+  * Recursively list the contents of a directory for which there already
+  * is an entry, e.g. a root stat'ed by the caller or one that appeared
+  * below a scanned tree. The entries found are children of <tt>dir</tt>.
+  *
+  * @param dir - the directory's entry
+  * @param dirFile - the directory
+  */
+    static List<FileEntry> getEntries(FileEntry dir, File dirFile) {
+        return getEntries(dir, dirFile, null);
+    }
+
+  /**
+  * Like {@link #getEntries(FileEntry, File)}, using and recording
+  * <tt>snapshot</tt> like {@link #getEntries(File, ScanSnapshot)}.
+  *
+  * @param snapshot - previous scan, may be <tt>null</tt>
+  */
+    static List<FileEntry> getEntries(FileEntry dir, File dirFile, ScanSnapshot snapshot) {
+        EntryList result = new EntryList(dir);
+        getEntryList(dir, -1, dirFile.getAbsoluteFile().toPath(), result, snapshot);
+        result.trim();
+        return result;
+    }
+
+    /**
+    * Stats the children of one directory, appends them to <tt>result</tt>
+    * and recurses. Only the children of the directories on the current
+    * path are held as objects at any time.
+    *
+    * @param dirRow - row of <tt>dir</tt> in <tt>result</tt>, -1 for the base
+    */
+    private static void getEntryList(FileEntry dir, int dirRow, Path dirPath, EntryList result,
+            ScanSnapshot snapshot) {
+        String key = dirPath.toString();
+        ScanSnapshot.DirRecord rec = snapshot == null ? null : snapshot.unchanged(key, dir.getLastModified());
+        List<FileEntry> children = new ArrayList<FileEntry>();
+        if (rec != null) {
+            // unchanged since the last scan: same names, no need to list
+            for (int i = 0; i < rec.names.length; i++) {
+                addEntry(dir, rec.names[i], dirPath.resolve(rec.names[i]), children);
+            }
+        } else {
+            List<String> childNames = new ArrayList<String>();
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(dirPath);
+                for (Path child : stream) {
+                    childNames.add(child.getFileName().toString());
+                }
+            } catch (IOException ioe) {
+                System.err.println("Directory cannot be read: " + dirPath);
+                return;
+            } finally {
+                try { if (stream != null) stream.close(); } catch (IOException ioe1){}
+            }
+            Collections.sort(childNames);
+            for (String childName : childNames) {
+                addEntry(dir, childName, dirPath.resolve(childName), children);
+            }
+        }
+        if (snapshot != null) {
+            snapshot.record(key, dir.getLastModified(), children);
+        }
+        for (FileEntry entry : children) {
+            if (entry.isFile()) {
+                result.append(dirRow, entry); // only add leaf files
+            } else if (entry.isDirectory()) {
+                int row = result.append(dirRow, entry);
+                getEntryList(result.get(row), row, dirPath.resolve(entry.getName()), result, snapshot);
+            }
+        }
+    }
+
+    private static void addEntry(FileEntry dir, String name, Path path, List<FileEntry> children) {
+        try {
+            children.add(FileEntry.stat(dir, name, path));
+        } catch (IOException ioe) {
+            // vanished or dangling link since listing
+        }
+    }
+
+    private static List<File> getFileList(File seedDir)
+            throws FileNotFoundException {
+        List<File> result = new ArrayList<File>();
+        if (!validateDirectory(seedDir)){
+            return result;
+        }
+        File[] filesAndDirs = seedDir.listFiles();
+        if (filesAndDirs == null) {
+            return result;
+        }
+        List<File> filesDirsList = Arrays.asList(filesAndDirs);
+        for (File file : filesDirsList) {
+            if (file.isFile())
+                result.add(file); // only add leaf files
+              if (file.isDirectory()) {
+                // do recursion
+                List<File> deeperList = getFileList(file);
+                result.add(file);
+                result.addAll(deeperList);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Directory is valid if it exists, does not represent a file, and can be
+     * read.
+     */
+    private static boolean validateDirectory(File directory)
+            throws FileNotFoundException {
+        boolean ok = true;
+        if (directory == null) {
+            System.err.println("Directory should not be null.");
+            ok = false;
+        } else if (!directory.exists()) {
+            System.err.println("Directory does not exist: " + directory);
+            ok = false;
+        } else if (!directory.isDirectory()) {
+            System.err.println("Is not a directory: " + directory);
+            ok = false;
+        } else if (!directory.canRead()) {
+            System.err.println("Directory cannot be read: " + directory);
+            ok = false;
+        }
+        
+        return ok;
+    }
+} 
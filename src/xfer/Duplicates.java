@@ -0,0 +1,205 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+
+/**
+* Whole-file duplicates ("-dupes" and "-links" options, feature "dup").
+*
+* Before sending, the sender looks for byte-identical files: files are
+* grouped by size, files of the same size by a CRC32C of their first
+* {@value #HEAD_SIZE} bytes, and only files that still have a twin are
+* hashed completely (SHA-256). Only the first file of a group is sent;
+* for the others, the sender announces the size as "size|path of the
+* twin", and the receiver, if it still has the twin as sent in this
+* session, answers {@link #COPIED_LOCALLY} and makes the file from the
+* twin, then bounces the md5 of the result as usual. If it can't, it
+* answers as usual and gets the content. If copying fails, it removes
+* what it made and bounces {@link #COPY_FAILED}; the sender then
+* announces the file again without twin and sends the content.
+*
+* The receiver copies through {@link FileChannel#transferTo}, which lets
+* the kernel copy without going through user space (or share the blocks,
+* if the JDK uses copy_file_range on a file system with reflinks). With
+* "-links" it creates a hard link instead if the modification times
+* agree, as linked files share them.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class Duplicates {
+
+    /** receiver's answer instead of {@link Xfer2#EXISTS_NOT}: no content needed */
+    static final String COPIED_LOCALLY = "copiedLocally";
+    /** bounced instead of an md5 if making the file from its twin failed; the content follows */
+    static final String COPY_FAILED = "copyFailed";
+    static final int HEAD_SIZE = 64 * 1024;
+
+    private Duplicates() {
+    }
+
+    /**
+    * Content keys of the files that have byte-identical twins among the
+    * entries; files without twins are not in the map.
+    *
+    * @param files - the files of the entries, in the same order
+    */
+    static Map<FileEntry, String> find(List<FileEntry> entries, List<File> files, TransferConfig config) {
+        Map<Long, List<Integer>> bySize = new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < entries.size(); i++) {
+            FileEntry entry = entries.get(i);
+            if (entry.isFile() && entry.getSize() > 0) {
+                add(bySize, entry.getSize(), i);
+            }
+        }
+        Map<String, List<Integer>> byHead = new HashMap<String, List<Integer>>();
+        for (List<Integer> group : bySize.values()) {
+            if (group.size() < 2) continue;
+            for (int i : group) {
+                try {
+                    add(byHead, entries.get(i).getSize() + ":" + headCrc(files.get(i)), i);
+                } catch (IOException ioe) {
+                    // vanished or unreadable, sent (or not) as usual
+                }
+            }
+        }
+        Map<FileEntry, String> keys = new HashMap<FileEntry, String>();
+        int twins = 0;
+        for (List<Integer> group : byHead.values()) {
+            if (group.size() < 2) continue;
+            Map<String, List<Integer>> byHash = new HashMap<String, List<Integer>>();
+            for (int i : group) {
+                try {
+                    add(byHash, hash(files.get(i)), i);
+                } catch (IOException ioe) {
+                    // as above
+                }
+            }
+            for (Map.Entry<String, List<Integer>> e : byHash.entrySet()) {
+                if (e.getValue().size() < 2) continue;
+                for (int i : e.getValue()) {
+                    keys.put(entries.get(i), e.getKey());
+                }
+                twins += e.getValue().size() - 1;
+            }
+        }
+        Xfer2.log(config, Level.FINE, twins + " files are duplicates of others");
+        return keys;
+    }
+
+    private static <K> void add(Map<K, List<Integer>> groups, K key, int i) {
+        List<Integer> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<Integer>(2);
+            groups.put(key, group);
+        }
+        group.add(i);
+    }
+
+    private static long headCrc(File file) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        byte[] buf = BufferPool.take(HEAD_SIZE);
+        try {
+            ByteBuffer head = ByteBuffer.wrap(buf, 0, HEAD_SIZE);
+            while (head.hasRemaining() && in.read(head) != -1) {
+                // read until full or end of file
+            }
+            head.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(head);
+            return crc.getValue();
+        } finally {
+            in.close();
+            BufferPool.give(buf);
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest sha = ChunkStore.sha256();
+        InputStream in = new FileInputStream(file);
+        byte[] buf = BufferPool.take(HEAD_SIZE);
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                sha.update(buf, 0, len);
+            }
+        } finally {
+            try { in.close(); } catch (IOException ioe1){}
+            BufferPool.give(buf);
+        }
+        return ChunkStore.hex(sha.digest());
+    }
+
+    /**
+    * Receiver: make <tt>outFile</tt> from <tt>twin</tt> and update
+    * <tt>digest</tt> with its content.
+    *
+    * Hard links it with <tt>config</tt>'s link duplicates setting.
+    *
+    * @return true if hard linked (the modification time is the twin's then)
+    */
+    static boolean materialize(File twin, File outFile, long modDate, MessageDigest digest, TransferConfig config)
+            throws IOException {
+        boolean linked = false;
+        Files.deleteIfExists(outFile.toPath());
+        if (config.linkDuplicates && Math.abs(twin.lastModified() - modDate) <= config.modifyWindow) {
+            try {
+                Files.createLink(outFile.toPath(), twin.toPath());
+                linked = true;
+            } catch (UnsupportedOperationException uoe) {
+                Xfer2.log(config, Level.FINE, "Hard links not supported, copying");
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.FINE, "Could not link " + outFile + ", copying: " + ioe);
+            }
+        }
+        if (!linked) {
+            FileChannel in = FileChannel.open(twin.toPath(), StandardOpenOption.READ);
+            try {
+                FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    long size = in.size();
+                    long pos = 0;
+                    while (pos < size) {
+                        long n = in.transferTo(pos, size - pos, out);
+                        if (n <= 0) {
+                            throw new IOException("Twin " + twin + " shrank while copying");
+                        }
+                        pos += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        }
+        // the md5 comes from what is on disk now, not from the twin
+        if (digest != null) {
+            InputStream in = new FileInputStream(outFile);
+            byte[] buf = BufferPool.take(HEAD_SIZE);
+            try {
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    digest.update(buf, 0, len);
+                }
+            } finally {
+                try { in.close(); } catch (IOException ioe1){}
+                BufferPool.give(buf);
+            }
+        }
+        return linked;
+    }
+}
@@ -0,0 +1,191 @@
+package xfer;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+* Input stream reading the frames of an {@link EncryptedBlockOutputStream}.
+*
+* Frames that have already arrived completely (their header is in the
+* underlying stream's buffer, and the rest follows without waiting for
+* this side) are decrypted by tasks of the common ForkJoin pool, up to
+* {@link EncryptedBlockOutputStream#MAX_PENDING} at a time, and read in
+* order. A frame failing authentication breaks the connection with an
+* IOException.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class EncryptedBlockInputStream extends FilterInputStream {
+
+    private static final int HEADER_LENGTH = EncryptedBlockOutputStream.HEADER_LENGTH;
+    private static final int TAG_LENGTH = EncryptedBlockOutputStream.TAG_LENGTH;
+    private static final int MAX_FRAME = EncryptedBlockOutputStream.BLOCK + TAG_LENGTH;
+
+    private final SecretKey key;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+    /** the current frame's plaintext starts after the header */
+    private byte[] frame = null;
+    private int pos = 0;
+    private int limit = 0;
+    private long sequence = 0L;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    EncryptedBlockInputStream(InputStream in, SecretKey key) {
+        super(in);
+        this.key = key;
+    }
+
+    public int read() throws IOException {
+        if (pos == limit && !refill()) {
+            return -1;
+        }
+        return frame[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && !refill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(frame, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (pos < limit || refill())) {
+            int k = (int) Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    public int available() {
+        return limit - pos;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Make the next frame current; false at the end of the stream. */
+    private boolean refill() throws IOException {
+        BufferPool.give(frame);
+        frame = null;
+        pos = limit = 0;
+        if (pending.isEmpty() && !readFrame()) {
+            return false;
+        }
+        // decrypt ahead what is there already
+        while (pending.size() < EncryptedBlockOutputStream.MAX_PENDING && !eof && in.available() >= HEADER_LENGTH) {
+            if (!readFrame()) break;
+        }
+        byte[] next;
+        try {
+            next = pending.removeFirst().join();
+        } catch (RuntimeException re) {
+            // the pool wraps what the task threw, maybe more than once
+            for (Throwable t = re; t != null; t = t.getCause()) {
+                if (t instanceof AEADBadTagException) {
+                    throw new IOException("Frame failed authentication: wrong key or data altered on the way");
+                }
+            }
+            throw new IOException("Could not decrypt", re);
+        }
+        frame = next;
+        pos = HEADER_LENGTH;
+        limit = HEADER_LENGTH + length(frame) - TAG_LENGTH;
+        return true;
+    }
+
+    /** Read a whole frame and hand it to the pool; false at the end of the stream. */
+    private boolean readFrame() throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int got = readFully(header, 0, HEADER_LENGTH);
+        if (got == 0) {
+            eof = true;
+            return false;
+        } else if (got < HEADER_LENGTH) {
+            throw new EOFException("Connection closed within a frame");
+        }
+        int cipherLength = length(header);
+        if (cipherLength < TAG_LENGTH || cipherLength > MAX_FRAME) {
+            throw new IOException("Bad frame length " + cipherLength + ": wrong key or not encrypted");
+        }
+        final byte[] sealed = BufferPool.takeAtLeast(HEADER_LENGTH + cipherLength);
+        System.arraycopy(header, 0, sealed, 0, HEADER_LENGTH);
+        if (readFully(sealed, HEADER_LENGTH, cipherLength) < cipherLength) {
+            BufferPool.give(sealed);
+            throw new EOFException("Connection closed within a frame");
+        }
+        final long number = sequence++;
+        final int length = cipherLength;
+        pending.addLast(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call() throws GeneralSecurityException {
+                Cipher c = EncryptedBlockOutputStream.cipher.get();
+                c.init(Cipher.DECRYPT_MODE, key, EncryptedBlockOutputStream.nonce(number));
+                c.updateAAD(sealed, 0, HEADER_LENGTH);
+                try {
+                    // in place, the plaintext ends up after the header
+                    c.doFinal(sealed, HEADER_LENGTH, length, sealed, HEADER_LENGTH);
+                } catch (GeneralSecurityException gse) {
+                    BufferPool.give(sealed);
+                    throw gse;
+                }
+                return sealed;
+            }
+        }));
+        return true;
+    }
+
+    private static int length(byte[] header) {
+        return ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+                | (header[3] & 0xff);
+    }
+
+    /** Read up to <tt>len</tt> bytes, less only at the end of the stream. */
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = in.read(b, off + done, len - done);
+            if (n == -1) break;
+            done += n;
+        }
+        return done;
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ForkJoinTask<byte[]> task : pending) {
+            try {
+                BufferPool.give(task.join());
+            } catch (RuntimeException re) {
+                // failed anyway
+            }
+        }
+        pending.clear();
+        BufferPool.give(frame);
+        frame = null;
+        pos = limit = 0;
+        in.close();
+    }
+}
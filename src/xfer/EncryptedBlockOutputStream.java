@@ -0,0 +1,201 @@
+package xfer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+* Output stream writing AES-GCM frames, see {@link Encryption}.
+*
+* A frame is the length of the ciphertext (4 bytes, big endian) followed
+* by the ciphertext of up to {@value #BLOCK} bytes and its 16 byte tag;
+* the length is authenticated as well. The nonce is the number of the
+* frame in the stream, so frames can't be replayed, dropped or reordered
+* without failing authentication.
+*
+* Full blocks are encrypted by tasks of the common ForkJoin pool while
+* the next one is filled; at most {@link #MAX_PENDING} are in the pool,
+* and finished frames are written in order. {@link #flush()} encrypts
+* what has been written so far, so the protocol's messages go out at
+* once as before. AES and GHASH run on the JDK's intrinsics (AES-NI,
+* carry-less multiplication) where the CPU has them.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class EncryptedBlockOutputStream extends FilterOutputStream {
+
+    static final int TAG_LENGTH = 16;
+    static final int HEADER_LENGTH = 4;
+    /** a whole frame fits a 64 KiB pool buffer */
+    static final int BLOCK = 64 * 1024 - HEADER_LENGTH - TAG_LENGTH;
+    static final int MAX_PENDING = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    static final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException gse) {
+                throw new IllegalStateException("AES-GCM not available", gse);
+            }
+        }
+    };
+
+    private final SecretKey key;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+    private byte[] block = null;
+    private int count = 0;
+    private long sequence = 0L;
+    private boolean closed = false;
+
+    EncryptedBlockOutputStream(OutputStream out, SecretKey key) {
+        super(out);
+        this.key = key;
+    }
+
+    /** The nonce of frame <tt>sequence</tt>. */
+    static GCMParameterSpec nonce(long sequence) {
+        byte[] iv = new byte[12];
+        for (int i = 0; i < 8; i++) {
+            iv[11 - i] = (byte) (sequence >>> (8 * i));
+        }
+        return new GCMParameterSpec(8 * TAG_LENGTH, iv);
+    }
+
+    public void write(int b) throws IOException {
+        if (block == null) {
+            block = BufferPool.take(BLOCK);
+            count = 0;
+        }
+        block[count++] = (byte) b;
+        if (count == BLOCK) {
+            submit();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (block == null) {
+                block = BufferPool.take(BLOCK);
+                count = 0;
+            }
+            int n = Math.min(len, BLOCK - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == BLOCK) {
+                submit();
+            }
+        }
+    }
+
+    /** Hand the current block to the pool and write the frames that are done. */
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int length = count;
+        final long frame = sequence++;
+        block = null;
+        count = 0;
+        if (pending.size() >= MAX_PENDING) {
+            writeFrame(pending.removeFirst());
+        }
+        pending.addLast(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call() throws GeneralSecurityException {
+                try {
+                    return seal(data, length, frame);
+                } finally {
+                    BufferPool.give(data);
+                }
+            }
+        }));
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeFrame(pending.removeFirst());
+        }
+    }
+
+    private byte[] seal(byte[] data, int length, long frame) throws GeneralSecurityException {
+        byte[] sealed = BufferPool.takeAtLeast(HEADER_LENGTH + length + TAG_LENGTH);
+        int cipherLength = length + TAG_LENGTH;
+        sealed[0] = (byte) (cipherLength >>> 24);
+        sealed[1] = (byte) (cipherLength >>> 16);
+        sealed[2] = (byte) (cipherLength >>> 8);
+        sealed[3] = (byte) cipherLength;
+        Cipher c = cipher.get();
+        c.init(Cipher.ENCRYPT_MODE, key, nonce(frame));
+        c.updateAAD(sealed, 0, HEADER_LENGTH);
+        c.doFinal(data, 0, length, sealed, HEADER_LENGTH);
+        return sealed;
+    }
+
+    private void writeFrame(ForkJoinTask<byte[]> task) throws IOException {
+        byte[] sealed;
+        try {
+            sealed = task.join();
+        } catch (RuntimeException re) {
+            throw new IOException("Could not encrypt", re);
+        }
+        int cipherLength = ((sealed[0] & 0xff) << 24) | ((sealed[1] & 0xff) << 16)
+                | ((sealed[2] & 0xff) << 8) | (sealed[3] & 0xff);
+        out.write(sealed, 0, HEADER_LENGTH + cipherLength);
+        BufferPool.give(sealed);
+    }
+
+    /** Encrypt and write everything written so far. */
+    public void flush() throws IOException {
+        if (count > 0) {
+            // a short block goes after the full ones in the pool, sealed right here
+            byte[] data = block;
+            int length = count;
+            long frame = sequence++;
+            block = null;
+            count = 0;
+            while (!pending.isEmpty()) {
+                writeFrame(pending.removeFirst());
+            }
+            try {
+                byte[] sealed = seal(data, length, frame);
+                out.write(sealed, 0, HEADER_LENGTH + length + TAG_LENGTH);
+                BufferPool.give(sealed);
+            } catch (GeneralSecurityException gse) {
+                throw new IOException("Could not encrypt", gse);
+            } finally {
+                BufferPool.give(data);
+            }
+        }
+        while (!pending.isEmpty()) {
+            writeFrame(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            // frames still in the pool are dropped with the connection
+            for (ForkJoinTask<byte[]> task : pending) {
+                try {
+                    BufferPool.give(task.join());
+                } catch (RuntimeException re) {
+                    // failed anyway
+                }
+            }
+            pending.clear();
+            BufferPool.give(block);
+            block = null;
+            out.close();
+        }
+    }
+}
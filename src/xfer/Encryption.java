@@ -0,0 +1,122 @@
+package xfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+* Encrypted connections with a pre-shared key ("-key" option).
+*
+* Before anything else, each side sends {@link #MAGIC} and a random salt
+* in the clear. Each direction gets its own AES-256 key, the HMAC-SHA256
+* of the direction and both salts under the pre-shared key, so no key is
+* ever used for two sessions. Everything afterwards, file names
+* included, travels in AES-GCM frames, see
+* {@link EncryptedBlockOutputStream}; a wrong key shows as a frame that
+* fails authentication. The key must be given on both sides, like "-z".
+*
+* With compression, the content is compressed before it is encrypted.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class Encryption {
+
+    /**
+    * As long as the unencrypted version message, see {@link #agree}, and
+    * NUL terminated like it, so an unencrypted sender reads a wrong version.
+    */
+    static final byte[] MAGIC = "xferAES\0".getBytes(StandardCharsets.US_ASCII);
+    static final int SALT_LENGTH = 16;
+    static final int MIN_KEY_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKey sendKey;
+    private final SecretKey receiveKey;
+
+    private Encryption(SecretKey sendKey, SecretKey receiveKey) {
+        this.sendKey = sendKey;
+        this.receiveKey = receiveKey;
+    }
+
+    /** The content of a key file, at least {@value #MIN_KEY_LENGTH} bytes. */
+    static byte[] readKey(File file) throws IOException {
+        byte[] key = Files.readAllBytes(file.toPath());
+        if (key.length < MIN_KEY_LENGTH) {
+            throw new IOException("Key file " + file + " has less than " + MIN_KEY_LENGTH + " bytes");
+        }
+        return key;
+    }
+
+    /**
+    * Exchange salts over the plain streams and derive the session keys.
+    * The other side's first bytes are checked before its salt is waited
+    * for, so an unencrypted receiver, which sends its version first,
+    * fails here instead of both sides waiting.
+    *
+    * @param sender - whether this is the side that connected
+    */
+    static Encryption agree(InputStream in, OutputStream out, byte[] presharedKey, boolean sender)
+            throws IOException {
+        byte[] mySalt = new byte[SALT_LENGTH];
+        random.nextBytes(mySalt);
+        out.write(MAGIC);
+        out.write(mySalt);
+        out.flush();
+        byte[] magic = new byte[MAGIC.length];
+        readFully(in, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Other side doesn't encrypt, -key must be given on both sides");
+        }
+        byte[] otherSalt = new byte[SALT_LENGTH];
+        readFully(in, otherSalt);
+        byte[] senderSalt = sender ? mySalt : otherSalt;
+        byte[] receiverSalt = sender ? otherSalt : mySalt;
+        SecretKey toReceiver = derive(presharedKey, "sender", senderSalt, receiverSalt);
+        SecretKey toSender = derive(presharedKey, "receiver", senderSalt, receiverSalt);
+        return sender ? new Encryption(toReceiver, toSender) : new Encryption(toSender, toReceiver);
+    }
+
+    private static SecretKey derive(byte[] presharedKey, String direction, byte[] senderSalt, byte[] receiverSalt)
+            throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(presharedKey, "HmacSHA256"));
+            mac.update(("xfer " + direction).getBytes(StandardCharsets.US_ASCII));
+            mac.update(senderSalt);
+            mac.update(receiverSalt);
+            return new SecretKeySpec(mac.doFinal(), "AES");
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Could not derive session keys", gse);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n == -1) {
+                throw new EOFException("Connection closed while agreeing on keys");
+            }
+            off += n;
+        }
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new EncryptedBlockOutputStream(out, sendKey);
+    }
+
+    InputStream wrap(InputStream in) {
+        return new EncryptedBlockInputStream(in, receiveKey);
+    }
+}
@@ -0,0 +1,147 @@
+package xfer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+* The entries found below one directory by {@link DirTree}, stored in
+* columns instead of one object per entry: parent row, name, size,
+* modification time and type each go into an array, and all names into
+* one byte array. An entry costs about 25 bytes plus its name, so a scan
+* of ten million entries fits in a few hundred MB.
+*
+* {@link #get(int)} returns a new {@link FileEntry} view of a row; views
+* of the same row are equal. Names are stored with one to three bytes per
+* char (like <tt>DataOutput.writeUTF()</tt>), which keeps any name intact
+* and ASCII names at one byte per char.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class EntryList extends AbstractList<FileEntry> implements RandomAccess {
+
+    /** parent of the rows with parent -1 */
+    private final FileEntry base;
+    private int count = 0;
+    private int[] parents = new int[64];
+    /** name of row i: bytes nameStarts[i] until nameStarts[i + 1] */
+    private int[] nameStarts = new int[65];
+    private byte[] names = new byte[1024];
+    private long[] sizes = new long[64];
+    private long[] mtimes = new long[64];
+    private byte[] types = new byte[64];
+
+    /** @param base - the directory the entries were found in */
+    EntryList(FileEntry base) {
+        this.base = base;
+    }
+
+    /**
+    * Append an entry.
+    *
+    * @param parent - row of its directory, -1: the base directory
+    * @return its row
+    */
+    int append(int parent, FileEntry entry) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            nameStarts = Arrays.copyOf(nameStarts, capacity + 1);
+            sizes = Arrays.copyOf(sizes, capacity);
+            mtimes = Arrays.copyOf(mtimes, capacity);
+            types = Arrays.copyOf(types, capacity);
+        }
+        String name = entry.getName();
+        int end = nameStarts[count];
+        if (end + 3 * name.length() > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, end + 3 * name.length()));
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c > 0 && c < 0x80) {
+                names[end++] = (byte) c;
+            } else if (c < 0x800) {
+                names[end++] = (byte) (0xc0 | (c >> 6));
+                names[end++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                names[end++] = (byte) (0xe0 | (c >> 12));
+                names[end++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                names[end++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        parents[count] = parent;
+        nameStarts[count + 1] = end;
+        sizes[count] = entry.getSize();
+        mtimes[count] = entry.getLastModified();
+        types[count] = entry.getType();
+        return count++;
+    }
+
+    /** Drop the spare capacity once the scan is complete. */
+    void trim() {
+        parents = Arrays.copyOf(parents, count);
+        nameStarts = Arrays.copyOf(nameStarts, count + 1);
+        names = Arrays.copyOf(names, nameStarts[count]);
+        sizes = Arrays.copyOf(sizes, count);
+        mtimes = Arrays.copyOf(mtimes, count);
+        types = Arrays.copyOf(types, count);
+    }
+
+    @Override
+    public FileEntry get(int row) {
+        if (row < 0 || row >= count) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + count);
+        }
+        return new FileEntry(this, row);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    FileEntry parent(int row) {
+        int parent = parents[row];
+        return parent < 0 ? base : new FileEntry(this, parent);
+    }
+
+    String name(int row) {
+        int end = nameStarts[row + 1];
+        char[] chars = new char[end - nameStarts[row]];
+        int n = 0;
+        for (int i = nameStarts[row]; i < end; ) {
+            int b = names[i++] & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if (b < 0xe0) {
+                chars[n++] = (char) (((b & 0x1f) << 6) | (names[i++] & 0x3f));
+            } else {
+                chars[n++] = (char) (((b & 0x0f) << 12) | ((names[i++] & 0x3f) << 6) | (names[i++] & 0x3f));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    long size(int row) {
+        return sizes[row];
+    }
+
+    long mtime(int row) {
+        return mtimes[row];
+    }
+
+    byte type(int row) {
+        return types[row];
+    }
+
+    /** Append the path of <tt>row</tt> without creating views of its parents. */
+    void appendPath(int row, StringBuilder sb) {
+        int parent = parents[row];
+        if (parent < 0) {
+            base.appendPath(sb);
+        } else {
+            appendPath(parent, sb);
+        }
+        sb.append('/').append(name(row));
+    }
+}
@@ -0,0 +1,226 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+* Sends the same files to several receivers at once ("-h host1,host2,...").
+*
+* The trees are scanned and every file is read from disk only once. Each
+* entry is announced to all receivers before their answers are read, so a
+* file costs one round trip, not one per receiver. The blocks of a file
+* are written to the receivers that want it by one thread per receiver
+* while the next block is read; with "-z", each of these threads
+* compresses for its own connection. The slowest receiver sets the pace.
+*
+* A receiver whose connection fails is dropped, the others go on.
+*
+* For many receivers, "-chain" is usually the better choice: the sender
+* uploads once and each receiver forwards to the next (see
+* {@link Destination}).
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class FanOutSender {
+
+    private final List<String> targets;
+    private final TransferConfig config;
+
+    /** @param targets - "host:port" of each receiver */
+    FanOutSender(List<String> targets, TransferConfig config) {
+        this.targets = targets;
+        this.config = config;
+    }
+
+    /** Returns whether every receiver got every file intact. */
+    boolean send(List<File> roots) {
+        long startTime = System.currentTimeMillis();
+        List<Destination> destinations = new ArrayList<Destination>();
+        for (String target : targets) {
+            Destination d = Destination.open(target, null, config.overwrite, config);
+            if (d != null) {
+                destinations.add(d);
+            }
+        }
+        if (destinations.isEmpty()) {
+            return false;
+        }
+        final AtomicInteger threadNo = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(destinations.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Fan-" + threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        boolean ok = destinations.size() == targets.size();
+        boolean broken = false;
+        try {
+            for (File rootDir : roots) {
+                List<FileEntry> dirTree = new ArrayList<FileEntry>();
+                FileEntry rootEntry;
+                try {
+                    rootEntry = FileEntry.stat(null, rootDir.getName(), rootDir.toPath());
+                } catch (IOException ioe) {
+                    Xfer2.log(config, Level.SEVERE, "File not found: " + rootDir.getAbsolutePath(), ioe);
+                    continue;
+                }
+                if (rootEntry.isDirectory()) {
+                    dirTree = DirTree.getEntries(rootEntry, rootDir);
+                } else {
+                    dirTree.add(rootEntry);
+                }
+                File rootParent = rootDir.getAbsoluteFile().getParentFile();
+                for (FileEntry entry : dirTree) {
+                    ok &= sendEntry(entry, rootParent, destinations, writers);
+                }
+            }
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Fan-out broken off", ioe);
+            ok = false;
+            broken = true;
+        } finally {
+            writers.shutdownNow();
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        for (Destination d : destinations) {
+            TransferResult result = d.getResult();
+            if (result == null) {
+                ok = false;
+                Xfer2.log(config, Level.SEVERE, d + ": lost");
+                continue;
+            }
+            ok &= result.isOk();
+            Xfer2.log(config, Level.INFO, d + ": " + result);
+            if (broken) {
+                // in the middle of a file, the receivers can't make sense of anything more
+                d.close();
+            } else {
+                d.finish();
+            }
+        }
+        Xfer2.log(config, Level.INFO, "Fan-out to " + targets.size() + " receivers took " + millis + " ms");
+        return ok;
+    }
+
+    /** Returns false if a receiver that wanted the entry didn't get it intact. */
+    private boolean sendEntry(FileEntry entry, File rootParent, List<Destination> destinations,
+            ExecutorService writers) throws IOException {
+        File sendFile = entry.toFile(rootParent);
+        InputStream in = null;
+        if (entry.isFile()) {
+            try {
+                in = new BufferedInputStream(new FileInputStream(sendFile));
+            } catch (FileNotFoundException fnfe) {
+                Xfer2.log(config, Level.SEVERE, "File not found: " + sendFile.getAbsolutePath(), fnfe);
+                return true;
+            }
+        } else if (!entry.isDirectory()) {
+            Xfer2.log(config, Level.WARNING, "Not a regular file, not sending: " + sendFile.getAbsolutePath());
+            return true;
+        }
+        try {
+            String path = entry.getPath();
+            long size = entry.getSize();
+            // all announcements first, then all answers: one round trip for everybody
+            for (Destination d : destinations) {
+                d.announce(path, entry.getLastModified(), size);
+            }
+            List<Destination> wanting = new ArrayList<Destination>();
+            for (Destination d : destinations) {
+                if (d.readAnswer()) {
+                    wanting.add(d);
+                }
+            }
+            if (in == null || wanting.isEmpty()) {
+                return true;
+            }
+            Xfer2.log(config, Level.INFO, "Sending " + sendFile + " to " + wanting);
+
+            MessageDigest digest = null;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                Xfer2.log(config, Level.WARNING, "MD5 not available");
+            }
+            // one block is read while the other is written
+            byte[] reading = BufferPool.take(config.blocksize);
+            byte[] writing = BufferPool.take(config.blocksize);
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            long sent = 0;
+            int len;
+            while (sent < size && (len = in.read(reading, 0, (int) Math.min(reading.length, size - sent))) != -1) {
+                if (digest != null) digest.update(reading, 0, len);
+                await(pending);
+                byte[] block = reading;
+                reading = writing;
+                writing = block;
+                write(wanting, block, len, writers, pending);
+                sent += len;
+            }
+            await(pending);
+            // only now no writer uses them any more
+            BufferPool.give(reading);
+            BufferPool.give(writing);
+            if (sent < size) {
+                // the receivers rely on the size, nothing sensible can follow
+                throw new IOException("File shrank while sending: " + sendFile.getAbsolutePath());
+            }
+            if (Metrics.enabled) Metrics.bytesOut.add(sent * wanting.size());
+
+            String md5 = Xfer2.Receiver.createMd5(digest);
+            for (Destination d : wanting) {
+                d.sendChecksum(md5);
+            }
+            boolean ok = true;
+            for (Destination d : wanting) {
+                ok &= d.readChecksum() == null;
+            }
+            return ok;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException ioe1){}
+        }
+    }
+
+    private static void write(List<Destination> wanting, final byte[] block, final int len,
+            ExecutorService writers, List<Future<?>> pending) {
+        for (final Destination d : wanting) {
+            pending.add(writers.submit(new Runnable() {
+                public void run() {
+                    d.write(block, 0, len);
+                }
+            }));
+        }
+    }
+
+    private static void await(List<Future<?>> pending) throws IOException {
+        try {
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Writing failed", ee.getCause());
+        } finally {
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package xfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+* Compact description of one file or directory found while scanning a tree.
+*
+* All attributes are filled from a single <tt>Files.readAttributes()</tt>
+* call. The path is not stored as a whole: every entry only knows its own
+* name and the entry of its parent directory, so the common prefixes of a
+* large tree are shared (a path trie). The entries of a scan live in the
+* columns of an {@link EntryList}, an entry of a scan is just a view of
+* one row; roots and single entries keep their attributes themselves.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class FileEntry {
+
+    static final byte FILE = 0;
+    static final byte DIRECTORY = 1;
+    static final byte OTHER = 2;
+
+    /** scanned entry: its table and row, <tt>null</tt> for a single entry */
+    private final EntryList list;
+    private final int row;
+
+    private final FileEntry parent;
+    private final String name;
+    private final long size;
+    private final long mtime;
+    private final byte type;
+
+    FileEntry(FileEntry parent, String name, long size, long mtime, byte type) {
+        this.list = null;
+        this.row = -1;
+        this.parent = parent;
+        this.name = name;
+        this.size = size;
+        this.mtime = mtime;
+        this.type = type;
+    }
+
+    FileEntry(EntryList list, int row) {
+        this.list = list;
+        this.row = row;
+        this.parent = null;
+        this.name = null;
+        this.size = 0;
+        this.mtime = 0;
+        this.type = OTHER;
+    }
+
+    /**
+    * Stat a file once and create its entry.
+    *
+    * @param parent - entry of the parent directory, or <tt>null</tt> for a root
+    * @param name - name of the entry below <tt>parent</tt>
+    * @param path - the file system path to stat
+    */
+    static FileEntry stat(FileEntry parent, String name, Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        byte type = attrs.isRegularFile() ? FILE : attrs.isDirectory() ? DIRECTORY : OTHER;
+        return new FileEntry(parent, name, attrs.size(), attrs.lastModifiedTime().toMillis(), type);
+    }
+
+    FileEntry getParent() {
+        return list == null ? parent : list.parent(row);
+    }
+
+    String getName() {
+        return list == null ? name : list.name(row);
+    }
+
+    /** Size in bytes, -1 for directories (as expected by the transfer protocol). */
+    long getSize() {
+        return getType() == DIRECTORY ? -1 : list == null ? size : list.size(row);
+    }
+
+    long getLastModified() {
+        return list == null ? mtime : list.mtime(row);
+    }
+
+    byte getType() {
+        return list == null ? type : list.type(row);
+    }
+
+    boolean isFile() {
+        return getType() == FILE;
+    }
+
+    boolean isDirectory() {
+        return getType() == DIRECTORY;
+    }
+
+    /** Path relative to the scanned root's parent, always with '/' as separator. */
+    String getPath() {
+        if (list == null && parent == null) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(64);
+        appendPath(sb);
+        return sb.toString();
+    }
+
+    void appendPath(StringBuilder sb) {
+        if (list != null) {
+            list.appendPath(row, sb);
+            return;
+        }
+        if (parent != null) {
+            parent.appendPath(sb);
+            sb.append('/');
+        }
+        sb.append(name);
+    }
+
+    /** The file this entry describes, resolved against the parent of the scanned root. */
+    File toFile(File base) {
+        return new File(base, getPath());
+    }
+
+    /** Views of the same row are equal, single entries only to themselves. */
+    @Override
+    public boolean equals(Object o) {
+        if (list == null || !(o instanceof FileEntry)) {
+            return this == o;
+        }
+        FileEntry other = (FileEntry) o;
+        return list == other.list && row == other.row;
+    }
+
+    @Override
+    public int hashCode() {
+        return list == null ? System.identityHashCode(this) : System.identityHashCode(list) * 31 + row;
+    }
+
+    @Override
+    public String toString() {
+        return getPath();
+    }
+}
@@ -0,0 +1,205 @@
+package xfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+* Measurement of the link between sender and receiver for "-B auto".
+*
+* Runs right after the handshake if the receiver accepted the "probe"
+* feature. The sender measures the round trip time with a few pings and
+* the throughput with bulk transfers of growing size (until one takes
+* long enough to be meaningful), then picks
+* <ul>
+* <li>socket buffers of twice the bandwidth-delay product, so a full
+*     window is always in flight, and</li>
+* <li>a block size (copy buffer and compression block) of a quarter of
+*     the bandwidth-delay product, at least one millisecond worth of data,</li>
+* </ul>
+* and tells the receiver, which uses the same sizes for the session.
+* A connected socket's buffers are only ever raised: a receive buffer above
+* 64 KiB only widens the window if it is set before the connection is made,
+* so the sender remembers the size per receiver and sets it before its next
+* connect.
+* Messages are NUL terminated strings like the rest of the protocol:
+* <pre>
+*   sender: ping              receiver: pong     (repeated)
+*   sender: bulk, n, n bytes  receiver: done     (repeated)
+*   sender: tune, "blocksize,buffersize"
+* </pre>
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class LinkProbe {
+
+    private static final String PING = "ping";
+    private static final String PONG = "pong";
+    private static final String BULK = "bulk";
+    private static final String DONE = "done";
+    private static final String TUNE = "tune";
+
+    private static final int PINGS = 5;
+    private static final int FIRST_BULK = 256 * 1024;
+    private static final int MAX_BULK = 64 * 1024 * 1024;
+    /** a bulk transfer taking this long (ns) gives a usable throughput */
+    private static final long MIN_BULK_NANOS = 200L * 1000 * 1000;
+
+    static final int MIN_BLOCKSIZE = 16 * 1024;
+    static final int MAX_BLOCKSIZE = 1024 * 1024;
+    static final int MIN_BUFFER = 64 * 1024;
+    static final int MAX_BUFFER = 16 * 1024 * 1024;
+
+    /** buffer size measured for "host:port", used before the next connect */
+    private static final ConcurrentHashMap<String, Integer> measured = new ConcurrentHashMap<String, Integer>();
+
+    /** round trip time in ns */
+    final long rttNanos;
+    /** bytes per second */
+    final double throughput;
+    final int blocksize;
+    final int bufferSize;
+
+    private LinkProbe(long rttNanos, double throughput, int blocksize, int bufferSize) {
+        this.rttNanos = rttNanos;
+        this.throughput = throughput;
+        this.blocksize = blocksize;
+        this.bufferSize = bufferSize;
+    }
+
+    /** Sender: measure the link, choose sizes and tell the receiver. */
+    static LinkProbe measure(InputStream is, OutputStream os, TransferConfig config) throws IOException {
+        long rtt = Long.MAX_VALUE;
+        for (int i = 0; i < PINGS; i++) {
+            long start = System.nanoTime();
+            Xfer2.writeToStream(os, PING);
+            expect(is, PONG);
+            rtt = Math.min(rtt, System.nanoTime() - start);
+        }
+
+        // random data, so that "-z" doesn't make the link look faster than it is
+        byte[] data = new byte[64 * 1024];
+        new Random().nextBytes(data);
+        long size = FIRST_BULK;
+        long elapsed;
+        while (true) {
+            long start = System.nanoTime();
+            Xfer2.writeToStream(os, BULK, false);
+            Xfer2.writeToStream(os, String.valueOf(size), false);
+            for (long sent = 0; sent < size; sent += data.length) {
+                os.write(data, 0, (int) Math.min(data.length, size - sent));
+            }
+            os.flush();
+            expect(is, DONE);
+            elapsed = System.nanoTime() - start;
+            if (elapsed >= MIN_BULK_NANOS || size >= MAX_BULK) {
+                break;
+            }
+            size *= 4;
+        }
+        // the bulk transfer includes one round trip for the answer
+        double throughput = size * 1e9 / Math.max(elapsed - rtt, 1000L);
+        double bdp = throughput * rtt / 1e9;
+        int bufferSize = (int) clamp((long) (2 * bdp), MIN_BUFFER, MAX_BUFFER);
+        int blocksize = (int) clamp(Long.highestOneBit((long) Math.max(bdp / 4, throughput / 1000)),
+                MIN_BLOCKSIZE, MAX_BLOCKSIZE);
+        Xfer2.writeToStream(os, TUNE, false);
+        Xfer2.writeToStream(os, blocksize + "," + bufferSize);
+
+        LinkProbe probe = new LinkProbe(rtt, throughput, blocksize, bufferSize);
+        Xfer2.log(config, Level.CONFIG, String.format("Link: rtt %.3f ms, %s, block size %d, socket buffers %d",
+                rtt / 1e6, Xfer2.formatTransferRate(1000.0, (long) throughput), blocksize, bufferSize));
+        return probe;
+    }
+
+    /** Receiver: answer the sender's measurements; returns the sizes it chose. */
+    static LinkProbe answer(InputStream is, OutputStream os, TransferConfig config) throws IOException {
+        byte[] scratch = new byte[64 * 1024];
+        while (true) {
+            String msg = Xfer2.readFromStream(is);
+            if (PING.equals(msg)) {
+                Xfer2.writeToStream(os, PONG);
+            } else if (BULK.equals(msg)) {
+                long size = parse(Xfer2.readFromStream(is));
+                long read = 0;
+                while (read < size) {
+                    int n = is.read(scratch, 0, (int) Math.min(scratch.length, size - read));
+                    if (n == -1) {
+                        throw new IOException("Connection closed during link probe");
+                    }
+                    read += n;
+                }
+                Xfer2.writeToStream(os, DONE);
+            } else if (TUNE.equals(msg)) {
+                String[] sizes = Xfer2.readFromStream(is).split(",");
+                if (sizes.length != 2) {
+                    throw new IOException("Bad link probe result");
+                }
+                int blocksize = (int) clamp(parse(sizes[0]), MIN_BLOCKSIZE, MAX_BLOCKSIZE);
+                int bufferSize = (int) clamp(parse(sizes[1]), MIN_BUFFER, MAX_BUFFER);
+                Xfer2.log(config, Level.CONFIG, "Sender chose block size " + blocksize + ", socket buffers " + bufferSize);
+                return new LinkProbe(0L, 0.0, blocksize, bufferSize);
+            } else {
+                throw new IOException("Unexpected message during link probe: " + msg);
+            }
+        }
+    }
+
+    /**
+    * Sender: size the buffers of an unconnected socket to what was measured
+    * on the last connection to <tt>host:port</tt>, unless given explicitly
+    * with -sndbuf/-rcvbuf.
+    */
+    static void beforeConnect(Socket socket, String host, int port, TransferConfig config) {
+        Integer size = measured.get(host + ":" + port);
+        if (size != null) {
+            raise(socket, size.intValue(), config);
+        }
+    }
+
+    /** Sender: remember the buffer size for the next connection to <tt>host:port</tt>. */
+    void remember(String host, int port) {
+        measured.put(host + ":" + port, bufferSize);
+    }
+
+    /**
+    * Raise the socket buffers to the measured size, unless given explicitly
+    * with -sndbuf/-rcvbuf; buffers the kernel already made larger are kept.
+    */
+    void applyTo(Socket socket, TransferConfig config) {
+        raise(socket, bufferSize, config);
+    }
+
+    private static void raise(Socket socket, int size, TransferConfig config) {
+        try {
+            if (config.sndBuf <= 0 && socket.getSendBufferSize() < size) socket.setSendBufferSize(size);
+            if (config.rcvBuf <= 0 && socket.getReceiveBufferSize() < size) socket.setReceiveBufferSize(size);
+        } catch (SocketException se) {
+            Xfer2.log(config, Level.WARNING, "Could not set socket buffers", se);
+        }
+    }
+
+    private static void expect(InputStream is, String expected) throws IOException {
+        String msg = Xfer2.readFromStream(is);
+        if (!expected.equals(msg)) {
+            throw new IOException("Link probe: expected " + expected + ", got " + msg);
+        }
+    }
+
+    private static long parse(String s) throws IOException {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad number in link probe: " + s);
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
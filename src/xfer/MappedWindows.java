@@ -0,0 +1,205 @@
+package xfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+
+/**
+* Memory mapped I/O for large files ("-mmap[&lt;window&gt;]" option).
+*
+* A file of at least one window is mapped in consecutive windows of the
+* given size, each unmapped explicitly before the next is mapped, so a
+* transfer never holds more than one window of address space and the
+* pages of finished windows can be dropped from the page cache like
+* those of any written file.
+*
+* The sender hashes each window from the mapping and, if the connection
+* is neither compressed nor throttled, writes it to the socket channel
+* directly, so the content doesn't pass through the heap at all. The
+* receiver sizes the file first and fills its windows from the socket
+* stream; the stream keeps its buffer, as the protocol's messages are
+* read through it as well.
+*
+* A page that can't be read or written, because the file was truncated
+* behind a mapping or the disk is full below a sparse one, surfaces as
+* an InternalError on access; both directions turn it into an
+* IOException. The source's length is checked before each window is
+* mapped and the receiver checks the free space before sizing its file.
+*
+* Unmapping needs sun.misc.Unsafe.invokeCleaner(); where it isn't
+* available, windows are left to the garbage collector.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class MappedWindows {
+
+    static final long DEFAULT_WINDOW = 64L * 1024 * 1024;
+    /** a mapping's size is an int */
+    static final long MAX_WINDOW = 1024L * 1024 * 1024;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            Xfer2.log(Level.FINE, "Can't unmap explicitly: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final long size;
+    private final long window;
+    private long position = 0L;
+    private MappedByteBuffer current = null;
+
+    /** @param window - bytes per mapping, at most {@link #MAX_WINDOW} */
+    MappedWindows(FileChannel channel, FileChannel.MapMode mode, long size, long window) {
+        this.channel = channel;
+        this.mode = mode;
+        this.size = size;
+        this.window = Math.min(window, MAX_WINDOW);
+    }
+
+    /** Unmap the current window and map the next one; <tt>null</tt> after the last. */
+    MappedByteBuffer next() throws IOException {
+        close();
+        if (position >= size) {
+            return null;
+        }
+        long length = Math.min(window, size - position);
+        if (mode == FileChannel.MapMode.READ_ONLY && channel.size() < position + length) {
+            throw new EOFException("Only " + channel.size() + " of " + size + " bytes left");
+        }
+        current = channel.map(mode, position, length);
+        position += length;
+        return current;
+    }
+
+    /** Unmap the current window. */
+    void close() {
+        if (current != null) {
+            unmap(current);
+            current = null;
+        }
+    }
+
+    /** Release a mapping now instead of when it is collected; it must not be used afterwards. */
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            Xfer2.log(Level.FINE, "Could not unmap: " + e);
+        }
+    }
+
+    /**
+    * Sender: send <tt>size</tt> bytes of <tt>file</tt> window by window.
+    *
+    * @param socket - channel of the connection if <tt>rcvos</tt> writes to
+    *        it unchanged, <tt>null</tt>: copy through <tt>buf</tt> to <tt>rcvos</tt>
+    * @param digest - md5 of the whole file, updated here
+    */
+    static void send(File file, long size, long window, MessageDigest digest, OutputStream rcvos,
+            WritableByteChannel socket, byte[] buf) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < size) {
+                throw new IOException("File shrank while sending: " + file.getAbsolutePath());
+            }
+            MappedWindows windows = new MappedWindows(in.getChannel(), FileChannel.MapMode.READ_ONLY, size, window);
+            try {
+                // what is buffered must go first
+                if (socket != null) rcvos.flush();
+                MappedByteBuffer w;
+                while ((w = windows.next()) != null) {
+                    if (digest != null) digest.update(w.duplicate());
+                    if (socket != null) {
+                        while (w.hasRemaining()) {
+                            socket.write(w);
+                        }
+                    } else {
+                        while (w.hasRemaining()) {
+                            int n = Math.min(buf.length, w.remaining());
+                            w.get(buf, 0, n);
+                            rcvos.write(buf, 0, n);
+                        }
+                    }
+                    if (Metrics.enabled) Metrics.bytesOut.add(w.limit());
+                }
+            } catch (EOFException eofe) {
+                throw new IOException("File shrank while sending: " + file.getAbsolutePath(), eofe);
+            } catch (InternalError ie) {
+                throw new IOException("File shrank while sending: " + file.getAbsolutePath(), ie);
+            } finally {
+                windows.close();
+            }
+        } finally {
+            try { in.close(); } catch (IOException ioe1){}
+        }
+    }
+
+    /**
+    * Receiver: read <tt>size</tt> bytes of content into <tt>out</tt>
+    * window by window.
+    *
+    * @param file - the file <tt>out</tt> writes, to check the free space
+    * @param digest - md5 of the whole file, updated here
+    */
+    static void receive(InputStream sendIs, File file, RandomAccessFile out, long size, long window, byte[] buf,
+            MessageDigest digest) throws IOException {
+        out.setLength(0);
+        long free = file.getUsableSpace();
+        if (free < size) {
+            throw new IOException("Only " + free + " bytes free for " + size + " bytes of "
+                    + file.getAbsolutePath());
+        }
+        out.setLength(size);
+        MappedWindows windows = new MappedWindows(out.getChannel(), FileChannel.MapMode.READ_WRITE, size, window);
+        try {
+            MappedByteBuffer w;
+            while ((w = windows.next()) != null) {
+                while (w.hasRemaining()) {
+                    int n = sendIs.read(buf, 0, Math.min(buf.length, w.remaining()));
+                    if (n == -1) {
+                        throw new EOFException("Connection closed after " + (windows.position - w.remaining())
+                                + " of " + size + " bytes");
+                    }
+                    w.put(buf, 0, n);
+                    if (Metrics.enabled) Metrics.bytesIn.add(n);
+                }
+                if (digest != null) {
+                    w.flip();
+                    digest.update(w);
+                }
+            }
+        } catch (InternalError ie) {
+            throw new IOException("Could not write " + file.getAbsolutePath() + ", disk full?", ie);
+        } finally {
+            windows.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package xfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+* Live transfer metrics of this process ("-metrics" option).
+*
+* Counters are {@link LongAdder}s and histograms are arrays of them, so
+* the transfer threads never block on each other when recording. Timings
+* and the byte counters updated per block are only recorded while
+* {@link #enabled} is set; the per-file and per-session counters always
+* run.
+* The values can be read through JMX (<tt>xfer:type=Metrics</tt>) and as
+* plain text in the Prometheus exposition format from
+* <tt>http://127.0.0.1:&lt;port&gt;/metrics</tt>.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class Metrics implements MetricsMBean {
+
+    /** Take timings for the histograms and count bytes. */
+    static boolean enabled = false;
+
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder filesSent = new LongAdder();
+    static final LongAdder filesReceived = new LongAdder();
+    static final LongAdder activeSessions = new LongAdder();
+    static final LongAdder sessions = new LongAdder();
+    /** uncompressed and compressed size of all compressed blocks, both directions */
+    static final LongAdder rawBytes = new LongAdder();
+    static final LongAdder compressedBytes = new LongAdder();
+    /** buffers the {@link BufferPool} had to allocate, flat once the sessions run */
+    static final LongAdder buffersAllocated = new LongAdder();
+
+    static final Histogram fileOpen = new Histogram("xfer_file_open_seconds", "Time to open a file for reading or writing");
+    static final Histogram handshake = new Histogram("xfer_handshake_seconds", "Time from connect until the receiver's version arrived");
+    static final Histogram deflate = new Histogram("xfer_deflate_seconds", "Time to compress one block");
+    static final Histogram inflate = new Histogram("xfer_inflate_seconds", "Time to decompress one block");
+    static final Histogram digest = new Histogram("xfer_digest_seconds", "Time spent computing the checksum of one file");
+
+    private static final Metrics instance = new Metrics();
+    private static HttpServer server = null;
+
+    /** Files per second between the last two samples. */
+    private long rateSampleTime = System.nanoTime();
+    private long rateSampleFiles = 0L;
+    private double filesPerSecond = 0.0;
+
+    private Metrics() {
+    }
+
+    /**
+    * Start recording timings, register the MBean and serve the text
+    * format on the loopback interface.
+    *
+    * @param port - HTTP port, 0 for JMX only
+    * @param config - whose log level applies to the messages of starting
+    */
+    static synchronized void start(int port, TransferConfig config) {
+        enabled = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("xfer:type=Metrics"));
+        } catch (Exception e) {
+            Xfer2.log(config, Level.WARNING, "Could not register metrics MBean", e);
+        }
+        if (port <= 0 || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Could not serve metrics on port " + port, ioe);
+            return;
+        }
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = format().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        Thread serverThread = new Thread("Metrics") {
+            public void run() {
+                server.start();
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Xfer2.log(config, Level.CONFIG, "Serving metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    /** All metrics in the Prometheus text format. */
+    static String format() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "xfer_bytes_in_total", "File data received", bytesIn.sum());
+        counter(sb, "xfer_bytes_out_total", "File data sent", bytesOut.sum());
+        counter(sb, "xfer_files_sent_total", "Files sent", filesSent.sum());
+        counter(sb, "xfer_files_received_total", "Files received", filesReceived.sum());
+        counter(sb, "xfer_sessions_total", "Connections handled", sessions.sum());
+        gauge(sb, "xfer_active_sessions", "Open connections", activeSessions.sum());
+        counter(sb, "xfer_compression_raw_bytes_total", "Uncompressed size of compressed blocks", rawBytes.sum());
+        counter(sb, "xfer_compression_compressed_bytes_total", "Compressed size of compressed blocks", compressedBytes.sum());
+        counter(sb, "xfer_buffers_allocated_total", "I/O buffers allocated instead of reused", buffersAllocated.sum());
+        fileOpen.format(sb);
+        handshake.format(sb);
+        deflate.format(sb);
+        inflate.format(sb);
+        digest.format(sb);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+    * Lock free histogram of durations with power of two buckets
+    * (bucket i holds durations below 2^i ns).
+    */
+    static final class Histogram {
+        /** buckets below 2^10 ns (~1 microsecond) are not worth printing */
+        private static final int FIRST_BUCKET = 10;
+
+        private final String name;
+        private final String help;
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Record a duration in nanoseconds. */
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        /** Record the time since <tt>startNanos</tt> (from System.nanoTime()). */
+        void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double meanMicros() {
+            long c = count.sum();
+            return c == 0 ? 0.0 : sum.sum() / 1000.0 / c;
+        }
+
+        long maxMicros() {
+            return max.get() / 1000;
+        }
+
+        void format(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            int last = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i].sum() > 0) {
+                    last = i;
+                }
+            }
+            long cumulative = 0;
+            for (int i = 0; i < FIRST_BUCKET; i++) {
+                cumulative += buckets[i].sum();
+            }
+            for (int i = FIRST_BUCKET; i <= last; i++) {
+                cumulative += buckets[i].sum();
+                sb.append(name).append("_bucket{le=\"")
+                    .append(String.format(Locale.ROOT, "%.9f", Math.pow(2, i) / 1e9))
+                    .append("\"} ").append(cumulative).append('\n');
+            }
+            long c = count.sum();
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(c).append('\n');
+            sb.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", sum.sum() / 1e9)).append('\n');
+            sb.append(name).append("_count ").append(c).append('\n');
+        }
+    }
+
+    // MBean
+
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public long getFilesSent() { return filesSent.sum(); }
+    public long getFilesReceived() { return filesReceived.sum(); }
+    public long getActiveSessions() { return activeSessions.sum(); }
+    public long getSessions() { return sessions.sum(); }
+    public long getBuffersAllocated() { return buffersAllocated.sum(); }
+
+    public synchronized double getFilesPerSecond() {
+        long now = System.nanoTime();
+        long files = filesSent.sum() + filesReceived.sum();
+        // at most one new sample per second, so frequent polls still see a rate
+        if (now - rateSampleTime >= 1000000000L) {
+            filesPerSecond = (files - rateSampleFiles) * 1e9 / (now - rateSampleTime);
+            rateSampleTime = now;
+            rateSampleFiles = files;
+        }
+        return filesPerSecond;
+    }
+
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.sum();
+        return compressed == 0 ? 0.0 : (double) rawBytes.sum() / compressed;
+    }
+
+    public double getFileOpenMeanMicros() { return fileOpen.meanMicros(); }
+    public double getHandshakeMeanMicros() { return handshake.meanMicros(); }
+    public double getDeflateMeanMicros() { return deflate.meanMicros(); }
+    public double getInflateMeanMicros() { return inflate.meanMicros(); }
+    public double getDigestMeanMicros() { return digest.meanMicros(); }
+    public long getFileOpenMaxMicros() { return fileOpen.maxMicros(); }
+    public long getHandshakeMaxMicros() { return handshake.maxMicros(); }
+    public long getDeflateMaxMicros() { return deflate.maxMicros(); }
+    public long getInflateMaxMicros() { return inflate.maxMicros(); }
+    public long getDigestMaxMicros() { return digest.maxMicros(); }
+}
@@ -0,0 +1,28 @@
+package xfer;
+
+/**
+* JMX view of {@link Metrics}. Times are in microseconds.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public interface MetricsMBean {
+    long getBytesIn();
+    long getBytesOut();
+    long getFilesSent();
+    long getFilesReceived();
+    double getFilesPerSecond();
+    long getActiveSessions();
+    long getSessions();
+    long getBuffersAllocated();
+    double getCompressionRatio();
+    double getFileOpenMeanMicros();
+    double getHandshakeMeanMicros();
+    double getDeflateMeanMicros();
+    double getInflateMeanMicros();
+    double getDigestMeanMicros();
+    long getFileOpenMaxMicros();
+    long getHandshakeMaxMicros();
+    long getDeflateMaxMicros();
+    long getInflateMaxMicros();
+    long getDigestMaxMicros();
+}
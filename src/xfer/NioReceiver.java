@@ -0,0 +1,956 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+* Event driven receiver for many concurrent senders ("-nio" option).
+*
+* Speaks the same protocol as {@link Xfer2.Receiver}, but instead of one
+* blocking thread per connection a few I/O threads multiplex all connections
+* with a {@link Selector}. Every connection is a small state machine that
+* parses the protocol from a direct {@link ByteBuffer}. Everything that
+* touches the file system (existence checks, mkdirs, writing, closing) runs
+* in a worker pool; the tasks of one connection are chained so they execute
+* in order. A connection stops reading while too much of its data waits to
+* be written to disk. Connections kept open between jobs ("pool") are closed
+* when idle for {@link TransferConfig#getPoolIdleMillis()} ms.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public class NioReceiver extends Thread {
+
+    /** Stop reading from a connection while this many bytes wait to be written. */
+    private static final long MAX_PENDING = 4L * 1024 * 1024;
+
+    private enum State { OVERWRITE_FLAG, NAME, MODDATE, SIZE, WAIT_REPLY, BODY, MD5, WAIT_MD5, DONE }
+
+    private ServerSocketChannel serverChannel = null;
+    private static final String[] SUPPORTED_FEATURES = {Xfer2.FEATURE_POOL};
+    private final File targetDir;
+    private final int port;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop = 0;
+    private volatile boolean closed = false;
+    private final TransferConfig config;
+
+    /** Listens on <tt>port</tt> right away; call {@link #start()} to accept senders. */
+    public NioReceiver(int port, File targetDir, TransferConfig config) throws IOException {
+        this.port = port;
+        this.targetDir = targetDir;
+        this.config = config;
+
+        if (targetDir.exists()) {
+            if (! targetDir.isDirectory()){
+                throw new IOException("Target directory " + targetDir.getAbsolutePath() + " is an existing file!");
+            }
+        }
+
+        this.setName("Rcv");
+        int ioThreads = Math.max(1, config.ioThreads);
+        loops = new IoLoop[ioThreads];
+        Xfer2.log(config, Level.FINE, "Registering server socket on port " + port + " with " + ioThreads + " I/O threads");
+        Xfer2.log(config, Level.FINE, "Writing data to " + targetDir.getAbsolutePath());
+        serverChannel = ServerSocketChannel.open();
+        try {
+            // must be set before bind() to allow large TCP windows on accepted sockets
+            if (config.rcvBuf > 0) serverChannel.socket().setReceiveBufferSize(config.rcvBuf);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(i);
+            }
+        } catch (IOException ioe){
+            for (IoLoop loop : loops) {
+                if (loop != null) loop.selector.close();
+            }
+            serverChannel.close();
+            throw ioe;
+        }
+        final AtomicInteger workerNo = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Wrk-" + workerNo.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /** The port actually listened on, e.g. if constructed with port 0. */
+    int getLocalPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void run() {
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (AsynchronousCloseException ace) {
+                Xfer2.log(config, Level.FINE, "Server channel closed because of shutdown");
+                return;
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.SEVERE, "Accept failed: "+port+ "  ", ioe);
+                return;
+            }
+            try {
+                if (!Xfer2.isIpAddressAllowed(channel.socket().getInetAddress(), config)) {
+                    channel.close();
+                    continue;
+                }
+                Xfer2.log(config, Level.FINE, "Connect from " + channel.socket().getInetAddress().getHostAddress());
+                Xfer2.configureSocket(channel.socket(), config);
+                channel.configureBlocking(false);
+                IoLoop loop = loops[nextLoop++ % loops.length];
+                final Session session = new Session(channel, loop);
+                loop.execute(new Runnable() {
+                    public void run() {
+                        session.start();
+                    }
+                });
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.WARNING, "Could not set up connection", ioe);
+                try { channel.close(); } catch (IOException ioe1){}
+            }
+        }
+    }
+
+    void shutdown(){
+        closed = true;
+        Xfer2.log(config, Level.FINE, "Closing server socket");
+        try {
+            serverChannel.close();
+        } catch (IOException ioe){
+            Xfer2.log(config, Level.SEVERE, "Shutdown not successful: ", ioe);
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    /** One selector thread serving many connections. */
+    private final class IoLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        /** connections waiting for bandwidth */
+        private final List<Session> throttled = new ArrayList<Session>();
+        /** connections that may stay open idle between jobs */
+        private final List<Session> pooled = new ArrayList<Session>();
+
+        IoLoop(int i) throws IOException {
+            selector = Selector.open();
+            setName("Nio-" + i);
+            setDaemon(true);
+        }
+
+        /** Run <tt>task</tt> in this loop's thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select(selectTimeout());
+                } catch (IOException ioe) {
+                    Xfer2.log(config, Level.SEVERE, "Select failed", ioe);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!throttled.isEmpty()) {
+                    long now = System.nanoTime();
+                    Iterator<Session> ts = throttled.iterator();
+                    while (ts.hasNext()) {
+                        Session session = ts.next();
+                        if (now - session.resumeAt >= 0) {
+                            ts.remove();
+                            session.unthrottle();
+                        }
+                    }
+                }
+                if (!pooled.isEmpty()) {
+                    closeIdle();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            session.writable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.readable();
+                        }
+                    } catch (CancelledKeyException cke) {
+                        session.close();
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).close();
+            }
+            try { selector.close(); } catch (IOException ioe1){}
+        }
+
+        /** Close the pooled connections idle between jobs for too long. */
+        private void closeIdle() {
+            long now = System.nanoTime();
+            Iterator<Session> ps = pooled.iterator();
+            while (ps.hasNext()) {
+                Session session = ps.next();
+                if (session.isClosed) {
+                    ps.remove();
+                } else if (session.isIdle() && now - session.lastActive >= config.poolIdleMillis * 1000000L) {
+                    ps.remove();
+                    Xfer2.log(config, Level.FINE, "Closing connection idle for " + config.poolIdleMillis + " ms");
+                    session.close();
+                }
+            }
+        }
+
+        /** Milliseconds to wait for events: until a throttled connection may read or idle ones are checked. */
+        private long selectTimeout() {
+            long timeout = throttleTimeout();
+            if (!pooled.isEmpty()) {
+                long check = Math.max(1L, config.poolIdleMillis / 4);
+                timeout = timeout == 0 ? check : Math.min(timeout, check);
+            }
+            return timeout;
+        }
+
+        /** Milliseconds until the next throttled connection may read again, 0 = none. */
+        private long throttleTimeout() {
+            if (throttled.isEmpty()) {
+                return 0L;
+            }
+            long now = System.nanoTime();
+            long min = Long.MAX_VALUE;
+            for (Session session : throttled) {
+                min = Math.min(min, session.resumeAt - now);
+            }
+            return Math.max(1L, min / 1000000L);
+        }
+    }
+
+    /**
+    * Protocol state of one connection. All fields except the file related
+    * ones are only touched by the connection's I/O thread; the file related
+    * ones are only touched by its (sequential) worker tasks. The phase
+    * trace and event of a file are handed to the worker tasks and back as
+    * parameters, the field holds them only while the I/O thread owns them.
+    */
+    private final class Session {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key = null;
+        private ByteBuffer netIn;
+        /** data for the parser: netIn itself, or inflated blocks if compressed */
+        private ByteBuffer plain;
+        private Inflater inflater = null;
+        private Deflater deflater = null;
+        private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+
+        private State state = State.OVERWRITE_FLAG;
+        private final StringBuilder token = new StringBuilder();
+        private boolean thisOverwrite = config.overwrite;
+        private boolean thisCreateCopy = config.createCopy;
+        private File announced = null;
+        private long modDate = 0L;
+        private long fileSize = 0L;
+        private long remaining = 0L;
+        private boolean paused = false;
+        private final BandwidthShaper.Share share;
+        private boolean throttled = false;
+        private long resumeAt = 0L;
+        private boolean closing = false;
+        private boolean isClosed = false;
+        private long transferStartTime = 0L;
+        private long totalRead = 0L;
+        /** System.nanoTime() of the last data read */
+        private long lastActive = System.nanoTime();
+        private final AtomicLong pending = new AtomicLong();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+        // only used by worker tasks
+        private File outFile = null;
+        private FileChannel fileOut = null;
+        private MessageDigest digest = null;
+        private IOException failure = null;
+        private long digestNanos = 0L;
+        private boolean timeDigest = false;
+
+        /** phase timing of the current file, only with -trace; while the I/O thread has it */
+        private PhaseTrace.Record tr = null;
+        private final XferEvents.SessionEvent sessionEvent = new XferEvents.SessionEvent();
+        /** while the I/O thread has it */
+        private XferEvents.FileEvent fileEvent = null;
+
+        Session(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            netIn = BufferPool.takeDirect(Math.max(config.blocksize, 64 * 1024));
+            share = config.shaper == null ? null
+                : config.shaper.register(channel.socket().getInetAddress().getHostAddress());
+            if (config.compress) {
+                inflater = new Inflater();
+                deflater = new Deflater(config.deflaterLevel);
+                plain = ByteBuffer.allocate(0);
+            } else {
+                plain = netIn;
+            }
+        }
+
+        void start() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.WARNING, "Could not register connection", ioe);
+                close();
+                return;
+            }
+            Metrics.sessions.increment();
+            Metrics.activeSessions.increment();
+            sessionEvent.begin();
+            // send my version
+            reply(Xfer2.VERSION);
+        }
+
+        private boolean waiting() {
+            return state == State.WAIT_REPLY || state == State.WAIT_MD5 || state == State.DONE
+                || paused || closing || throttled;
+        }
+
+        /** Between files with nothing buffered or queued, as a pooled connection is between jobs. */
+        private boolean isIdle() {
+            return state == State.NAME && token.length() == 0 && netIn.position() == 0 && outQueue.isEmpty();
+        }
+
+        void readable() {
+            int n;
+            int allowed = netIn.remaining();
+            if (allowed == 0) {
+                // nothing to read into until the parser gets on, so no bandwidth to ask for
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            if (share != null) {
+                allowed = share.tryAcquire(allowed);
+                if (allowed == 0) {
+                    throttled = true;
+                    resumeAt = System.nanoTime() + share.waitNanos();
+                    loop.throttled.add(this);
+                    updateInterest();
+                    return;
+                }
+                netIn.limit(netIn.position() + allowed);
+            }
+            try {
+                n = channel.read(netIn);
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.SEVERE, "echo failed: ", ioe);
+                close();
+                return;
+            } finally {
+                netIn.limit(netIn.capacity());
+            }
+            if (share != null && n < allowed) {
+                share.release(n < 0 ? allowed : allowed - n);
+            }
+            if (n > 0) {
+                lastActive = System.nanoTime();
+            }
+            if (n == -1) {
+                if (state != State.DONE) {
+                    Xfer2.log(config, Level.WARNING, "Connection closed by sender");
+                }
+                close();
+                return;
+            }
+            process();
+        }
+
+        /** Parse whatever is buffered until the protocol has to wait. */
+        private void process() {
+            netIn.flip();
+            try {
+                if (inflater == null) {
+                    parse(netIn);
+                } else {
+                    while (!waiting()) {
+                        if (!plain.hasRemaining() && !inflateBlock()) {
+                            break;
+                        }
+                        parse(plain);
+                    }
+                }
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.SEVERE, "echo failed: ", ioe);
+                netIn.compact();
+                close();
+                return;
+            }
+            netIn.compact();
+            updateInterest();
+        }
+
+        /**
+        * Inflate the next complete block of a compressed stream, see
+        * {@link CompressedBlockInputStream} for the format.
+        */
+        private boolean inflateBlock() throws IOException {
+            if (netIn.remaining() < 8) {
+                return false;
+            }
+            int pos = netIn.position();
+            int inLength = netIn.getInt(pos);
+            int outLength = netIn.getInt(pos + 4);
+            if (netIn.remaining() < 8 + inLength) {
+                if (netIn.capacity() < 8 + inLength) {
+                    // block larger than our buffer
+                    ByteBuffer bigger = BufferPool.takeDirect(8 + inLength);
+                    bigger.put(netIn);
+                    bigger.flip();
+                    BufferPool.giveDirect(netIn);
+                    netIn = bigger;
+                }
+                return false;
+            }
+            ByteBuffer block = netIn.duplicate();
+            block.position(pos + 8).limit(pos + 8 + inLength);
+            if (plain.capacity() < outLength) {
+                BufferPool.give(plain.array());
+                plain = ByteBuffer.wrap(BufferPool.takeAtLeast(outLength));
+            }
+            plain.clear();
+            inflater.setInput(block);
+            long start = Metrics.enabled ? System.nanoTime() : 0L;
+            XferEvents.BlockEvent event = new XferEvents.BlockEvent();
+            event.begin();
+            try {
+                inflater.inflate(plain);
+                event.end();
+                if (Metrics.enabled) {
+                    Metrics.inflate.since(start);
+                    Metrics.rawBytes.add(outLength);
+                    Metrics.compressedBytes.add(inLength);
+                }
+                if (event.shouldCommit()) {
+                    event.compress = false;
+                    event.rawSize = outLength;
+                    event.compressedSize = inLength;
+                    event.commit();
+                }
+            } catch (DataFormatException dfe) {
+                throw new IOException("Data format exception - " + dfe.getMessage());
+            }
+            inflater.reset();
+            plain.flip();
+            netIn.position(pos + 8 + inLength);
+            return true;
+        }
+
+        private void parse(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining() && !waiting()) {
+                if (state == State.BODY) {
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    // the worker gives it back
+                    byte[] chunk = BufferPool.takeAtLeast(n);
+                    buf.get(chunk, 0, n);
+                    remaining -= n;
+                    totalRead += n;
+                    sessionEvent.bytes += n;
+                    if (Metrics.enabled) Metrics.bytesIn.add(n);
+                    write(chunk, n);
+                    if (remaining == 0) {
+                        if (tr != null) tr.mark(PhaseTrace.BODY);
+                        state = State.MD5;
+                    }
+                    continue;
+                }
+                byte b = buf.get();
+                if (b != 0) {
+                    token.append((char) (b & 0xff));
+                    continue;
+                }
+                String t = token.toString();
+                token.setLength(0);
+                onToken(t);
+            }
+        }
+
+        private void onToken(String t) throws IOException {
+            switch (state) {
+                case OVERWRITE_FLAG:
+                    String[] flag = t.split(",");
+                    if (Xfer2.FORCE_OVERWRITE.equals(flag[0])) {
+                        Xfer2.log(config, Level.INFO, "Sender forces overwrite: " + flag[0]);
+                        thisOverwrite = true;
+                        thisCreateCopy = false;
+                    }
+                    if (flag.length > 1) {
+                        // sessions don't block each other here, so they may stay open idle ("pool")
+                        List<String> accepted = Xfer2.acceptFeatures(flag, SUPPORTED_FEATURES);
+                        if (accepted.contains(Xfer2.FEATURE_POOL)) {
+                            loop.pooled.add(this);
+                        }
+                        reply(Xfer2.join(accepted));
+                    }
+                    transferStartTime = System.currentTimeMillis();
+                    state = State.NAME;
+                    break;
+                case NAME:
+                    if (t.length() == 0 || "FINIS.".equals(t)) {
+                        finish();
+                        break;
+                    }
+                    Xfer2.log(config, Level.INFO, "Receiving: " + t);
+                    announced = new File(targetDir, t);
+                    tr = config.trace == null ? null : config.trace.begin("recv", t, 0L);
+                    fileEvent = new XferEvents.FileEvent();
+                    fileEvent.begin();
+                    state = State.MODDATE;
+                    break;
+                case MODDATE:
+                    try {
+                        modDate = Long.parseLong(t);
+                    } catch (NumberFormatException nfe){}
+                    state = State.SIZE;
+                    break;
+                case SIZE:
+                    try {
+                        fileSize = Long.parseLong(t);
+                    } catch (NumberFormatException nfe){}
+                    if (tr != null) {
+                        tr.setSize(fileSize);
+                        tr.mark(PhaseTrace.META);
+                    }
+                    state = State.WAIT_REPLY;
+                    final File file = announced;
+                    final long size = fileSize;
+                    final boolean ow = thisOverwrite;
+                    final boolean cc = thisCreateCopy;
+                    // the worker has the trace until it hands it back
+                    final PhaseTrace.Record sizeTrace = tr;
+                    tr = null;
+                    submit(new Runnable() {
+                        public void run() {
+                            prepare(file, size, ow, cc, sizeTrace);
+                        }
+                    });
+                    break;
+                case MD5:
+                    if (tr != null) tr.mark(PhaseTrace.MD5);
+                    state = State.WAIT_MD5;
+                    final String md5src = t;
+                    final long date = modDate;
+                    final PhaseTrace.Record md5Trace = tr;
+                    final XferEvents.FileEvent event = fileEvent;
+                    tr = null;
+                    fileEvent = null;
+                    submit(new Runnable() {
+                        public void run() {
+                            complete(md5src, date, md5Trace, event);
+                        }
+                    });
+                    break;
+                default:
+                    throw new IOException("Unexpected message in state " + state + ": " + t);
+            }
+        }
+
+        /** Worker: decide what to do with the announced file, like the blocking receiver. */
+        private void prepare(File file, long fileSize, boolean thisOverwrite, boolean thisCreateCopy,
+                final PhaseTrace.Record tr) {
+            String answer;
+            boolean receiveBody = false;
+            boolean stop = false;
+            if (fileSize == -1) {
+                // this is a directory
+                if (file.exists()) {
+                    if (!file.isDirectory()) {
+                        Xfer2.log(config, Level.SEVERE, "Output directory " + file.getAbsolutePath() + " is an existing file");
+                        answer = Xfer2.EXISTS_WONT_OVERWRITE;
+                        stop = true;
+                    } else {
+                        answer = Xfer2.EXISTS_WONT_OVERWRITE;
+                    }
+                } else if (!file.mkdirs()) {
+                    Xfer2.log(config, Level.SEVERE, "  Directories could not be created for " + file.getAbsolutePath());
+                    answer = Xfer2.EXISTS_WONT_OVERWRITE;
+                    stop = true;
+                } else {
+                    Xfer2.log(config, Level.FINE, "  Created "+file.getAbsolutePath());
+                    answer = Xfer2.EXISTS_NOT;
+                }
+            } else if (file.exists() && file.isDirectory()) {
+                Xfer2.log(config, Level.SEVERE, "Output file " + file.getAbsolutePath() + " is an existing directory");
+                answer = Xfer2.EXISTS_WONT_OVERWRITE;
+                stop = true;
+            } else {
+                if (file.exists()) {
+                    if (thisOverwrite) {
+                        Xfer2.log(config, Level.INFO, "Output file " + file.getAbsolutePath() + " exists already, will be overwritten");
+                        answer = Xfer2.EXISTS_WILL_OVERWRITE;
+                        receiveBody = true;
+                    } else if (thisCreateCopy) {
+                        Xfer2.log(config, Level.INFO, "Output file " + file.getAbsolutePath() + " exists already, will create copy");
+                        answer = Xfer2.EXISTS_NOT;
+                        file = new File(file.getParent(), file.getName() + Xfer2.DUPLICATE_SUFFIX);
+                        receiveBody = true;
+                    } else {
+                        Xfer2.log(config, Level.INFO, "Output file " + file.getAbsolutePath() + " exists already, will NOT be overwritten");
+                        answer = Xfer2.EXISTS_WONT_OVERWRITE;
+                    }
+                } else {
+                    answer = Xfer2.EXISTS_NOT;
+                    receiveBody = true;
+                    File parent = file.getAbsoluteFile().getParentFile();
+                    if (!parent.exists() && !parent.mkdirs()) {
+                        Xfer2.log(config, Level.SEVERE, "  Directories could not be created.");
+                        receiveBody = false;
+                        stop = true;
+                    }
+                }
+                if (receiveBody) {
+                    if (tr != null) tr.mark(PhaseTrace.REPLY);
+                    long openStart = Metrics.enabled ? System.nanoTime() : 0L;
+                    try {
+                        fileOut = new FileOutputStream(file).getChannel();
+                        if (Metrics.enabled) Metrics.fileOpen.since(openStart);
+                        if (tr != null) tr.mark(PhaseTrace.OPEN);
+                        digestNanos = 0L;
+                        timeDigest = Metrics.enabled || tr != null;
+                        outFile = file;
+                        failure = null;
+                        if (digest == null) {
+                            digest = MessageDigest.getInstance("MD5");
+                        }
+                        digest.reset();
+                    } catch (FileNotFoundException fnfe) {
+                        Xfer2.log(config, Level.SEVERE, "  Output file could not be created: "+file.getAbsolutePath());
+                        receiveBody = false;
+                        stop = true;
+                    } catch (NoSuchAlgorithmException nsae) {
+                        Xfer2.log(config, Level.WARNING, "MD5 not available", nsae);
+                    }
+                }
+            }
+            final String reply = answer;
+            final boolean body = receiveBody;
+            final boolean stopReceiving = stop;
+            loop.execute(new Runnable() {
+                public void run() {
+                    prepared(reply, body, stopReceiving, tr);
+                }
+            });
+        }
+
+        /** I/O thread: answer the announcement and continue parsing. */
+        private void prepared(String answer, boolean body, boolean stop, PhaseTrace.Record trace) {
+            if (isClosed) {
+                return;
+            }
+            tr = trace;
+            reply(answer);
+            if (tr != null) {
+                tr.mark(PhaseTrace.REPLY);
+                if (!body) {
+                    tr.end();
+                    tr = null;
+                }
+            }
+            if (stop) {
+                state = State.DONE;
+                closing = true;
+                closeIfFlushed();
+                return;
+            }
+            if (body) {
+                remaining = fileSize;
+                state = remaining == 0 ? State.MD5 : State.BODY;
+            } else {
+                state = State.NAME;
+            }
+            process();
+        }
+
+        private void write(final byte[] chunk, final int n) {
+            if (pending.addAndGet(n) > MAX_PENDING) {
+                paused = true;
+            }
+            submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (failure == null && fileOut != null) {
+                            ByteBuffer bb = ByteBuffer.wrap(chunk, 0, n);
+                            while (bb.hasRemaining()) {
+                                fileOut.write(bb);
+                            }
+                            if (digest != null) {
+                                long digestStart = timeDigest ? System.nanoTime() : 0L;
+                                digest.update(chunk, 0, n);
+                                if (timeDigest) digestNanos += System.nanoTime() - digestStart;
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        failure = ioe;
+                    }
+                    BufferPool.give(chunk);
+                    long after = pending.addAndGet(-n);
+                    if (after <= MAX_PENDING / 2 && after + n > MAX_PENDING / 2) {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                resume();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        private void unthrottle() {
+            throttled = false;
+            if (!isClosed) {
+                process();
+            }
+        }
+
+        private void resume() {
+            if (paused && !isClosed && pending.get() <= MAX_PENDING / 2) {
+                paused = false;
+                process();
+            }
+        }
+
+        /** Worker: close the received file and compare checksums. */
+        private void complete(String md5src, long modDate, final PhaseTrace.Record tr,
+                XferEvents.FileEvent fileEvent) {
+            String myMd5 = "";
+            // the body ends when the workers have written the last chunk
+            if (tr != null) {
+                tr.mark(PhaseTrace.BODY);
+                tr.split(PhaseTrace.BODY, PhaseTrace.DIGEST, digestNanos);
+            }
+            try {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            } catch (IOException ioe) {
+                if (failure == null) failure = ioe;
+            }
+            fileOut = null;
+            if (tr != null) tr.mark(PhaseTrace.CLOSE);
+            final boolean failed = failure != null;
+            if (failed) {
+                Xfer2.log(config, Level.SEVERE, "Could not write " + outFile.getAbsolutePath(), failure);
+            } else {
+                Xfer2.Receiver.setModificationDate(outFile, modDate, config);
+                if (tr != null) tr.mark(PhaseTrace.MTIME);
+                myMd5 = Xfer2.Receiver.createMd5(digest);
+                boolean checksumOk = Xfer2.Receiver.checkMd5(config, digest, md5src, myMd5);
+                fileEvent.end();
+                if (fileEvent.shouldCommit()) {
+                    fileEvent.side = "recv";
+                    fileEvent.path = outFile.getPath();
+                    fileEvent.bytes = outFile.length();
+                    fileEvent.checksumOk = checksumOk;
+                    fileEvent.commit();
+                }
+                Metrics.filesReceived.increment();
+                if (Metrics.enabled) Metrics.digest.record(digestNanos);
+            }
+            final String reply = myMd5;
+            loop.execute(new Runnable() {
+                public void run() {
+                    if (isClosed) {
+                        return;
+                    }
+                    if (failed) {
+                        // there is no checksum to answer, the sender learns from the closed connection
+                        close();
+                        return;
+                    }
+                    sessionEvent.files++;
+                    reply(reply);
+                    if (tr != null) {
+                        tr.mark(PhaseTrace.MD5);
+                        tr.end();
+                    }
+                    state = State.NAME;
+                    process();
+                }
+            });
+        }
+
+        private void finish() {
+            state = State.DONE;
+            closing = true;
+            if (totalRead == 0){
+                Xfer2.log(config, Level.WARNING, "Nothing transferred.");
+            } else {
+                double transferTime = System.currentTimeMillis() - transferStartTime;
+                Xfer2.log(config, Level.INFO, String.format ("Received %d bytes in %1.0f ms = %s ", totalRead, transferTime,
+                        Xfer2.formatTransferRate(transferTime, totalRead)));
+            }
+            closeIfFlushed();
+        }
+
+        /** Queue a protocol message, compressed like CompressedBlockOutputStream would. */
+        private void reply(String s) {
+            byte[] bytes = s.getBytes();
+            byte[] msg = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, msg, 0, bytes.length);
+            ByteBuffer out;
+            if (deflater == null) {
+                out = ByteBuffer.wrap(msg, 0, bytes.length + 1);
+            } else {
+                byte[] compressed = new byte[msg.length + 64];
+                deflater.setInput(msg, 0, bytes.length + 1);
+                deflater.finish();
+                int size = deflater.deflate(compressed);
+                deflater.reset();
+                out = ByteBuffer.allocate(8 + size);
+                out.putInt(size).putInt(bytes.length + 1).put(compressed, 0, size);
+                out.flip();
+            }
+            outQueue.add(out);
+            writable();
+        }
+
+        void writable() {
+            try {
+                while (!outQueue.isEmpty()) {
+                    ByteBuffer head = outQueue.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outQueue.poll();
+                }
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.SEVERE, "echo failed: ", ioe);
+                close();
+                return;
+            }
+            if (closing) {
+                closeIfFlushed();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = waiting() ? 0 : SelectionKey.OP_READ;
+            if (!outQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void closeIfFlushed() {
+            if (outQueue.isEmpty()) {
+                close();
+            } else {
+                updateInterest();
+            }
+        }
+
+        /** Run <tt>task</tt> in the worker pool after all earlier tasks of this connection. */
+        private void submit(final Runnable task) {
+            try {
+                tail = tail.thenRunAsync(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (RuntimeException re) {
+                            Xfer2.log(config, Level.SEVERE, "Worker failed", re);
+                        }
+                    }
+                }, workers);
+            } catch (RejectedExecutionException ree) {
+                // shutting down
+            }
+        }
+
+        void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (key != null) {
+                key.cancel();
+                Metrics.activeSessions.decrement();
+                sessionEvent.end();
+                if (sessionEvent.shouldCommit()) {
+                    sessionEvent.side = "recv";
+                    sessionEvent.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+                    sessionEvent.commit();
+                }
+            }
+            if (share != null) {
+                share.close();
+            }
+            try { channel.close(); } catch (IOException ioe1){}
+            // after the handler that closed, which may still touch them
+            loop.execute(new Runnable() {
+                public void run() {
+                    BufferPool.giveDirect(netIn);
+                    if (plain != netIn) BufferPool.give(plain.array());
+                    // native zlib memory, don't wait for the garbage collector
+                    if (inflater != null) inflater.end();
+                    if (deflater != null) deflater.end();
+                }
+            });
+            submit(new Runnable() {
+                public void run() {
+                    try { if (fileOut != null) fileOut.close(); } catch (IOException ioe1){}
+                    fileOut = null;
+                }
+            });
+        }
+    }
+}
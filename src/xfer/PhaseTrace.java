@@ -0,0 +1,307 @@
+package xfer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* Per-file phase timing ("-trace" option).
+*
+* Every file sent or received gets a {@link Record}; the transfer code
+* calls {@link Record#mark} at the end of each phase, which charges the
+* time since the previous mark to that phase. Finished records are written
+* as one JSON object per line:
+* <pre>
+*   {"ts":1760859600123456,"side":"send","file":"dir/a.txt","size":1234,"total":81234,"open":12000,...}
+* </pre>
+* <tt>ts</tt> is the start in microseconds since the epoch, all other
+* times are nanoseconds. Without "-trace" there is no PhaseTrace and the
+* transfer code only tests a null reference.
+*
+* <tt>java -cp xfer.jar xfer.PhaseTrace &lt;trace file&gt;... [-top n]</tt>
+* summarizes trace files: time per phase and the slowest files.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class PhaseTrace {
+
+    /** metadata: sender writes name, date and size; receiver reads them */
+    static final int META = 0;
+    /** the overwrite decision: receiver checks and answers, sender waits for the answer */
+    static final int REPLY = 1;
+    static final int OPEN = 2;
+    /** streaming the file contents, without digest */
+    static final int BODY = 3;
+    static final int DIGEST = 4;
+    /** exchanging the checksums */
+    static final int MD5 = 5;
+    static final int CLOSE = 6;
+    /** setLastModified() on the receiver */
+    static final int MTIME = 7;
+    static final String[] PHASES = {"meta", "reply", "open", "body", "digest", "md5", "close", "mtime"};
+
+    private final File file;
+    private final Writer out;
+
+    private PhaseTrace(File file) throws IOException {
+        this.file = file;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+    }
+
+    /** Append traces to <tt>file</tt>. */
+    public static PhaseTrace open(File file) throws IOException {
+        return new PhaseTrace(file);
+    }
+
+    /** Start timing a file; <tt>side</tt> is "send" or "recv". */
+    Record begin(String side, String name, long size) {
+        return new Record(side, name, size);
+    }
+
+    private synchronized void write(Record r) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"ts\":").append(r.startMicros)
+            .append(",\"side\":\"").append(r.side)
+            .append("\",\"file\":\"");
+        escape(sb, r.name);
+        sb.append("\",\"size\":").append(r.size)
+            .append(",\"total\":").append(r.last - r.start);
+        for (int i = 0; i < PHASES.length; i++) {
+            if (r.phases[i] != 0) {
+                sb.append(",\"").append(PHASES[i]).append("\":").append(r.phases[i]);
+            }
+        }
+        sb.append("}\n");
+        try {
+            out.write(sb.toString());
+        } catch (IOException ioe) {
+            Xfer2.log(Level.WARNING, "Could not write trace to " + file, ioe);
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                Xfer2.log(Level.WARNING, "Could not write trace to " + file, ioe);
+            }
+        }
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /** Timing of one file. Phases can be marked from different threads, one at a time. */
+    public final class Record {
+        private final String side;
+        private final String name;
+        private long size;
+        private final long startMicros = System.currentTimeMillis() * 1000L;
+        private final long start = System.nanoTime();
+        private long last = start;
+        private final long[] phases = new long[PHASES.length];
+        private boolean ended = false;
+
+        private Record(String side, String name, long size) {
+            this.side = side;
+            this.name = name;
+            this.size = size;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        /** Charge the time since the previous mark to <tt>phase</tt>. */
+        void mark(int phase) {
+            long now = System.nanoTime();
+            phases[phase] += now - last;
+            last = now;
+        }
+
+        /** Move <tt>nanos</tt> measured inside phase <tt>from</tt> to phase <tt>to</tt>. */
+        void split(int from, int to, long nanos) {
+            phases[from] -= nanos;
+            phases[to] += nanos;
+        }
+
+        /** The file is done, write the record. */
+        void end() {
+            if (!ended) {
+                ended = true;
+                write(this);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // summarizer
+
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(-?\\d+))");
+
+    /** One parsed trace line. */
+    private static final class Line {
+        String side = "";
+        String file = "";
+        long size;
+        long total;
+        final long[] phases = new long[PHASES.length];
+    }
+
+    private static Line parse(String json) {
+        Line line = new Line();
+        Matcher m = FIELD.matcher(json);
+        while (m.find()) {
+            String key = m.group(1);
+            if (m.group(3) == null) {
+                if ("side".equals(key)) line.side = m.group(2);
+                else if ("file".equals(key)) line.file = m.group(2);
+                continue;
+            }
+            long value = Long.parseLong(m.group(3));
+            if ("size".equals(key)) {
+                line.size = value;
+            } else if ("total".equals(key)) {
+                line.total = value;
+            } else {
+                int phase = Arrays.asList(PHASES).indexOf(key);
+                if (phase >= 0) {
+                    line.phases[phase] = value;
+                }
+            }
+        }
+        return line;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+
+    private static void summarize(String side, List<Line> lines, int top) {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%s: %d files", side, lines.size()));
+        long sumTotal = 0;
+        for (Line l : lines) {
+            sumTotal += l.total;
+        }
+        // phases ordered by their share of the total time
+        final long[] phaseTotals = new long[PHASES.length];
+        for (Line l : lines) {
+            for (int i = 0; i < PHASES.length; i++) {
+                phaseTotals[i] += l.phases[i];
+            }
+        }
+        Integer[] order = new Integer[PHASES.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(phaseTotals[b], phaseTotals[a]);
+            }
+        });
+        System.out.println(String.format(Locale.ROOT, "  %-8s %12s %7s %12s %12s %12s %12s",
+                "phase", "total ms", "share", "mean us", "p50 us", "p99 us", "max us"));
+        for (int i : order) {
+            if (phaseTotals[i] == 0) {
+                continue;
+            }
+            long[] values = new long[lines.size()];
+            for (int l = 0; l < values.length; l++) {
+                values[l] = lines.get(l).phases[i];
+            }
+            Arrays.sort(values);
+            System.out.println(String.format(Locale.ROOT, "  %-8s %12.1f %6.1f%% %12.1f %12.1f %12.1f %12.1f",
+                    PHASES[i], phaseTotals[i] / 1e6, sumTotal == 0 ? 0.0 : 100.0 * phaseTotals[i] / sumTotal,
+                    phaseTotals[i] / 1e3 / values.length, percentile(values, 0.5) / 1e3,
+                    percentile(values, 0.99) / 1e3, values[values.length - 1] / 1e3));
+        }
+        List<Line> slowest = new ArrayList<Line>(lines);
+        Collections.sort(slowest, new Comparator<Line>() {
+            public int compare(Line a, Line b) {
+                return Long.compare(b.total, a.total);
+            }
+        });
+        System.out.println(String.format(Locale.ROOT, "  slowest files:"));
+        for (Line l : slowest.subList(0, Math.min(top, slowest.size()))) {
+            int worst = 0;
+            for (int i = 1; i < PHASES.length; i++) {
+                if (l.phases[i] > l.phases[worst]) worst = i;
+            }
+            System.out.println(String.format(Locale.ROOT, "  %12.1f ms  %-6s %5.1f ms  %12d bytes  %s",
+                    l.total / 1e6, PHASES[worst], l.phases[worst] / 1e6, l.size, l.file));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int top = 10;
+        List<String> files = new ArrayList<String>();
+        for (int a = 0; a < args.length; a++) {
+            if ("-top".equals(args[a]) && a + 1 < args.length) {
+                top = Integer.parseInt(args[++a]);
+            } else {
+                files.add(args[a]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: xfer.PhaseTrace <trace file> [<trace file> ...] [-top <n>]");
+            System.exit(1);
+        }
+        Map<String, List<Line>> bySide = new TreeMap<String, List<Line>>();
+        for (String f : files) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            try {
+                String s;
+                while ((s = in.readLine()) != null) {
+                    if (s.trim().length() == 0) {
+                        continue;
+                    }
+                    Line line = parse(s);
+                    List<Line> list = bySide.get(line.side);
+                    if (list == null) {
+                        list = new ArrayList<Line>();
+                        bySide.put(line.side, list);
+                    }
+                    list.add(line);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        for (Map.Entry<String, List<Line>> side : bySide.entrySet()) {
+            summarize(side.getKey(), side.getValue(), top);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+* On-disk snapshot of the last directory scan, used to speed up rescans.
+*
+* For every scanned directory the snapshot keeps its modification time and
+* its children. When a later scan finds a directory whose mtime hasn't
+* changed, nothing was created, deleted or renamed in it, so the directory
+* doesn't have to be listed again.
+*
+* Only the names are kept. Changing the contents of an existing file does
+* not touch the mtime of its directory, so the names listed are still
+* stat'ed for their current size and mtime, and subdirectories for their
+* changed subtrees.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class ScanSnapshot {
+
+    private static final String MAGIC = "xfer-snapshot-2";
+
+    /**
+    * Directories modified this close (in ms) before the previous scan might
+    * have been changed again within the same timestamp granularity and are
+    * always relisted.
+    */
+    private static final long RACY_WINDOW = 2000L;
+
+    /** Listing of one directory as recorded during a scan. */
+    static final class DirRecord {
+        final long mtime;
+        final String[] names;
+
+        DirRecord(long mtime, int n) {
+            this.mtime = mtime;
+            this.names = new String[n];
+        }
+    }
+
+    private final File file;
+    private final long previousScanTime;
+    private final Map<String, DirRecord> previous;
+    private final Map<String, DirRecord> current = new HashMap<String, DirRecord>();
+    private final long scanTime = System.currentTimeMillis();
+
+    private ScanSnapshot(File file, long previousScanTime, Map<String, DirRecord> previous) {
+        this.file = file;
+        this.previousScanTime = previousScanTime;
+        this.previous = previous;
+    }
+
+    /**
+    * Load the snapshot stored in <tt>file</tt>. A missing or unreadable
+    * file yields an empty snapshot, i.e. a full scan.
+    */
+    static ScanSnapshot load(File file, TransferConfig config) {
+        Map<String, DirRecord> dirs = new HashMap<String, DirRecord>();
+        long scanTime = 0L;
+        if (!file.exists()) {
+            return new ScanSnapshot(file, scanTime, dirs);
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!MAGIC.equals(in.readUTF())) {
+                Xfer2.log(config, Level.WARNING, "Not a scan snapshot, ignoring: " + file);
+                return new ScanSnapshot(file, 0L, new HashMap<String, DirRecord>());
+            }
+            scanTime = in.readLong();
+            int numDirs = in.readInt();
+            for (int d = 0; d < numDirs; d++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                int n = in.readInt();
+                DirRecord rec = new DirRecord(mtime, n);
+                for (int i = 0; i < n; i++) {
+                    rec.names[i] = in.readUTF();
+                }
+                dirs.put(path, rec);
+            }
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.WARNING, "Could not read scan snapshot " + file + ", doing full scan", ioe);
+            dirs.clear();
+            scanTime = 0L;
+        } finally {
+            try { if (in != null) in.close(); } catch (IOException ioe1){}
+        }
+        return new ScanSnapshot(file, scanTime, dirs);
+    }
+
+    /**
+    * Previous listing of directory <tt>path</tt> if it is still valid for
+    * the given current mtime, else <tt>null</tt>.
+    */
+    DirRecord unchanged(String path, long mtime) {
+        DirRecord rec = previous.get(path);
+        if (rec == null || rec.mtime != mtime || mtime >= previousScanTime - RACY_WINDOW) {
+            return null;
+        }
+        return rec;
+    }
+
+    /** Record the listing of directory <tt>path</tt> for the next run. */
+    void record(String path, long mtime, List<FileEntry> children) {
+        DirRecord rec = new DirRecord(mtime, children.size());
+        for (int i = 0; i < rec.names.length; i++) {
+            rec.names[i] = children.get(i).getName();
+        }
+        current.put(path, rec);
+    }
+
+    /** Write the directories recorded during this scan, replacing the old snapshot. */
+    void save() throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeUTF(MAGIC);
+            out.writeLong(scanTime);
+            out.writeInt(current.size());
+            for (Map.Entry<String, DirRecord> dir : current.entrySet()) {
+                DirRecord rec = dir.getValue();
+                out.writeUTF(dir.getKey());
+                out.writeLong(rec.mtime);
+                out.writeInt(rec.names.length);
+                for (int i = 0; i < rec.names.length; i++) {
+                    out.writeUTF(rec.names[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows doesn't rename onto existing files
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+}
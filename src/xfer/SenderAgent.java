@@ -0,0 +1,428 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+* Resident sender ("-agent" option).
+*
+* Instead of starting a JVM per transfer, one agent keeps running and
+* accepts jobs on a Unix domain socket, <tt>agent.sock</tt> in a directory
+* that only its owner may access (mode 0700, default ~/.xfer-agent). Jobs
+* read files with the owner's rights and send them anywhere, so no other
+* user may submit them: the agent refuses to start in a directory that is
+* a link, owned by somebody else or open to group or others.
+* Jobs run concurrently on a fixed number of threads, further jobs wait
+* in a queue. Connections to receivers that serve several sessions at
+* once ("-nio", feature "pool") are not closed after a job but kept in a
+* pool for {@value #IDLE_MILLIS} ms, so that the next job to the same
+* receiver (with the same -o and -z) skips connect and handshake. All jobs
+* profit from the already warmed up JIT, deflater and digest code.
+*
+* With files to send, "-agent" makes the command line a thin client: it
+* hands the job to the agent and waits for its result. Messages are NUL
+* terminated strings like the transfer protocol:
+* <pre>
+*   client: version, "job", host, port, flags ("o", "z"), root, ..., ""
+*   agent:  "ok" or "error", message
+* </pre>
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class SenderAgent {
+
+    static final String DEFAULT_DIR = ".xfer-agent";
+    static final String SOCKET_NAME = "agent.sock";
+    static final int JOB_THREADS = 4;
+    static final long IDLE_MILLIS = 60000L;
+    /** a client must send its job within this time, it holds a job thread */
+    static final int CONTROL_TIMEOUT_MILLIS = 10000;
+    private static final String JOB = "job";
+    private static final String OK = "ok";
+    private static final String ERROR = "error";
+
+    private final File controlDir;
+    private final TransferConfig config;
+    private final ExecutorService jobs;
+    /** idle connections by "host:port:flags", most recently used first */
+    private final Map<String, Deque<Pooled>> pool = new HashMap<String, Deque<Pooled>>();
+    private final ScheduledExecutorService timeouts;
+    private ServerSocketChannel serverSocket = null;
+    private Path socketPath = null;
+    private volatile boolean closed = false;
+
+    /** A connection waiting for its next job. */
+    private static final class Pooled {
+        final Xfer2.Sender sender;
+        final long idleSince;
+
+        Pooled(Xfer2.Sender sender, long idleSince) {
+            this.sender = sender;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /** @param config - settings of all jobs, except for -o and -z which come with each job */
+    SenderAgent(File controlDir, TransferConfig config) {
+        this.controlDir = controlDir;
+        this.config = config;
+        final AtomicInteger threadNo = new AtomicInteger();
+        jobs = Executors.newFixedThreadPool(JOB_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Job-" + threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Control-timeout");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Default control directory: ~/.xfer-agent */
+    static File defaultDir() {
+        return new File(System.getProperty("user.home"), DEFAULT_DIR);
+    }
+
+    /** Accept jobs until {@link #shutdown()}. */
+    void run() {
+        try {
+            Path dir = ownerOnlyDirectory(controlDir.toPath());
+            socketPath = dir.resolve(SOCKET_NAME);
+            if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+                if (isListening(socketPath)) {
+                    throw new IOException("Another agent is running");
+                }
+                // left behind by an agent that was killed
+                Files.delete(socketPath);
+            }
+            serverSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            serverSocket.bind(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Could not open control socket in " + controlDir, ioe);
+            if (serverSocket != null) {
+                try { serverSocket.close(); } catch (IOException ioe1){}
+            }
+            socketPath = null;
+            return;
+        }
+        Xfer2.log(config, Level.INFO, "Agent accepting jobs on " + socketPath);
+        Thread reaper = new Thread("Reaper") {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(IDLE_MILLIS / 4);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    closeIdle(System.currentTimeMillis() - IDLE_MILLIS);
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+        while (!closed) {
+            final SocketChannel control;
+            try {
+                control = serverSocket.accept();
+            } catch (IOException ioe) {
+                if (!closed) {
+                    Xfer2.log(config, Level.SEVERE, "Accepting control connection failed", ioe);
+                }
+                continue;
+            }
+            jobs.execute(new Runnable() {
+                public void run() {
+                    handle(control);
+                }
+            });
+        }
+    }
+
+    void shutdown() {
+        closed = true;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ioe1){}
+        try {
+            if (socketPath != null) Files.deleteIfExists(socketPath);
+        } catch (IOException ioe1){}
+        jobs.shutdownNow();
+        timeouts.shutdownNow();
+        closeIdle(Long.MAX_VALUE);
+    }
+
+    /**
+    * Read a job from the control connection, run it and report the result.
+    * A client that doesn't send its job in time is cut off, it would hold
+    * one of the job threads.
+    */
+    private void handle(final SocketChannel control) {
+        ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+            public void run() {
+                try { control.close(); } catch (IOException ioe1){}
+            }
+        }, CONTROL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            InputStream is = new BufferedInputStream(Channels.newInputStream(control));
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(control));
+            try {
+                String host;
+                int port;
+                String flags;
+                List<File> roots = new ArrayList<File>();
+                try {
+                    String version = Xfer2.readFromStream(is);
+                    if (!Xfer2.VERSION.equals(version)) {
+                        reply(os, ERROR, "Agent's version is " + Xfer2.VERSION + ", not " + version);
+                        return;
+                    }
+                    if (!JOB.equals(Xfer2.readFromStream(is))) {
+                        reply(os, ERROR, "Unknown request");
+                        return;
+                    }
+                    host = Xfer2.readFromStream(is);
+                    port = Integer.parseInt(Xfer2.readFromStream(is));
+                    flags = Xfer2.readFromStream(is);
+                    String root;
+                    while ((root = Xfer2.readFromStream(is)).length() > 0) {
+                        roots.add(new File(root));
+                    }
+                } catch (ClosedChannelException cce) {
+                    // closed by the timeout
+                    Xfer2.log(config, Level.WARNING, "No job on control connection within " + CONTROL_TIMEOUT_MILLIS + " ms");
+                    return;
+                }
+                if (!timeout.cancel(false)) {
+                    Xfer2.log(config, Level.WARNING, "No job on control connection within " + CONTROL_TIMEOUT_MILLIS + " ms");
+                    return;
+                }
+                String result = runJob(host, port, flags, roots);
+                reply(os, OK, result);
+            } catch (NumberFormatException nfe) {
+                reply(os, ERROR, "Bad port: " + nfe.getMessage());
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.SEVERE, "Job failed", ioe);
+                reply(os, ERROR, String.valueOf(ioe));
+            }
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.WARNING, "Control connection failed", ioe);
+        } finally {
+            timeout.cancel(false);
+            try { control.close(); } catch (IOException ioe1){}
+        }
+    }
+
+    /**
+    * Create <tt>dir</tt> with mode 0700, or check that the existing one is
+    * a directory of the current user that nobody else may access.
+    */
+    static Path ownerOnlyDirectory(Path dir) throws IOException {
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(ownerOnly));
+        } catch (FileAlreadyExistsException faee) {
+            // checked below
+        } catch (UnsupportedOperationException uoe) {
+            throw new IOException("The agent needs a file system with POSIX permissions");
+        }
+        PosixFileAttributes attrs = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal me = FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attrs.isDirectory()) {
+            throw new IOException(dir + " is not a directory");
+        }
+        if (!attrs.owner().equals(me)) {
+            throw new IOException(dir + " belongs to " + attrs.owner().getName() + ", not " + me.getName());
+        }
+        if (!attrs.permissions().equals(ownerOnly)) {
+            throw new IOException(dir + " must have mode 0700, not "
+                    + PosixFilePermissions.toString(attrs.permissions()));
+        }
+        return dir;
+    }
+
+    /** Whether an agent accepts connections on <tt>socket</tt>. */
+    private static boolean isListening(Path socket) {
+        try {
+            SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            probe.close();
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static void reply(OutputStream os, String status, String message) throws IOException {
+        Xfer2.writeToStream(os, status, false);
+        Xfer2.writeToStream(os, message);
+    }
+
+    /** Send the roots over a pooled or new connection; returns a summary. */
+    private String runJob(String host, int port, String flags, List<File> roots) throws IOException {
+        String key = host + ":" + port + ":" + flags;
+        Xfer2.log(config, Level.INFO, "Job: " + roots + " to " + host + ":" + port);
+        Xfer2.Sender sender = borrow(key);
+        if (sender == null) {
+            sender = new Xfer2.Sender(config.copy()
+                    .setCompress(flags.indexOf('z') >= 0));
+            sender.setPooling(true);
+            sender.open(host, port);
+            try {
+                sender.handshake(flags.indexOf('o') >= 0);
+            } catch (IOException ioe) {
+                sender.close();
+                throw ioe;
+            }
+        }
+        long files = sender.getFilesSent();
+        long bytes = sender.getBytesSent();
+        try {
+            sender.sendRoots(roots, null);
+        } catch (IOException ioe) {
+            // the session is in an unknown state, don't reuse it
+            sender.close();
+            throw ioe;
+        }
+        if (sender.isPoolable()) {
+            giveBack(key, sender);
+        } else {
+            // an idle session would block the receiver for everybody else
+            try {
+                sender.finish();
+            } catch (IOException ioe1){}
+            sender.close();
+        }
+        return (sender.getFilesSent() - files) + " files, " + (sender.getBytesSent() - bytes) + " bytes sent to "
+                + host + ":" + port;
+    }
+
+    private Xfer2.Sender borrow(String key) {
+        while (true) {
+            Pooled pooled;
+            synchronized (pool) {
+                Deque<Pooled> idle = pool.get(key);
+                pooled = idle == null ? null : idle.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            if (pooled.sender.isAlive()) {
+                return pooled.sender;
+            }
+            Xfer2.log(config, Level.FINE, "Pooled connection " + key + " was closed");
+            pooled.sender.close();
+        }
+    }
+
+    private void giveBack(String key, Xfer2.Sender sender) {
+        synchronized (pool) {
+            Deque<Pooled> idle = pool.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<Pooled>();
+                pool.put(key, idle);
+            }
+            idle.addFirst(new Pooled(sender, System.currentTimeMillis()));
+        }
+    }
+
+    /** End the sessions of connections idle since before <tt>before</tt>. */
+    private void closeIdle(long before) {
+        List<Xfer2.Sender> expired = new ArrayList<Xfer2.Sender>();
+        synchronized (pool) {
+            for (Iterator<Deque<Pooled>> it = pool.values().iterator(); it.hasNext();) {
+                Deque<Pooled> idle = it.next();
+                // least recently used at the end
+                while (!idle.isEmpty() && idle.peekLast().idleSince < before) {
+                    expired.add(idle.pollLast().sender);
+                }
+                if (idle.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        for (Xfer2.Sender sender : expired) {
+            try {
+                sender.finish();
+            } catch (IOException ioe1){}
+            sender.close();
+        }
+    }
+
+    /**
+    * Thin client: hand a job to the agent on this machine and wait for it.
+    *
+    * @return whether the job succeeded
+    */
+    static boolean submit(File controlDir, String host, int port, List<File> roots, TransferConfig config) {
+        SocketChannel control = null;
+        try {
+            control = SocketChannel.open(UnixDomainSocketAddress.of(new File(controlDir, SOCKET_NAME).toPath()));
+            InputStream is = new BufferedInputStream(Channels.newInputStream(control));
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(control));
+            Xfer2.writeToStream(os, Xfer2.VERSION, false);
+            Xfer2.writeToStream(os, JOB, false);
+            Xfer2.writeToStream(os, host, false);
+            Xfer2.writeToStream(os, String.valueOf(port), false);
+            Xfer2.writeToStream(os, (config.overwrite ? "o" : "") + (config.compress ? "z" : ""), false);
+            for (File root : roots) {
+                Xfer2.writeToStream(os, root.getAbsolutePath(), false);
+            }
+            Xfer2.writeToStream(os, "");
+            String status = Xfer2.readFromStream(is);
+            String message = Xfer2.readFromStream(is);
+            if (OK.equals(status)) {
+                Xfer2.log(config, Level.INFO, message);
+                return true;
+            }
+            Xfer2.log(config, Level.SEVERE, "Agent: " + (status.length() == 0 ? "connection closed" : message));
+            return false;
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.SEVERE, "Could not submit job to agent in " + controlDir, ioe);
+            return false;
+        } finally {
+            try {
+                if (control != null) control.close();
+            } catch (IOException ioe1){}
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package xfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+
+/**
+* Sparse files ("-sparse" option, feature "sparse").
+*
+* With the feature, a file's content is sent as extents instead of one
+* run of bytes: data extents with their bytes, hole extents (runs of
+* whole zero pages of {@value #PAGE} bytes) with their length only.
+* Messages are NUL terminated strings like the rest of the protocol:
+* <pre>
+*   sender: "d,length" followed by the bytes, or "h,length", per extent
+*   sender: "", then the file's md5 as usual
+* </pre>
+* The receiver writes the data extents at their positions through a
+* FileChannel and skips the holes, so the file system leaves them
+* unallocated; the length is set at the end for a file ending in a hole.
+*
+* The JDK has no SEEK_HOLE/SEEK_DATA, so the sender finds holes by
+* looking for zero pages. Holes of the source file read as zeros from
+* memory without touching the disk, and zero pages written by an
+* application become holes on the receiver as well.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class Sparse {
+
+    /** smallest hole worth skipping, the usual file system block */
+    static final int PAGE = 4096;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private Sparse() {
+    }
+
+    /**
+    * Sender: send the file's content as extents.
+    *
+    * @param digest - md5 of the whole file, updated here
+    * @return the number of content bytes sent, holes not counted
+    */
+    static long send(InputStream in, File file, long size, byte[] buf, MessageDigest digest,
+            OutputStream rcvos, TransferConfig config) throws IOException {
+        if (buf.length < PAGE) {
+            buf = new byte[PAGE];
+        }
+        // whole pages per read, so the pages stay aligned to the file
+        int blockLength = buf.length - buf.length % PAGE;
+        long read = 0;
+        long hole = 0;
+        long sent = 0;
+        while (read < size) {
+            int len = readFully(in, buf, (int) Math.min(blockLength, size - read));
+            if (len == 0) {
+                throw new IOException("File shrank while sending: " + file.getAbsolutePath());
+            }
+            if (digest != null) digest.update(buf, 0, len);
+            read += len;
+            int dataStart = -1;
+            for (int off = 0; off < len; off += PAGE) {
+                int pageLength = Math.min(PAGE, len - off);
+                // a short page at the end is sent as data
+                if (pageLength == PAGE && isZero(buf, off, PAGE)) {
+                    if (dataStart >= 0) {
+                        sendData(rcvos, buf, dataStart, off - dataStart);
+                        sent += off - dataStart;
+                        dataStart = -1;
+                    }
+                    hole += PAGE;
+                } else if (dataStart < 0) {
+                    if (hole > 0) {
+                        Xfer2.writeToStream(rcvos, "h," + hole, false);
+                        hole = 0;
+                    }
+                    dataStart = off;
+                }
+            }
+            if (dataStart >= 0) {
+                sendData(rcvos, buf, dataStart, len - dataStart);
+                sent += len - dataStart;
+            }
+        }
+        if (hole > 0) {
+            Xfer2.writeToStream(rcvos, "h," + hole, false);
+        }
+        Xfer2.writeToStream(rcvos, "", false);
+        Xfer2.log(config, Level.FINE, "Sent " + sent + " of " + size + " bytes, the rest are holes");
+        return sent;
+    }
+
+    private static void sendData(OutputStream rcvos, byte[] buf, int off, int len) throws IOException {
+        Xfer2.writeToStream(rcvos, "d," + len, false);
+        rcvos.write(buf, off, len);
+    }
+
+    private static boolean isZero(byte[] buf, int off, int len) {
+        for (int i = off + len - 1; i >= off; i--) {
+            if (buf[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /** Fill <tt>buf</tt> up to <tt>len</tt> bytes unless the file ends; returns the bytes read. */
+    private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        int n;
+        while (off < len && (n = in.read(buf, off, len - off)) != -1) {
+            off += n;
+        }
+        return off;
+    }
+
+    /**
+    * Receiver: read the extents of a file of <tt>size</tt> bytes and
+    * write them to <tt>out</tt> (if not <tt>null</tt>), which must be
+    * empty.
+    *
+    * @param digest - md5 of the whole file, updated here
+    * @return the size of the file
+    */
+    static long receive(InputStream sendIs, RandomAccessFile out, long size, byte[] buf, MessageDigest digest,
+            TransferConfig config) throws IOException {
+        FileChannel channel = out == null ? null : out.getChannel();
+        long pos = 0;
+        long received = 0;
+        String msg;
+        while ((msg = Xfer2.readFromStream(sendIs)).length() > 0) {
+            long len;
+            try {
+                len = Long.parseLong(msg.substring(Math.min(2, msg.length())));
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad extent: " + msg);
+            }
+            if (msg.charAt(1) != ',' || len <= 0 || pos + len > size) {
+                throw new IOException("Bad extent: " + msg + " at " + pos + " of " + size);
+            }
+            if (msg.charAt(0) == 'h') {
+                if (digest != null) {
+                    for (long left = len; left > 0; left -= ZEROS.length) {
+                        digest.update(ZEROS, 0, (int) Math.min(ZEROS.length, left));
+                    }
+                }
+            } else if (msg.charAt(0) == 'd') {
+                for (long left = len; left > 0; ) {
+                    int n = sendIs.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n == -1) {
+                        throw new EOFException("Extent ends early");
+                    }
+                    if (digest != null) digest.update(buf, 0, n);
+                    if (channel != null) {
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        long at = pos + len - left;
+                        while (bb.hasRemaining()) {
+                            at += channel.write(bb, at);
+                        }
+                    }
+                    left -= n;
+                }
+                received += len;
+                if (Metrics.enabled) Metrics.bytesIn.add(len);
+            } else {
+                throw new IOException("Bad extent: " + msg);
+            }
+            pos += len;
+        }
+        if (pos != size) {
+            throw new IOException("Extents cover " + pos + " of " + size + " bytes");
+        }
+        // a trailing hole isn't written, only the length
+        if (out != null) out.setLength(size);
+        Xfer2.log(config, Level.FINE, "Received " + received + " of " + size + " bytes, the rest are holes");
+        return size;
+    }
+}
@@ -0,0 +1,463 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+* Receiving into archives ("-archive" option) and extracting them
+* ("-extract" option).
+*
+* With "-archive", a receiver session creates no files in the target
+* directory but writes everything into one tar file there, named after
+* the sender and the time. The archive is one sequential stream written
+* through a large buffer; no directories are made, no files opened,
+* closed or dated per received file. The sender is told that no file
+* exists, so each session is a full copy. The archive is called
+* "*.tar.part" until the sender has finished, a session that breaks off
+* leaves it that way.
+*
+* The archives are POSIX ustar, so tar can list and extract them as well.
+* Paths of more than 100 bytes and sizes of 8 GiB and more go into a pax
+* header before the entry. Modification times have whole seconds, within
+* the default modify window. Path bytes are stored as the sender sent
+* them.
+*
+* {@link #extract} unpacks an archive into a directory later; it reads
+* ustar, pax and GNU long names, so it takes archives from tar as well.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class TarArchive {
+
+    static final String SUFFIX = ".tar";
+    static final String PART_SUFFIX = ".part";
+    private static final int RECORD = 512;
+    /** largest number in the 12 byte octal fields */
+    private static final long MAX_OCTAL = 077777777777L;
+    private static final int NAME_LENGTH = 100;
+    private static final int STREAM_BUFFER = 1024 * 1024;
+    private static final byte[] ZEROS = new byte[2 * RECORD];
+
+    private final File file;
+    private final File part;
+    private final OutputStream out;
+    private final TransferConfig config;
+    private Entry current = null;
+    private int entries = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    private TarArchive(File file, File part, TransferConfig config) throws IOException {
+        this.file = file;
+        this.part = part;
+        this.config = config;
+        this.out = new BufferedOutputStream(new FileOutputStream(part), STREAM_BUFFER);
+    }
+
+    /**
+    * A new archive in <tt>dir</tt> for a session with <tt>sender</tt>,
+    * "sender-yyyyMMdd-HHmmss[-n].tar.part" until it is finished.
+    */
+    static TarArchive create(File dir, String sender, TransferConfig config) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Archive directory " + dir.getAbsolutePath() + " could not be created");
+        }
+        String name = sender.replace(':', '_') + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        for (int n = 0; ; n++) {
+            File file = new File(dir, (n == 0 ? name : name + "-" + n) + SUFFIX);
+            File part = new File(file.getPath() + PART_SUFFIX);
+            // sessions of the same second get their own archives
+            if (!file.exists() && part.createNewFile()) {
+                Xfer2.log(config, Level.INFO, "Writing archive " + part.getAbsolutePath());
+                return new TarArchive(file, part, config);
+            }
+        }
+    }
+
+    /** Record a directory. */
+    void directory(String path, long modDate) throws IOException {
+        next();
+        header(path.endsWith("/") ? path : path + "/", modDate, 0L, '5');
+    }
+
+    /**
+    * Start a file of <tt>size</tt> bytes; its content is written to the
+    * returned stream, which must be closed before the next entry.
+    * Closing it early fills the rest with zeros.
+    */
+    OutputStream file(String path, long modDate, long size) throws IOException {
+        next();
+        header(path, modDate, size, '0');
+        current = new Entry(path, size);
+        return current;
+    }
+
+    private void next() throws IOException {
+        if (finished || closed) {
+            throw new IOException("Archive " + part + " is closed");
+        }
+        if (current != null) {
+            current.close();
+        }
+        entries++;
+    }
+
+    private void header(String path, long modDate, long size, char type) throws IOException {
+        // the characters of a received path are the bytes the sender sent
+        byte[] name = path.getBytes(StandardCharsets.ISO_8859_1);
+        if (name.length > NAME_LENGTH || size > MAX_OCTAL) {
+            StringBuilder pax = new StringBuilder();
+            if (name.length > NAME_LENGTH) pax.append(paxRecord("path", path));
+            if (size > MAX_OCTAL) pax.append(paxRecord("size", Long.toString(size)));
+            byte[] records = pax.toString().getBytes(StandardCharsets.ISO_8859_1);
+            out.write(header("././@PaxHeader".getBytes(StandardCharsets.US_ASCII), modDate, records.length, 'x'));
+            out.write(records);
+            pad(records.length);
+        }
+        out.write(header(name, modDate, size, type));
+    }
+
+    /** "length key=value\n", the length counting itself. */
+    private static String paxRecord(String key, String value) {
+        int length = key.length() + value.length() + 3;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits) digits++;
+        return (length + digits) + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] header(byte[] name, long modDate, long size, char type) {
+        byte[] h = new byte[RECORD];
+        System.arraycopy(name, 0, h, 0, Math.min(name.length, NAME_LENGTH));
+        octal(h, 100, 8, type == '5' ? 0755 : 0644);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        // a larger size is in the pax header
+        octal(h, 124, 12, size > MAX_OCTAL ? 0 : size);
+        octal(h, 136, 12, Math.max(0L, Math.min(modDate / 1000, MAX_OCTAL)));
+        h[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, h, 257, 8);
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        octal(h, 148, 7, checksum(h));
+        return h;
+    }
+
+    /** <tt>value</tt> as octal digits filling <tt>length</tt>-1 bytes, NUL terminated. */
+    private static void octal(byte[] h, int off, int length, long value) {
+        h[off + length - 1] = 0;
+        for (int i = off + length - 2; i >= off; i--) {
+            h[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+
+    private static long checksum(byte[] h) {
+        long sum = 0;
+        for (byte b : h) {
+            sum += b & 0xff;
+        }
+        return sum;
+    }
+
+    private void pad(long length) throws IOException {
+        int rest = (int) (length % RECORD);
+        if (rest > 0) out.write(ZEROS, 0, RECORD - rest);
+    }
+
+    /**
+    * Write the end of the archive and give it its final name; an archive
+    * without entries is deleted.
+    *
+    * @return the archive, <tt>null</tt> if deleted
+    */
+    File finish() throws IOException {
+        if (current != null) current.close();
+        out.write(ZEROS);
+        out.close();
+        finished = true;
+        closed = true;
+        if (entries == 0) {
+            if (!part.delete()) part.deleteOnExit();
+            Xfer2.log(config, Level.INFO, "Nothing received, archive deleted");
+            return null;
+        }
+        if (!part.renameTo(file)) {
+            throw new IOException("Could not rename " + part + " to " + file);
+        }
+        Xfer2.log(config, Level.INFO, "Wrote archive " + file.getAbsolutePath() + " with " + entries + " entries");
+        return file;
+    }
+
+    /** Close an archive that wasn't finished, it keeps its ".part" name unless it is empty. */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try { out.close(); } catch (IOException ioe1){}
+        if (entries == 0) {
+            if (!part.delete()) part.deleteOnExit();
+        } else {
+            Xfer2.log(config, Level.WARNING, "Session broke off, incomplete archive left as " + part.getAbsolutePath());
+        }
+    }
+
+    /** The content of one file; flush() waits for the archive's buffer to fill. */
+    private final class Entry extends OutputStream {
+        private final String path;
+        private final long size;
+        private long written = 0L;
+        private boolean done = false;
+
+        Entry(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        public void write(int b) throws IOException {
+            if (written == size || done) {
+                throw new IOException("More than the announced " + size + " bytes for " + path);
+            }
+            out.write(b);
+            written++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > size || done) {
+                throw new IOException("More than the announced " + size + " bytes for " + path);
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+
+        public void close() throws IOException {
+            if (done) {
+                return;
+            }
+            done = true;
+            current = null;
+            if (written < size) {
+                Xfer2.log(config, Level.SEVERE, "  Only " + written + " of " + size + " bytes for " + path
+                        + ", filled with zeros in the archive");
+                while (written < size) {
+                    int n = (int) Math.min(ZEROS.length, size - written);
+                    out.write(ZEROS, 0, n);
+                    written += n;
+                }
+            }
+            pad(size);
+        }
+    }
+
+    /**
+    * Unpack <tt>archive</tt> into <tt>targetDir</tt>. Existing files are
+    * only replaced with <tt>config</tt>'s overwrite; a later entry of the same
+    * path replaces an earlier one, like tar does.
+    *
+    * @return the number of files written
+    */
+    static int extract(File archive, File targetDir, TransferConfig config) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), STREAM_BUFFER);
+        Set<String> extracted = new HashSet<String>();
+        byte[] h = new byte[RECORD];
+        byte[] buf = BufferPool.take(64 * 1024);
+        int files = 0;
+        String nextPath = null;
+        long nextSize = -1L;
+        try {
+            while (readFully(in, h, RECORD)) {
+                if (checksum(h) == 0) {
+                    // the end
+                    break;
+                }
+                long sum = parseOctal(h, 148, 8);
+                Arrays.fill(h, 148, 156, (byte) ' ');
+                if (checksum(h) != sum) {
+                    throw new IOException("Bad header checksum in " + archive + ", not a tar archive?");
+                }
+                char type = (char) h[156];
+                String path = nextPath != null ? nextPath : ustarName(h);
+                long size = nextSize >= 0 ? nextSize : parseOctal(h, 124, 12);
+                long modDate = parseOctal(h, 136, 12) * 1000;
+                if (type == 'x' || type == 'L') {
+                    // about the next entry
+                    byte[] ext = readExtension(in, parseOctal(h, 124, 12));
+                    if (type == 'L') {
+                        nextPath = cString(ext, 0, ext.length);
+                    } else {
+                        String[] pax = parsePax(ext);
+                        if (pax[0] != null) nextPath = pax[0];
+                        if (pax[1] != null) nextSize = Long.parseLong(pax[1]);
+                    }
+                    continue;
+                }
+                nextPath = null;
+                nextSize = -1L;
+                File outFile = outFile(targetDir, path);
+                if (type == '5') {
+                    if (!outFile.isDirectory() && !outFile.mkdirs()) {
+                        throw new IOException("Directories could not be created for " + outFile.getAbsolutePath());
+                    }
+                } else if (type != '0' && type != '\0' && type != '7') {
+                    Xfer2.log(config, Level.WARNING, "Skipping " + path + " of unsupported type " + type);
+                    skip(in, size + padding(size));
+                } else if (outFile.exists() && !config.overwrite && !extracted.contains(path)) {
+                    Xfer2.log(config, Level.INFO, "Output file " + outFile.getAbsolutePath() + " exists already, will NOT be overwritten");
+                    skip(in, size + padding(size));
+                } else {
+                    Xfer2.log(config, Level.INFO, "Extracting: " + path);
+                    File parent = outFile.getAbsoluteFile().getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException("Directories could not be created for " + parent);
+                    }
+                    OutputStream fos = new BufferedOutputStream(new FileOutputStream(outFile));
+                    try {
+                        long left = size;
+                        while (left > 0) {
+                            int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                            if (n == -1) {
+                                throw new EOFException("Archive " + archive + " ends within " + path);
+                            }
+                            fos.write(buf, 0, n);
+                            left -= n;
+                        }
+                    } finally {
+                        fos.close();
+                    }
+                    skip(in, padding(size));
+                    Xfer2.Receiver.setModificationDate(outFile, modDate, config);
+                    extracted.add(path);
+                    files++;
+                }
+            }
+        } finally {
+            BufferPool.give(buf);
+            try { in.close(); } catch (IOException ioe1){}
+        }
+        return files;
+    }
+
+    /** The file of an entry, which must not leave the target directory. */
+    private static File outFile(File targetDir, String path) throws IOException {
+        String[] names = path.split("/");
+        if (path.startsWith("/") || Arrays.asList(names).contains("..")) {
+            throw new IOException("Path leaves the target directory: " + path);
+        }
+        return new File(targetDir, path);
+    }
+
+    private static String ustarName(byte[] h) {
+        String name = cString(h, 0, NAME_LENGTH);
+        if (h[257] == 'u' && h[345] != 0) {
+            name = cString(h, 345, 155) + "/" + name;
+        }
+        return name;
+    }
+
+    private static String cString(byte[] b, int off, int length) {
+        int end = off;
+        while (end < off + length && b[end] != 0) end++;
+        return new String(b, off, end - off, StandardCharsets.ISO_8859_1);
+    }
+
+    /** An octal field, maybe space padded, or GNU tar's base 256 for large numbers. */
+    private static long parseOctal(byte[] h, int off, int length) throws IOException {
+        int end = off + length;
+        long value = 0;
+        if ((h[off] & 0x80) != 0) {
+            value = h[off] & 0x7f;
+            for (int i = off + 1; i < end; i++) {
+                value = (value << 8) | (h[i] & 0xff);
+            }
+            return value;
+        }
+        int i = off;
+        while (i < end && h[i] == ' ') i++;
+        for (; i < end && h[i] != 0 && h[i] != ' '; i++) {
+            if (h[i] < '0' || h[i] > '7') {
+                throw new IOException("Bad number in tar header: " + cString(h, off, length));
+            }
+            value = (value << 3) + (h[i] - '0');
+        }
+        return value;
+    }
+
+    /** path and size of pax records, <tt>null</tt> where missing. */
+    private static String[] parsePax(byte[] records) throws IOException {
+        String[] result = new String[2];
+        String all = new String(records, StandardCharsets.ISO_8859_1);
+        int pos = 0;
+        while (pos < all.length()) {
+            int space = all.indexOf(' ', pos);
+            int length;
+            try {
+                length = Integer.parseInt(all.substring(pos, space));
+            } catch (RuntimeException re) {
+                throw new IOException("Bad pax header record at " + pos);
+            }
+            String record = all.substring(space + 1, pos + length - 1);
+            int eq = record.indexOf('=');
+            if (record.startsWith("path=")) {
+                result[0] = record.substring(eq + 1);
+            } else if (record.startsWith("size=")) {
+                result[1] = record.substring(eq + 1);
+            }
+            pos += length;
+        }
+        return result;
+    }
+
+    private static byte[] readExtension(InputStream in, long size) throws IOException {
+        if (size > 1024 * 1024) {
+            throw new IOException("Extended header of " + size + " bytes");
+        }
+        byte[] ext = new byte[(int) size];
+        if (!readFully(in, ext, ext.length)) {
+            throw new EOFException("Archive ends within an extended header");
+        }
+        skip(in, padding(size));
+        return ext;
+    }
+
+    private static long padding(long size) {
+        return (RECORD - size % RECORD) % RECORD;
+    }
+
+    /** false at the end of the stream before the first byte. */
+    private static boolean readFully(InputStream in, byte[] b, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = in.read(b, done, len - done);
+            if (n == -1) {
+                if (done == 0) return false;
+                throw new EOFException("Archive ends within a header");
+            }
+            done += n;
+        }
+        return true;
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException("Archive ends within an entry");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package xfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+* Input stream that doesn't read faster than its {@link BandwidthShaper.Share}
+* allows; the sender is slowed down by TCP flow control. Meant to sit
+* directly on the socket stream, below buffering and
+* {@link CompressedBlockInputStream}.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final BandwidthShaper.Share share;
+
+    public ThrottledInputStream(InputStream is, BandwidthShaper.Share share) {
+        super(is);
+        this.share = share;
+    }
+
+    public int read() throws IOException {
+        share.acquire(1);
+        int c = in.read();
+        if (c == -1) {
+            share.release(1);
+        }
+        return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int granted = share.acquire(len);
+        int n = in.read(b, off, granted);
+        if (n < granted) {
+            share.release(n < 0 ? granted : granted - n);
+        }
+        return n;
+    }
+
+    public void close() throws IOException {
+        share.close();
+        super.close();
+    }
+}
@@ -0,0 +1,42 @@
+package xfer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+* Output stream that doesn't write faster than its {@link BandwidthShaper.Share}
+* allows. Meant to sit directly on the socket stream, i.e. below buffering
+* and {@link CompressedBlockOutputStream}, so the limit applies to the bytes
+* on the wire.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    private final BandwidthShaper.Share share;
+
+    public ThrottledOutputStream(OutputStream os, BandwidthShaper.Share share) {
+        super(os);
+        this.share = share;
+    }
+
+    public void write(int b) throws IOException {
+        share.acquire(1);
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int granted = share.acquire(len);
+            out.write(b, off, granted);
+            off += granted;
+            len -= granted;
+        }
+    }
+
+    public void close() throws IOException {
+        share.close();
+        super.close();
+    }
+}
@@ -0,0 +1,119 @@
+package xfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Sends files to a receiver from within a Java program.
+*
+* <pre>
+*   TransferClient client = new TransferClient(new TransferConfig().setCompress(true));
+*   client.send("backup", 9337, Arrays.asList(new File("/data")))
+*       .thenAccept(result -&gt; System.out.println(result));
+* </pre>
+* Every {@link #send} is one session on its own connection and runs in
+* the background; any number may run at the same time. The future fails
+* with an IOException if the session broke off, and cancelling it closes
+* the connection.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class TransferClient implements AutoCloseable {
+
+    private final TransferConfig config;
+    private final Executor executor;
+    /** only if no executor was given */
+    private final ExecutorService ownExecutor;
+
+    /** Transfers run on threads of the client, see {@link #close()}. */
+    public TransferClient(TransferConfig config) {
+        this(config, null);
+    }
+
+    /**
+    * @param config - copied, later changes don't affect this client
+    * @param executor - runs the transfers, <tt>null</tt> for the client's own threads
+    */
+    public TransferClient(TransferConfig config, Executor executor) {
+        this.config = config.copy();
+        if (executor == null) {
+            final AtomicInteger threadNo = new AtomicInteger();
+            ownExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Send-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.executor = ownExecutor;
+        } else {
+            ownExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    public CompletableFuture<TransferResult> send(String host, int port, List<File> roots) {
+        return send(host, port, roots, null);
+    }
+
+    /**
+    * Send files or whole directory trees.
+    *
+    * @param roots - files and directories; paths on the receiver are relative to their parents
+    * @param listener - progress callbacks, may be <tt>null</tt>
+    */
+    public CompletableFuture<TransferResult> send(final String host, final int port, List<File> roots,
+            TransferListener listener) {
+        final List<File> absoluteRoots = new ArrayList<File>();
+        for (File root : roots) {
+            absoluteRoots.add(root.getAbsoluteFile());
+        }
+        final Xfer2.Sender sender = new Xfer2.Sender(config);
+        sender.setListener(listener);
+        final CompletableFuture<TransferResult> future = new CompletableFuture<TransferResult>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    sender.abort();
+                }
+                return cancelled;
+            }
+        };
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(sender.transfer(host, port, absoluteRoots));
+                    } catch (IOException ioe) {
+                        future.completeExceptionally(ioe);
+                    } catch (RuntimeException re) {
+                        future.completeExceptionally(re);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            future.completeExceptionally(ree);
+        }
+        return future;
+    }
+
+    /** Stops the client's own threads once the running transfers are done. */
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+}
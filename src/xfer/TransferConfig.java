@@ -0,0 +1,337 @@
+package xfer;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+* Settings of a sender or receiver.
+*
+* The command line options end up here; in-process users create their own
+* instance per {@link TransferClient} or {@link TransferServer}, so that
+* transfers with different settings can run side by side in one JVM.
+* The setters return <tt>this</tt> for chaining:
+* <pre>
+*   TransferConfig config = new TransferConfig().setCompress(true).setOverwrite(true);
+* </pre>
+* Clients and servers take a {@link #copy()}, later changes of the
+* caller's instance don't affect them. Each instance logs at its own
+* {@link #setLogLevel level}; only {@link Metrics}, trace files and shared
+* bandwidth limits remain per process and log at {@link #DEFAULT_LOG_LEVEL}.
+*
+* Both sides must agree on {@link #setCompress compression}; everything
+* else is decided by each side alone or negotiated in the handshake.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class TransferConfig implements Cloneable {
+
+    public static final Level DEFAULT_LOG_LEVEL = Level.INFO;
+    /** longer than a sender agent keeps its idle connections */
+    public static final long DEFAULT_POOL_IDLE_MILLIS = 300000L;
+
+    // read directly by the transfer code in this package
+    int blocksize = Xfer2.BLOCKSIZE;
+    /** -B auto: measure the link and choose block size and socket buffers */
+    boolean autoBlocksize = false;
+    boolean compress = false;
+    int deflaterLevel = Deflater.DEFAULT_COMPRESSION;
+    boolean overwrite = false;
+    boolean createCopy = false;
+    /** prefixes of addresses allowed to connect, <tt>null</tt>: all */
+    String[] ipAddresses = null;
+    long modifyWindow = 1000L;
+    /** socket buffer sizes, 0: system default */
+    int sndBuf = 0;
+    int rcvBuf = 0;
+    boolean tcpNoDelay = false;
+    boolean keepAlive = false;
+    BandwidthShaper shaper = null;
+    PhaseTrace trace = null;
+    File snapshotFile = null;
+    boolean printProgressBar = false;
+    int progressTicks = 40;
+    /** receiver: I/O threads of the event driven receiver, 0: one session at a time */
+    int ioThreads = 0;
+    /** receiver: close pooled sessions of the event driven receiver idle for this long */
+    long poolIdleMillis = DEFAULT_POOL_IDLE_MILLIS;
+    /** sender: offer chunk hashes, send only chunks the receiver lacks */
+    boolean dedup = false;
+    /** receiver: directory of the chunk store, <tt>null</tt>: no deduplication */
+    File chunkDir = null;
+    long chunkStoreMax = 1024L * 1024 * 1024;
+    /** sender: send files with identical content once, the receiver copies the others */
+    boolean findDuplicates = false;
+    /** receiver: hard link such copies where possible */
+    boolean linkDuplicates = false;
+    /** sender: send zero pages as holes, the receiver keeps files sparse */
+    boolean sparse = false;
+    /** sender: Merkle tree digests instead of md5 */
+    boolean treeDigest = false;
+    /** sender: compare the trees with the receiver's instead of sending files */
+    boolean verify = false;
+    /** sender: a CRC per block, the receiver asks for damaged blocks again */
+    boolean blockChecks = false;
+    /** encrypt connections with keys derived from this, <tt>null</tt>: don't */
+    byte[] presharedKey = null;
+    /** receiver: write each session into a tar file in the target directory */
+    boolean archive = false;
+    /** map files of at least this size in windows of this size, 0: don't */
+    long mmapWindow = 0L;
+    /** messages below this level are dropped */
+    Level logLevel = DEFAULT_LOG_LEVEL;
+
+    /** A copy that can be changed without affecting this one; shaper and trace are shared. */
+    public TransferConfig copy() {
+        try {
+            TransferConfig copy = (TransferConfig) clone();
+            if (ipAddresses != null) copy.ipAddresses = ipAddresses.clone();
+            if (presharedKey != null) copy.presharedKey = presharedKey.clone();
+            return copy;
+        } catch (CloneNotSupportedException cnse) {
+            throw new AssertionError(cnse);
+        }
+    }
+
+    /** Copy buffer and compression block size in bytes. */
+    public TransferConfig setBlocksize(int blocksize) {
+        if (blocksize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blocksize);
+        }
+        this.blocksize = blocksize;
+        return this;
+    }
+
+    public int getBlocksize() {
+        return blocksize;
+    }
+
+    /** Sender: measure the link when connecting and choose block size and socket buffers. */
+    public TransferConfig setAutoBlocksize(boolean autoBlocksize) {
+        this.autoBlocksize = autoBlocksize;
+        return this;
+    }
+
+    public boolean isAutoBlocksize() {
+        return autoBlocksize;
+    }
+
+    /** Compress the network stream ("-z"); must be set on both sides. */
+    public TransferConfig setCompress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /** Deflater level 1 (fast) .. 9 (high compression), or {@link Deflater#DEFAULT_COMPRESSION}. */
+    public TransferConfig setDeflaterLevel(int deflaterLevel) {
+        this.deflaterLevel = deflaterLevel;
+        return this;
+    }
+
+    public int getDeflaterLevel() {
+        return deflaterLevel;
+    }
+
+    /** Overwrite existing files ("-o"); a sender's setting overrides the receiver's. Cancels create copy. */
+    public TransferConfig setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+        if (overwrite) createCopy = false;
+        return this;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    /** Receiver: write existing files under a new name ("-O"). Cancels overwrite. */
+    public TransferConfig setCreateCopy(boolean createCopy) {
+        this.createCopy = createCopy;
+        if (createCopy) overwrite = false;
+        return this;
+    }
+
+    public boolean isCreateCopy() {
+        return createCopy;
+    }
+
+    /** Receiver: prefixes of the addresses allowed to connect ("-i"), <tt>null</tt> for all. */
+    public TransferConfig setIpAddresses(String... ipAddresses) {
+        this.ipAddresses = ipAddresses == null ? null : ipAddresses.clone();
+        return this;
+    }
+
+    /** Receiver: tolerated difference in ms between wanted and actual modification time. */
+    public TransferConfig setModifyWindow(long modifyWindow) {
+        this.modifyWindow = modifyWindow;
+        return this;
+    }
+
+    /** Socket send and receive buffer sizes in bytes, 0 for the system default. */
+    public TransferConfig setSocketBuffers(int sndBuf, int rcvBuf) {
+        this.sndBuf = sndBuf;
+        this.rcvBuf = rcvBuf;
+        return this;
+    }
+
+    public TransferConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public TransferConfig setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /** Bandwidth limits; one shaper may be shared by several clients and servers. */
+    public TransferConfig setShaper(BandwidthShaper shaper) {
+        this.shaper = shaper;
+        return this;
+    }
+
+    /** Per-file phase timings, see {@link PhaseTrace}. */
+    public TransferConfig setTrace(PhaseTrace trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    /** Sender: keep a snapshot of the scanned trees in this file to speed up the next scan. */
+    public TransferConfig setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        return this;
+    }
+
+    /** Sender: print a progress bar with <tt>ticks</tt> ticks per file to stdout, 0: none. */
+    public TransferConfig setProgressBar(int ticks) {
+        this.printProgressBar = ticks > 0;
+        if (ticks > 0) progressTicks = ticks;
+        return this;
+    }
+
+    /** Receiver: serve many senders at once with this many I/O threads ("-nio"), 0: one at a time. */
+    public TransferConfig setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(0, ioThreads);
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /** Receiver: close connections kept open between jobs ("pool") after this many idle ms ("-poolidle"). */
+    public TransferConfig setPoolIdleMillis(long poolIdleMillis) {
+        if (poolIdleMillis <= 0) {
+            throw new IllegalArgumentException("Idle time must be positive: " + poolIdleMillis);
+        }
+        this.poolIdleMillis = poolIdleMillis;
+        return this;
+    }
+
+    public long getPoolIdleMillis() {
+        return poolIdleMillis;
+    }
+
+    /** Sender: send only the chunks of a file the receiver's chunk store lacks ("-dedup"). */
+    public TransferConfig setDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+    * Receiver: keep received chunks in <tt>dir</tt> for senders using
+    * deduplication ("-chunks"), <tt>null</tt>: none.
+    *
+    * @param maxBytes - least recently used chunks are deleted beyond this size
+    */
+    public TransferConfig setChunkStore(File dir, long maxBytes) {
+        this.chunkDir = dir;
+        this.chunkStoreMax = maxBytes;
+        return this;
+    }
+
+    /** Sender: send byte-identical files once and let the receiver copy them ("-dupes"). */
+    public TransferConfig setFindDuplicates(boolean findDuplicates) {
+        this.findDuplicates = findDuplicates;
+        return this;
+    }
+
+    /** Receiver: hard link identical files instead of copying them, if their times agree ("-links"). */
+    public TransferConfig setLinkDuplicates(boolean linkDuplicates) {
+        this.linkDuplicates = linkDuplicates;
+        return this;
+    }
+
+    /** Sender: send runs of zero pages as holes, the receiver leaves them unallocated ("-sparse"). */
+    public TransferConfig setSparse(boolean sparse) {
+        this.sparse = sparse;
+        return this;
+    }
+
+    /** Sender: check files with Merkle tree digests hashed on all cores instead of md5 ("-tree"). */
+    public TransferConfig setTreeDigest(boolean treeDigest) {
+        this.treeDigest = treeDigest;
+        return this;
+    }
+
+    /**
+    * Sender: send no files but compare the trees with the receiver's
+    * ("-verify"); the paths that differ are the result's checksum failures.
+    */
+    public TransferConfig setVerify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    /** Sender: send a CRC32C per block, so the receiver can ask for damaged ones again ("-crc"). */
+    public TransferConfig setBlockChecks(boolean blockChecks) {
+        this.blockChecks = blockChecks;
+        return this;
+    }
+
+    /**
+    * Encrypt connections with AES-GCM, keys derived from this pre-shared
+    * key ("-key"); both sides need the same key. <tt>null</tt>: don't.
+    */
+    public TransferConfig setPresharedKey(byte[] key) {
+        if (key != null && key.length < Encryption.MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key must have at least " + Encryption.MIN_KEY_LENGTH + " bytes");
+        }
+        this.presharedKey = key == null ? null : key.clone();
+        return this;
+    }
+
+    /**
+    * Receiver: write each session into one tar file in the target
+    * directory instead of creating its files ("-archive"), see {@link TarArchive}.
+    */
+    public TransferConfig setArchive(boolean archive) {
+        this.archive = archive;
+        return this;
+    }
+
+    /**
+    * Read or write files of at least <tt>window</tt> bytes through memory
+    * mapped windows of that size ("-mmap"); 0: don't.
+    */
+    public TransferConfig setMmapWindow(long window) {
+        this.mmapWindow = Math.min(window, MappedWindows.MAX_WINDOW);
+        return this;
+    }
+
+    /** Log messages of this level and above ("-l"). */
+    public TransferConfig setLogLevel(Level logLevel) {
+        if (logLevel == null) {
+            throw new IllegalArgumentException("Log level must not be null");
+        }
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    public Level getLogLevel() {
+        return logLevel;
+    }
+}
@@ -0,0 +1,33 @@
+package xfer;
+
+/**
+* Progress of a {@link TransferClient} transfer.
+*
+* The methods are called from the thread running the transfer, between
+* blocks, so they should return quickly. All have empty defaults.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public interface TransferListener {
+
+    /**
+    * A file or directory is announced to the receiver.
+    *
+    * @param path - relative to the parent of its root, '/' separated
+    * @param size - in bytes, -1 for directories
+    */
+    default void fileStarted(String path, long size) {
+    }
+
+    /** After each block; <tt>sent</tt> counts the bytes of this file so far. */
+    default void progress(String path, long sent, long size) {
+    }
+
+    /** The receiver has the file and answered with its checksum. */
+    default void fileFinished(String path, long size, boolean checksumOk) {
+    }
+
+    /** The file exists on the receiver, which doesn't overwrite it. */
+    default void fileSkipped(String path) {
+    }
+}
@@ -0,0 +1,69 @@
+package xfer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+* Outcome of a successful {@link TransferClient} transfer.
+*
+* "Successful" means the session ran to its end; files whose checksums
+* didn't agree are listed in {@link #getChecksumFailures()}.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class TransferResult {
+
+    private final long files;
+    private final long bytes;
+    private final long skipped;
+    private final List<String> checksumFailures;
+    private final long millis;
+
+    TransferResult(long files, long bytes, long skipped, List<String> checksumFailures, long millis) {
+        this.files = files;
+        this.bytes = bytes;
+        this.skipped = skipped;
+        this.checksumFailures = Collections.unmodifiableList(new ArrayList<String>(checksumFailures));
+        this.millis = millis;
+    }
+
+    /** Files sent, including those with checksum failures. */
+    public long getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Files not sent because they exist on the receiver. */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+    * Paths of the files whose checksums the receiver reported differently;
+    * with {@link TransferConfig#setVerify} the paths that differ, each with
+    * the reason ("path: content").
+    */
+    public List<String> getChecksumFailures() {
+        return checksumFailures;
+    }
+
+    /** Wall time of the session. */
+    public long getMillis() {
+        return millis;
+    }
+
+    /** Whether all files sent arrived intact. */
+    public boolean isOk() {
+        return checksumFailures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return files + " files, " + bytes + " bytes, " + skipped + " skipped, "
+            + checksumFailures.size() + " checksum failures in " + millis + " ms";
+    }
+}
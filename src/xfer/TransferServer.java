@@ -0,0 +1,83 @@
+package xfer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+* Receives files from senders within a Java program.
+*
+* <pre>
+*   TransferServer server = new TransferServer(0, new File("/backup"), new TransferConfig().setIoThreads(2));
+*   server.start();
+*   int port = server.getPort();
+*   ...
+*   server.stop();
+* </pre>
+* With {@link TransferConfig#setIoThreads I/O threads} the event driven
+* receiver serves many senders at once, otherwise one session is served
+* at a time. Several servers with different settings may run in one JVM.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+public final class TransferServer {
+
+    private final int port;
+    private final File targetDir;
+    private final TransferConfig config;
+    private Xfer2.Receiver receiver = null;
+    private NioReceiver nioReceiver = null;
+
+    /**
+    * @param port - 0 for any free port, see {@link #getPort()}
+    * @param config - copied, later changes don't affect this server
+    */
+    public TransferServer(int port, File targetDir, TransferConfig config) {
+        this.port = port;
+        this.targetDir = targetDir;
+        this.config = config.copy();
+    }
+
+    /** Listen and accept senders in the background. */
+    public synchronized void start() throws IOException {
+        if (isRunning()) {
+            throw new IllegalStateException("Already started");
+        }
+        if (config.ioThreads > 0 && config.presharedKey != null) {
+            throw new IOException("The event driven receiver doesn't encrypt");
+        }
+        if (config.ioThreads > 0 && config.archive) {
+            throw new IOException("The event driven receiver doesn't write archives");
+        }
+        if (config.ioThreads > 0) {
+            nioReceiver = new NioReceiver(port, targetDir, config);
+            nioReceiver.start();
+        } else {
+            receiver = new Xfer2.Receiver(port, targetDir, config);
+            receiver.start();
+        }
+    }
+
+    /** The port listened on, -1 if not started. */
+    public synchronized int getPort() {
+        if (nioReceiver != null) {
+            return nioReceiver.getLocalPort();
+        }
+        return receiver == null ? -1 : receiver.getLocalPort();
+    }
+
+    public synchronized boolean isRunning() {
+        return receiver != null || nioReceiver != null;
+    }
+
+    /** Stop accepting senders; sessions in progress run to their end. */
+    public synchronized void stop() {
+        if (nioReceiver != null) {
+            nioReceiver.shutdown();
+            nioReceiver = null;
+        }
+        if (receiver != null) {
+            receiver.shutdown();
+            receiver = null;
+        }
+    }
+}
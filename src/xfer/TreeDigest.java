@@ -0,0 +1,162 @@
+package xfer;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+* Merkle tree digest of a file's content, computed on all cores ("-tree"
+* option, feature "tree").
+*
+* The content is cut into leaves of {@value #LEAF} bytes; each full leaf
+* is hashed (SHA-256 of 0x00 and the leaf) by a task of the common
+* ForkJoin pool while the next one is filled, so hashing is no longer
+* bound to the one thread reading or receiving the file. Pairs of
+* hashes are combined level by level (SHA-256 of 0x01, left and right;
+* an odd hash moves up as it is) into the root, which is the digest.
+* At most {@link #MAX_PENDING} leaves are in the pool at a time.
+*
+* It is a {@link MessageDigest}, so it takes the place of the md5 in the
+* protocol's checksum messages without further changes; both sides must
+* use it, hence the feature. The leaf hashes of the last digest stay
+* available through {@link #leaves()}.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class TreeDigest extends MessageDigest {
+
+    static final int LEAF = 1024 * 1024;
+    static final int MAX_PENDING = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+    private static final int LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> sha = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return ChunkStore.sha256();
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+        }
+    };
+
+    private byte[] leaf = null;
+    private int leafLength = 0;
+    private final List<byte[]> hashes = new ArrayList<byte[]>();
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+    private List<byte[]> lastLeaves = new ArrayList<byte[]>();
+
+    TreeDigest() {
+        super("Merkle-SHA-256");
+    }
+
+    /** The leaf hashes of the last digest, in order. */
+    List<byte[]> leaves() {
+        return lastLeaves;
+    }
+
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] {input}, 0, 1);
+    }
+
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        while (len > 0) {
+            if (leaf == null) {
+                leaf = BufferPool.take(LEAF);
+                leafLength = 0;
+            }
+            int n = Math.min(len, LEAF - leafLength);
+            System.arraycopy(input, offset, leaf, leafLength, n);
+            leafLength += n;
+            offset += n;
+            len -= n;
+            if (leafLength == LEAF) {
+                submit(leaf, leafLength);
+                leaf = null;
+            }
+        }
+    }
+
+    private void submit(final byte[] data, final int length) {
+        if (pending.size() >= MAX_PENDING) {
+            hashes.add(pending.removeFirst().join());
+        }
+        pending.addLast(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call() {
+                try {
+                    return hashLeaf(data, length);
+                } finally {
+                    BufferPool.give(data);
+                }
+            }
+        }));
+    }
+
+    private static byte[] hashLeaf(byte[] data, int length) {
+        MessageDigest md = sha.get();
+        md.reset();
+        md.update((byte) 0);
+        md.update(data, 0, length);
+        return md.digest();
+    }
+
+    protected byte[] engineDigest() {
+        // the last, partial leaf (or the only, empty one) is hashed here
+        if (leaf != null || (hashes.isEmpty() && pending.isEmpty())) {
+            hashes.addAll(joinPending());
+            hashes.add(hashLeaf(leaf == null ? new byte[0] : leaf, leaf == null ? 0 : leafLength));
+            BufferPool.give(leaf);
+            leaf = null;
+        } else {
+            hashes.addAll(joinPending());
+        }
+        lastLeaves = new ArrayList<byte[]>(hashes);
+        List<byte[]> level = new ArrayList<byte[]>(hashes);
+        MessageDigest md = sha.get();
+        while (level.size() > 1) {
+            List<byte[]> up = new ArrayList<byte[]>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    up.add(level.get(i));
+                } else {
+                    md.reset();
+                    md.update((byte) 1);
+                    md.update(level.get(i));
+                    md.update(level.get(i + 1));
+                    up.add(md.digest());
+                }
+            }
+            level = up;
+        }
+        engineReset();
+        return level.get(0);
+    }
+
+    private List<byte[]> joinPending() {
+        List<byte[]> done = new ArrayList<byte[]>(pending.size());
+        while (!pending.isEmpty()) {
+            done.add(pending.removeFirst().join());
+        }
+        return done;
+    }
+
+    protected void engineReset() {
+        // leaves still in the pool give their buffers back themselves
+        for (ForkJoinTask<byte[]> task : pending) {
+            task.join();
+        }
+        pending.clear();
+        hashes.clear();
+        BufferPool.give(leaf);
+        leaf = null;
+        leafLength = 0;
+    }
+
+    protected int engineGetDigestLength() {
+        return LENGTH;
+    }
+}
@@ -0,0 +1,373 @@
+package xfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+
+/**
+* Verifying a copy without sending any content ("-verify" option, feature
+* "verify").
+*
+* Both sides hash their trees: a file's digest is the SHA-256 of its
+* size, modification time (in whole seconds, as not every file system
+* keeps more) and the SHA-256 of its content, a directory's digest that
+* of its entries' names, types and digests, in the order of their names.
+* Contents are hashed on all cores. The sender then compares top down
+* and only asks for the entries of directories whose digests differ:
+* <pre>
+*   sender: "digest:path" per root, all at once
+*   receiver: per root: "type,size,mtime,digest,name" or "-" if missing
+*   sender: "list:path" for a directory that differs
+*   receiver: "type,size,mtime,digest,name" per entry, then ""
+*   sender: "FINIS."
+* </pre>
+* The type is "f" or "d", sizes of directories are -1. The receiver
+* hashes a root while the sender still hashes its own. A tree with a few
+* differences costs a few messages per directory level above them, no
+* matter how many files there are.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class TreeVerify {
+
+    static final String DIGEST = "digest:";
+    static final String LIST = "list:";
+    static final String MISSING = "-";
+
+    /** One file or directory with its digest. */
+    static final class Node {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long mtime;
+        byte[] digest;
+        /** sorted by name, <tt>null</tt> for a file */
+        List<Node> children;
+        /** to hash the content, dropped afterwards */
+        File file;
+
+        Node(String name, boolean directory, long size, long mtime) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        Node child(String childName) {
+            if (children == null) return null;
+            int i = Collections.binarySearch(children, new Node(childName, false, 0L, 0L), BY_NAME);
+            return i < 0 ? null : children.get(i);
+        }
+
+        /** as sent by the receiver */
+        String describe() {
+            return (directory ? "d," : "f,") + size + "," + mtime + "," + ChunkStore.hex(digest) + "," + name;
+        }
+    }
+
+    private static final Comparator<Node> BY_NAME = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private TreeVerify() {
+    }
+
+    /**
+    * The hashed tree of a file or directory, <tt>null</tt> if it doesn't
+    * exist or is neither.
+    */
+    static Node scan(File root, TransferConfig config) throws IOException {
+        FileEntry rootEntry;
+        try {
+            rootEntry = FileEntry.stat(null, root.getName(), root.toPath());
+        } catch (IOException ioe) {
+            return null;
+        }
+        List<Node> files = new ArrayList<Node>();
+        Node rootNode = node(rootEntry, root, files);
+        if (rootNode == null) {
+            return null;
+        }
+        if (rootNode.directory) {
+            Map<FileEntry, Node> dirs = new HashMap<FileEntry, Node>();
+            dirs.put(rootEntry, rootNode);
+            File rootParent = root.getAbsoluteFile().getParentFile();
+            for (FileEntry entry : DirTree.getEntries(rootEntry, root)) {
+                Node parent = dirs.get(entry.getParent());
+                Node node = node(entry, entry.toFile(rootParent), files);
+                if (parent == null || node == null) continue;
+                parent.children.add(node);
+                if (node.directory) dirs.put(entry, node);
+            }
+        }
+        long start = System.currentTimeMillis();
+        ForkJoinPool.commonPool().invoke(new HashFiles(files, 0, files.size(), config));
+        hashDirectories(rootNode);
+        Xfer2.log(config, Level.FINE, "Hashed " + files.size() + " files of " + root + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return rootNode;
+    }
+
+    private static Node node(FileEntry entry, File file, List<Node> files) {
+        if (entry.isDirectory()) {
+            Node node = new Node(entry.getName(), true, -1L, entry.getLastModified());
+            node.children = new ArrayList<Node>();
+            return node;
+        } else if (entry.isFile()) {
+            Node node = new Node(entry.getName(), false, entry.getSize(), entry.getLastModified());
+            node.file = file;
+            files.add(node);
+            return node;
+        }
+        // neither is ever sent
+        return null;
+    }
+
+    /** Content digests of a range of files, split up across the pool. */
+    private static final class HashFiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SPLIT = 16;
+        private final List<Node> files;
+        private final int from;
+        private final int to;
+        private final transient TransferConfig config;
+
+        HashFiles(List<Node> files, int from, int to, TransferConfig config) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.config = config;
+        }
+
+        protected void compute() {
+            if (to - from > SPLIT) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashFiles(files, from, mid, config), new HashFiles(files, mid, to, config));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                hashFile(files.get(i), config);
+            }
+        }
+    }
+
+    private static void hashFile(Node node, TransferConfig config) {
+        byte[] content;
+        try {
+            MessageDigest sha = ChunkStore.sha256();
+            InputStream in = new FileInputStream(node.file);
+            byte[] buf = BufferPool.take(Xfer2.BLOCKSIZE * 4);
+            try {
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    sha.update(buf, 0, len);
+                }
+            } finally {
+                try { in.close(); } catch (IOException ioe1){}
+                BufferPool.give(buf);
+            }
+            content = sha.digest();
+        } catch (IOException ioe) {
+            // unreadable: hashed without content, so it shows as different
+            Xfer2.log(config, Level.WARNING, "Could not read " + node.file + ": " + ioe);
+            content = new byte[0];
+        }
+        node.file = null;
+        try {
+            MessageDigest sha = ChunkStore.sha256();
+            sha.update((byte) 'f');
+            sha.update(Long.toString(node.size).getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) ',');
+            sha.update(Long.toString(node.mtime / 1000).getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) ',');
+            sha.update(content);
+            node.digest = sha.digest();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private static void hashDirectories(Node node) throws IOException {
+        if (!node.directory) return;
+        Collections.sort(node.children, BY_NAME);
+        MessageDigest sha = ChunkStore.sha256();
+        sha.update((byte) 'd');
+        for (Node child : node.children) {
+            hashDirectories(child);
+            sha.update(child.name.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update((byte) (child.directory ? 'd' : 'f'));
+            sha.update(child.digest);
+        }
+        node.digest = sha.digest();
+    }
+
+    /**
+    * Receiver: answer the sender's requests until it finishes.
+    *
+    * @param targetDir - the roots are looked for here
+    */
+    static void answer(File targetDir, InputStream sendIs, OutputStream sendOs, TransferConfig config)
+            throws IOException {
+        Map<String, Node> roots = new HashMap<String, Node>();
+        int requests = 0;
+        String request;
+        while ((request = readName(sendIs)).length() > 0 && !"FINIS.".equals(request)) {
+            requests++;
+            if (request.startsWith(DIGEST)) {
+                String path = request.substring(DIGEST.length());
+                Node node = find(targetDir, roots, path, config);
+                Xfer2.writeToStream(sendOs, node == null ? MISSING : node.describe(), true);
+            } else if (request.startsWith(LIST)) {
+                Node node = find(targetDir, roots, request.substring(LIST.length()), config);
+                if (node != null && node.children != null) {
+                    for (Node child : node.children) {
+                        Xfer2.writeToStream(sendOs, child.describe(), false);
+                    }
+                }
+                Xfer2.writeToStream(sendOs, "");
+            } else {
+                throw new IOException("Unknown verify request: " + request);
+            }
+        }
+        Xfer2.log(config, Level.INFO, "Verify session with " + requests + " requests finished");
+    }
+
+    /** The node of a path below the target directory; roots are hashed when first asked for. */
+    private static Node find(File targetDir, Map<String, Node> roots, String path, TransferConfig config)
+            throws IOException {
+        String[] names = path.split("/");
+        if (Arrays.asList(names).contains("..")) {
+            throw new IOException("Path leaves the target directory: " + path);
+        }
+        if (!roots.containsKey(names[0])) {
+            Xfer2.log(config, Level.INFO, "Hashing " + names[0]);
+            roots.put(names[0], scan(new File(targetDir, names[0]), config));
+        }
+        Node node = roots.get(names[0]);
+        for (int i = 1; i < names.length && node != null; i++) {
+            node = node.child(names[i]);
+        }
+        return node;
+    }
+
+    /**
+    * Sender: compare the roots with the receiver's copy.
+    *
+    * @return the paths that differ, each with the reason
+    */
+    static List<String> compare(List<File> roots, InputStream rcvis, OutputStream rcvos, TransferConfig config)
+            throws IOException {
+        // the receiver hashes while we do
+        for (File root : roots) {
+            Xfer2.writeToStream(rcvos, DIGEST + root.getName(), false);
+        }
+        rcvos.flush();
+        List<Node> mine = new ArrayList<Node>();
+        for (File root : roots) {
+            mine.add(scan(root, config));
+        }
+        List<String> differences = new ArrayList<String>();
+        int[] requests = {roots.size()};
+        for (int i = 0; i < roots.size(); i++) {
+            Node node = mine.get(i);
+            String[] theirs = parse(readName(rcvis));
+            if (node == null) {
+                Xfer2.log(config, Level.SEVERE, "File not found: " + roots.get(i).getAbsolutePath());
+                continue;
+            }
+            compare(node.name, node, theirs, rcvis, rcvos, differences, requests);
+        }
+        Xfer2.writeToStream(rcvos, "FINIS.");
+        for (String difference : differences) {
+            Xfer2.log(config, Level.WARNING, "Differs: " + difference);
+        }
+        Xfer2.log(config, Level.INFO, differences.isEmpty() ? "Trees agree" : differences.size() + " differences");
+        Xfer2.log(config, Level.FINE, requests[0] + " verify requests");
+        return differences;
+    }
+
+    private static void compare(String path, Node mine, String[] theirs, InputStream rcvis, OutputStream rcvos,
+            List<String> differences, int[] requests) throws IOException {
+        if (theirs == null) {
+            differ(differences, path, "only on sender");
+        } else if (ChunkStore.hex(mine.digest).equals(theirs[3])) {
+            return;
+        } else if (mine.directory != theirs[0].equals("d")) {
+            differ(differences, path, mine.directory ? "directory on sender, file on receiver"
+                    : "file on sender, directory on receiver");
+        } else if (!mine.directory) {
+            long size = Long.parseLong(theirs[1]);
+            long mtime = Long.parseLong(theirs[2]);
+            differ(differences, path, size != mine.size ? "size " + mine.size + " vs " + size
+                    : mtime / 1000 != mine.mtime / 1000 ? "modification time " + mine.mtime + " vs " + mtime
+                    : "content");
+        } else {
+            Xfer2.writeToStream(rcvos, LIST + path, true);
+            requests[0]++;
+            List<String[]> entries = new ArrayList<String[]>();
+            String msg;
+            while ((msg = readName(rcvis)).length() > 0) {
+                entries.add(parse(msg));
+            }
+            // both sorted by name
+            int j = 0;
+            for (Node child : mine.children) {
+                while (j < entries.size() && entries.get(j)[4].compareTo(child.name) < 0) {
+                    differ(differences, path + "/" + entries.get(j)[4], "only on receiver");
+                    j++;
+                }
+                String[] other = null;
+                if (j < entries.size() && entries.get(j)[4].equals(child.name)) {
+                    other = entries.get(j);
+                    j++;
+                }
+                compare(path + "/" + child.name, child, other, rcvis, rcvos, differences, requests);
+            }
+            for (; j < entries.size(); j++) {
+                differ(differences, path + "/" + entries.get(j)[4], "only on receiver");
+            }
+        }
+    }
+
+    private static void differ(List<String> differences, String path, String reason) {
+        differences.add(path + ": " + reason);
+    }
+
+    /** An entry as described by the receiver, <tt>null</tt> if missing. */
+    private static String[] parse(String msg) throws IOException {
+        if (MISSING.equals(msg)) {
+            return null;
+        }
+        String[] fields = msg.split(",", 5);
+        if (fields.length < 5) {
+            throw new IOException("Bad verify answer: " + msg);
+        }
+        return fields;
+    }
+
+    /**
+    * Messages are read byte by byte as chars; names with characters
+    * outside ASCII are put together again from their bytes.
+    */
+    private static String readName(InputStream is) throws IOException {
+        String msg = Xfer2.readFromStream(is);
+        return new String(msg.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,328 @@
+package xfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+* Continuous replication ("-watch" option).
+*
+* The roots are synchronized once, then all their directories are
+* registered with a {@link WatchService}. Events are collected until no
+* new ones arrived for <tt>debounce</tt> ms (at most ten times as long),
+* so that a file being written is sent once rather than for every write,
+* and then the changed files and new directories are sent as one batch
+* over a connection that stays open between batches. If the connection
+* fails, it is reestablished with growing delays (1 s up to 60 s) and the
+* batch is collected and sent again.
+*
+* A file counts as changed if its size or modification time differs from
+* what was last sent. When events were lost (OVERFLOW), all roots are
+* rescanned; if directories can't be watched at all (e.g. the inotify
+* limit is reached), the roots are rescanned every
+* {@value #RESCAN_INTERVAL} ms instead.
+*
+* Existing files on the receiver are always overwritten. Deletions are not
+* replicated, but a deleted path and everything below it is forgotten, so
+* a directory recreated at the same path is listed and watched again; the
+* same happens when a directory's key becomes invalid.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class WatchSender {
+
+    static final long RESCAN_INTERVAL = 30000L;
+    private static final long MIN_RETRY = 1000L;
+    private static final long MAX_RETRY = 60000L;
+    /** size and mtime of directories don't matter, only that they are known */
+    private static final Stamp DIRECTORY = new Stamp(-1L, Long.MIN_VALUE);
+
+    private final String host;
+    private final int port;
+    private final List<File> roots;
+    private final long debounce;
+    private final TransferConfig config;
+    private final Xfer2.Sender sender;
+    private WatchService watcher = null;
+    private boolean rescanOnly = false;
+    private long lastRescan = 0L;
+    /** path -> stamp of what the receiver has; sorted to find what is below a directory */
+    private final SortedMap<String, Stamp> known = new TreeMap<String, Stamp>();
+
+    /**
+    * @param roots - canonical files or directories
+    * @param debounce - quiet time in ms before a batch is sent
+    */
+    WatchSender(String host, int port, List<File> roots, long debounce, TransferConfig config) {
+        this.host = host;
+        this.port = port;
+        this.roots = roots;
+        this.debounce = Math.max(1L, debounce);
+        this.config = config;
+        sender = new Xfer2.Sender(config);
+    }
+
+    /** Replicate until interrupted. */
+    void run() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.WARNING, "File system can't be watched, rescanning every " + RESCAN_INTERVAL + " ms", ioe);
+            rescanOnly = true;
+        }
+        Xfer2.log(config, Level.INFO, "Watching " + roots + ", sending to " + host + ":" + port);
+        try {
+            rescan();
+            while (true) {
+                Set<Path> changed = new TreeSet<Path>();
+                boolean overflow = false;
+                WatchKey key = next(rescanOnly
+                        ? Math.max(1L, RESCAN_INTERVAL - (System.currentTimeMillis() - lastRescan)) : -1L);
+                long deadline = System.currentTimeMillis() + 10 * debounce;
+                // coalesce everything that happens until things calm down
+                while (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            forget(dir.resolve((Path) event.context()));
+                        } else {
+                            changed.add(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        // deleted or no longer watchable: list and register it again if it exists
+                        forget(dir);
+                        changed.add(dir);
+                    }
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        break;
+                    }
+                    key = next(Math.min(debounce, left));
+                }
+                if (overflow) {
+                    Xfer2.log(config, Level.WARNING, "Lost file system events, rescanning");
+                }
+                if (overflow || (rescanOnly && System.currentTimeMillis() - lastRescan >= RESCAN_INTERVAL)) {
+                    rescan();
+                } else if (!changed.isEmpty()) {
+                    sync(changed, false);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Xfer2.log(config, Level.FINE, "Watch interrupted");
+        } catch (ClosedWatchServiceException cwse) {
+            Xfer2.log(config, Level.FINE, "Watch service closed");
+        } finally {
+            if (sender.isOpen()) {
+                try {
+                    sender.finish();
+                } catch (IOException ioe1){}
+                sender.close();
+            }
+            try {
+                if (watcher != null) watcher.close();
+            } catch (IOException ioe1){}
+        }
+    }
+
+    /** Next signalled key, <tt>null</tt> after <tt>timeout</tt> ms; -1: wait forever. */
+    private WatchKey next(long timeout) throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(timeout < 0 ? RESCAN_INTERVAL : timeout);
+            return null;
+        }
+        return timeout < 0 ? watcher.take() : watcher.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void rescan() throws InterruptedException {
+        Set<Path> all = new TreeSet<Path>();
+        for (File root : roots) {
+            all.add(root.toPath());
+        }
+        sync(all, true);
+        lastRescan = System.currentTimeMillis();
+    }
+
+    /** Send what changed below <tt>paths</tt>; retries until the receiver has it. */
+    private void sync(Set<Path> paths, boolean full) throws InterruptedException {
+        long retry = MIN_RETRY;
+        while (true) {
+            Map<String, Stamp> stamps = new HashMap<String, Stamp>();
+            Map<File, List<FileEntry>> batch = collect(paths, full, stamps);
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                if (!sender.isOpen()) {
+                    sender.open(host, port);
+                    sender.handshake(true);
+                }
+                for (Map.Entry<File, List<FileEntry>> e : batch.entrySet()) {
+                    sender.sendEntries(e.getValue(), e.getKey().getAbsoluteFile().getParentFile());
+                }
+                known.putAll(stamps);
+                Xfer2.log(config, Level.INFO, "Sent " + stamps.size() + " changed entries");
+                return;
+            } catch (IOException ioe) {
+                Xfer2.log(config, Level.WARNING, "Sending to " + host + ":" + port + " failed, retrying in "
+                        + retry / 1000 + " s", ioe);
+                sender.close();
+                Thread.sleep(retry);
+                retry = Math.min(2 * retry, MAX_RETRY);
+            }
+        }
+    }
+
+    /**
+    * Entries to send, by root; stamps of the entries go to <tt>stamps</tt>.
+    * New directories are listed recursively and registered; with
+    * <tt>full</tt>, all directories are.
+    */
+    private Map<File, List<FileEntry>> collect(Set<Path> paths, boolean full, Map<String, Stamp> stamps) {
+        Map<File, List<FileEntry>> batch = new LinkedHashMap<File, List<FileEntry>>();
+        Map<Path, FileEntry> entries = new HashMap<Path, FileEntry>();
+        for (Path path : paths) {
+            File root = rootOf(path);
+            if (root == null) {
+                continue;
+            }
+            FileEntry entry;
+            try {
+                entry = entryFor(path, root, entries);
+            } catch (IOException ioe) {
+                // deleted meanwhile
+                continue;
+            }
+            File rootParent = root.getAbsoluteFile().getParentFile();
+            if (entry.isDirectory()) {
+                boolean isNew = !known.containsKey(path.toString());
+                if (!path.equals(root.toPath())) {
+                    add(batch, root, rootParent, entry, stamps);
+                }
+                if (isNew || full) {
+                    register(path);
+                    for (FileEntry child : DirTree.getEntries(entry, path.toFile())) {
+                        if (child.isDirectory()) {
+                            register(child.toFile(rootParent).toPath());
+                        }
+                        add(batch, root, rootParent, child, stamps);
+                    }
+                }
+            } else {
+                if (full && path.equals(root.toPath())) {
+                    // single file root
+                    register(path.getParent());
+                }
+                add(batch, root, rootParent, entry, stamps);
+            }
+        }
+        return batch;
+    }
+
+    private void add(Map<File, List<FileEntry>> batch, File root, File rootParent, FileEntry entry,
+            Map<String, Stamp> stamps) {
+        String key = entry.toFile(rootParent).getPath();
+        Stamp stamp = entry.isDirectory() ? DIRECTORY : new Stamp(entry.getSize(), entry.getLastModified());
+        if (stamp.equals(known.get(key)) || stamps.containsKey(key)) {
+            return;
+        }
+        stamps.put(key, stamp);
+        List<FileEntry> list = batch.get(root);
+        if (list == null) {
+            list = new ArrayList<FileEntry>();
+            batch.put(root, list);
+        }
+        list.add(entry);
+    }
+
+    /** The root <tt>path</tt> belongs to, <tt>null</tt> for neighbours of single file roots. */
+    private File rootOf(Path path) {
+        for (File root : roots) {
+            Path rootPath = root.toPath();
+            if (root.isDirectory() ? path.startsWith(rootPath) : path.equals(rootPath)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    /** Entry of <tt>path</tt>, with parent entries up to the root. */
+    private FileEntry entryFor(Path path, File root, Map<Path, FileEntry> entries) throws IOException {
+        FileEntry entry = entries.get(path);
+        if (entry == null) {
+            if (path.equals(root.toPath())) {
+                entry = FileEntry.stat(null, root.getName(), path);
+            } else {
+                FileEntry parent = entryFor(path.getParent(), root, entries);
+                entry = FileEntry.stat(parent, path.getFileName().toString(), path);
+            }
+            entries.put(path, entry);
+        }
+        return entry;
+    }
+
+    private void register(Path dir) {
+        if (rescanOnly) {
+            return;
+        }
+        try {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ioe) {
+            Xfer2.log(config, Level.WARNING, "Can't watch " + dir + ", rescanning every " + RESCAN_INTERVAL + " ms", ioe);
+            rescanOnly = true;
+        }
+    }
+
+    /** Forget <tt>path</tt> and everything below it. */
+    private void forget(Path path) {
+        String key = path.toString();
+        known.remove(key);
+        known.subMap(key + File.separatorChar, key + (char) (File.separatorChar + 1)).clear();
+    }
+
+    /** Size and mtime of an entry, as the receiver has it. */
+    private static final class Stamp {
+        final long size;
+        final long mtime;
+
+        Stamp(long size, long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return size == other.size && mtime == other.mtime;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ (size >>> 32)) * 31 + (int) (mtime ^ (mtime >>> 32));
+        }
+    }
+}
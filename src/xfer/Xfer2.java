@@ -0,0 +1,2202 @@
+package xfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.zip.Deflater;
+
+/* Simple file transfer across network to send files or directories (recursively) to another host.
+ * To keep number of files and footprint small, almost all classes are combined in this one file.
+ *
+ * (c) amhlaobh@users.noreply.github.com
+ * 
+ * NB: Windows doesn't allow :, ?, *, <, >, ", |, / and \ in file names, so a file "a:b" will be created as "a" 
+ */
+
+public class Xfer2 {
+    
+    private static final int PORT = 9337;
+    static final int BLOCKSIZE = 1024 * 16;
+    static final String VERSION = "xfer3.5";
+    static final String EXISTS_WONT_OVERWRITE = "existsWontOverwrite";
+    static final String EXISTS_WILL_OVERWRITE = "existsWillOverwrite";
+    static final String EXISTS_NOT = "existsNot";
+    static final String FORCE_OVERWRITE = "forceOverwrite";
+    static final String DUPLICATE_SUFFIX = ".xfer";
+    private static final String TICK_SYMBOL = "=";
+    private static final byte[] NULL_ARR = new byte[]{0};
+    /**
+    * Optional protocol features. The sender appends the ones it wants to
+    * the overwrite flag ("x,probe"); the receiver then answers with those
+    * it supports, possibly none ("").
+    */
+    static final String FEATURE_PROBE = "probe";
+    /**
+    * The receiver serves other sessions while one is idle, so a sender may
+    * keep the connection open between jobs. This receiver doesn't: it
+    * handles one session at a time.
+    */
+    static final String FEATURE_POOL = "pool";
+    /**
+    * The receiver forwards the session to further hops, see {@link Destination}.
+    * The sender names them in a message of its own after the handshake.
+    */
+    static final String FEATURE_RELAY = "relay";
+    /** Files are sent as chunks the receiver doesn't have yet, see {@link ChunkStore}. */
+    static final String FEATURE_DEDUP = "dedup";
+    /** The receiver makes files from identical ones sent before, see {@link Duplicates}. */
+    static final String FEATURE_DUP = "dup";
+    /** Zero pages are sent as holes, the receiver keeps them sparse, see {@link Sparse}. */
+    static final String FEATURE_SPARSE = "sparse";
+    /** Content comes in blocks with a CRC each, damaged ones are sent again, see {@link BlockCheck}. */
+    static final String FEATURE_CRC = "crc";
+    /** Checksums are Merkle tree digests computed on all cores instead of md5s, see {@link TreeDigest}. */
+    static final String FEATURE_TREE = "tree";
+    /** No files are sent, the trees are compared instead, see {@link TreeVerify}. */
+    static final String FEATURE_VERIFY = "verify";
+    private static final String[] SUPPORTED_FEATURES = {FEATURE_PROBE, FEATURE_RELAY, FEATURE_DEDUP, FEATURE_DUP,
+        FEATURE_SPARSE, FEATURE_CRC, FEATURE_TREE, FEATURE_VERIFY};
+    private static final long LOGFILE_SIZE = 10L * 1024 * 1024;
+    private static final int LOGFILE_KEEP = 5;
+    /** -watch: quiet time in ms before changes are sent, -1: no watch mode */
+    private static long watchDebounce = -1L;
+    /** -agent: control directory of the resident sender, null: no agent */
+    private static File agentDir = null;
+    /** -chain: the receivers given with -h forward to each other instead of all receiving from the sender */
+    private static boolean chain = false;
+    
+    public Xfer2(){
+        // just print out some diagnostics about myself
+        String name = getClass().getName().replace('.', '/');
+        String path = getClass().getResource("/" + name + ".class").toString();
+        int idxSlash = path.indexOf('/');
+        int idxExcl = path.lastIndexOf('!');
+        if (idxSlash >= 0 && idxExcl >= 0){
+            String myJarName = path.substring(idxSlash, idxExcl);
+            log(Level.CONFIG, "My jar file name: "+myJarName);
+        }
+    }
+    
+    static void writeToStream(OutputStream sendOs, String s)
+            throws IOException {
+        writeToStream(sendOs, s, true);
+    }
+    
+    static void writeToStream(OutputStream sendOs, String s, boolean flush) 
+        throws IOException{
+        sendOs.write(s.getBytes());
+        // can't simply send write(0) because write(int) and write(byte[])
+        // in CompressedBlockOutputStream apparently can't be mixed
+        sendOs.write(NULL_ARR);
+        if (flush) sendOs.flush();
+        
+    }
+
+    /** Reads a NUL terminated message; empty at end of stream. */
+    static String readFromStream(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = is.read()) != -1 && c != 0){
+            sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    /** Applies the socket options of <tt>config</tt>. */
+    static void configureSocket(Socket socket, TransferConfig config) throws SocketException {
+        if (config.sndBuf > 0) socket.setSendBufferSize(config.sndBuf);
+        if (config.rcvBuf > 0) socket.setReceiveBufferSize(config.rcvBuf);
+        if (config.tcpNoDelay) socket.setTcpNoDelay(true);
+        if (config.keepAlive) socket.setKeepAlive(true);
+    }
+
+    /**
+    * Receiver: the features requested in the sender's overwrite flag message
+    * (elements 1.. of <tt>flag</tt>) that are in <tt>supported</tt>.
+    */
+    static List<String> acceptFeatures(String[] flag, String[] supported) {
+        List<String> accepted = new ArrayList<String>();
+        for (int i = 1; i < flag.length; i++) {
+            if (Arrays.asList(supported).contains(flag[i])) {
+                accepted.add(flag[i]);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+    * Sender: send the overwrite flag with the wanted features and return
+    * those the receiver accepted.
+    */
+    static List<String> requestFeatures(InputStream is, OutputStream os, String flag, List<String> wanted,
+            TransferConfig config) throws IOException {
+        StringBuilder msg = new StringBuilder(flag);
+        for (String feature : wanted) {
+            msg.append(',').append(feature);
+        }
+        writeToStream(os, msg.toString());
+        List<String> accepted = new ArrayList<String>();
+        if (!wanted.isEmpty()) {
+            String answer = readFromStream(is);
+            if (answer.length() > 0) {
+                accepted.addAll(Arrays.asList(answer.split(",")));
+            }
+            log(config, Level.FINE, "Receiver accepts features: " + accepted);
+        }
+        return accepted;
+    }
+
+    /** "host:port", with <tt>port</tt> unless the host already names one. */
+    static String withPort(String host, int port) {
+        if (host.startsWith("[")) {
+            // IPv6 literal
+            return host.indexOf("]:") >= 0 ? host : host + ":" + port;
+        }
+        int colon = host.indexOf(':');
+        return colon >= 0 && colon == host.lastIndexOf(':') ? host : host + ":" + port;
+    }
+
+    /** Comma separated. */
+    static String join(List<String> list) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : list) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    static String formatTransferRate(double transferTimeMillis, long transferBytes){
+        double bytesPerSecond = (transferBytes*1000.0 / (transferTimeMillis));
+        return String.format ("%s/s", formatKiBMiBGiB(bytesPerSecond));
+    }
+
+    /**
+    * Parses a size like "1500", "64K", "10M", "1.5G" (factors of 1024) into bytes.
+    *
+    * @throws NumberFormatException if it isn't a finite, non-negative number of bytes
+    */
+    static long parseSize(String size) {
+        return parseBytes(size, "size");
+    }
+
+    /** {@link #parseSize}, naming <tt>what</tt> was expected in the error. */
+    static long parseBytes(String value, String what) {
+        String r = value.trim().toUpperCase(Locale.ROOT);
+        long factor = 1;
+        if (r.endsWith("K")) {
+            factor = 1024L;
+        } else if (r.endsWith("M")) {
+            factor = 1024L * 1024;
+        } else if (r.endsWith("G")) {
+            factor = 1024L * 1024 * 1024;
+        }
+        if (factor > 1) {
+            r = r.substring(0, r.length() - 1);
+        }
+        double bytes;
+        try {
+            bytes = Double.parseDouble(r) * factor;
+        } catch (NumberFormatException nfe) {
+            throw new NumberFormatException("Not a " + what + ": " + value);
+        }
+        // NaN fails every comparison
+        if (!(bytes >= 0 && bytes < Long.MAX_VALUE)) {
+            throw new NumberFormatException("A " + what + " must be a number of bytes from 0 to " + Long.MAX_VALUE
+                    + ": " + value);
+        }
+        return (long) bytes;
+    }
+
+    /** Pretty print number of bytes in KiB, MiB and GiB. */
+    private static String formatKiBMiBGiB(double bytes){
+        String unit = "";
+        double formattedBytes = 0.0;
+        
+        if (bytes < 1024 ) {
+            unit = "bytes";
+            formattedBytes = bytes;
+        } else if (bytes < 1024.0*1024.0) {
+            unit = "KiB";
+            formattedBytes = bytes / 1024.0;
+        } else if (bytes < 1024.0*1024.0*1024.0) {
+            unit = "MiB";
+            formattedBytes = bytes / (1024.0 * 1024.0);
+        } else if (bytes < 1024.0*1024.0*1024.0*1024.0) {
+            unit = "GiB";
+            formattedBytes = bytes / (1024.0 * 1024.0 * 1024.0);
+        }
+
+        return String.format ("%4.2f %s", formattedBytes, unit);
+    }
+
+    /** Checks the address of a connecting client against the "-i" option (<tt>null</tt>: all allowed). */
+    static boolean isIpAddressAllowed(InetAddress clientInetAddress, TransferConfig config) {
+        if (config.ipAddresses == null) {
+            return true;
+        } else {
+            String clientAddress = clientInetAddress.getHostAddress();
+            for (String prefix : config.ipAddresses) {
+                if (clientAddress.startsWith(prefix.trim())) {
+                    return true;
+                }
+            }
+            log(config, Level.WARNING, "Connect from " + clientAddress + " not allowed!");
+            return false;
+        }
+    }
+
+    /** Turns cygwin path into Windows path. */
+    private static String cyg2win(String cyg, TransferConfig config){
+        String win = cyg.replaceFirst("^/cygdrive/", "");
+        if (cyg.equals(win)){
+            log(config, Level.WARNING, String.format("%s is not a cygwin path", cyg));
+            return cyg;
+        }
+        log(config, Level.FINEST, "win="+win);
+        win = win.replaceFirst("/", Matcher.quoteReplacement(":\\"));
+        log(config, Level.FINEST, "win="+win);
+        win = win.replaceAll("/", Matcher.quoteReplacement("\\"));
+        log(config, Level.FINEST, "win="+win);
+        return win;
+    }
+    
+    /** Receiver thread. */
+    static class Receiver extends Thread {
+        private ServerSocket serverSocket = null;
+        private Socket recvSocket = null;
+        private File targetDir = null;
+        private int port;
+        private boolean closed = false;
+        private final TransferConfig config;
+        private ChunkStore store = null;
+        private static final ThreadLocal<DateFormat> dateFmt =
+            new ThreadLocal<DateFormat>() {
+                @Override
+                    protected DateFormat initialValue() {
+                        return DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL);
+                    }
+            };
+
+        private void log(Level level, String s) {
+            Xfer2.log(config, level, s);
+        }
+
+        private void log(Level level, String s, Exception e) {
+            Xfer2.log(config, level, s, e);
+        }
+        
+        /** Listens on <tt>port</tt> right away; call {@link #start()} to accept senders. */
+        public Receiver (int port, File targetDir, TransferConfig config) throws IOException {
+            
+            this.port = port;
+            this.targetDir = targetDir;
+            this.config = config;
+
+            if (targetDir.exists()) {
+                if (! targetDir.isDirectory()){
+                    throw new IOException("Target directory " + targetDir.getAbsolutePath() + " is an existing file!");
+                }
+            }
+            
+            if (config.chunkDir != null) {
+                store = new ChunkStore(config);
+            }
+            
+            this.setName("Rcv");
+            log(Level.FINE, "Registering server socket on port " + port);
+            log(Level.FINE, "Writing data to " + targetDir.getAbsolutePath());
+            serverSocket = new ServerSocket();
+            try{
+                // must be set before bind() to allow large TCP windows on accepted sockets
+                if (config.rcvBuf > 0) serverSocket.setReceiveBufferSize(config.rcvBuf);
+                serverSocket.bind(new InetSocketAddress(port));
+            } catch (IOException ioe){
+                try { serverSocket.close(); } catch (IOException ioe1){}
+                throw ioe;
+            }
+            
+        }
+
+        /** The port actually listened on, e.g. if constructed with port 0. */
+        int getLocalPort(){
+            return serverSocket.getLocalPort();
+        }
+
+        public void run() {
+            receive ();
+        }
+        
+        private void receive (){
+            while (true) {
+                log(Level.WARNING, "=====================================");
+                if (closed){
+                    // shutdown() closed the server socket between two connections
+                    return;
+                }
+                try {
+                    if (!closed){
+                        log(Level.FINE, "Listening");
+                        recvSocket = serverSocket.accept();
+                        if (!isIpAddressAllowed (recvSocket.getInetAddress(), config)){
+                            recvSocket.close();
+                            continue;
+                        } else {
+                            log(Level.FINE, "Connect from " + 
+                                    recvSocket.getInetAddress().getHostAddress());
+                            log(Level.FINER, "   i.e. "+
+                                    "/"+recvSocket.getInetAddress().getHostName());
+                        }
+                    }
+                } catch (SocketException se){
+                    log(Level.FINE, "SocketException because of shutdown");
+                    return;
+                } catch (IOException e) {
+                    log(Level.SEVERE, "Accept failed: "+port+ "  ", e);
+                    return;
+                }
+    
+                OutputStream sendOs = null;
+                InputStream sendIs = null;
+                OutputStream bfos = null;
+                // written at positions, for sparse or mapped files
+                RandomAccessFile rafOut = null;
+                int sessionBlocksize = config.blocksize;
+                long modDate = 0L;
+                long fileSize = 0L;
+                
+                boolean finished = false;
+                
+                BandwidthShaper.Share share = null;
+                Destination relay = null;
+                TarArchive archive = null;
+                Metrics.sessions.increment();
+                Metrics.activeSessions.increment();
+                XferEvents.SessionEvent sessionEvent = new XferEvents.SessionEvent();
+                sessionEvent.begin();
+                try {
+                    configureSocket(recvSocket, config);
+                    OutputStream socketOs = recvSocket.getOutputStream();
+                    InputStream socketIs = recvSocket.getInputStream();
+                    if (config.shaper != null) {
+                        share = config.shaper.register(recvSocket.getInetAddress().getHostAddress());
+                        socketOs = new ThrottledOutputStream(socketOs, share);
+                        socketIs = new ThrottledInputStream(socketIs, share);
+                    }
+                    OutputStream os = new BufferedOutputStream(socketOs);
+                    InputStream is = new BufferedInputStream(socketIs);
+                    if (config.presharedKey != null) {
+                        // below compression: compressed content is encrypted
+                        Encryption keys = Encryption.agree(is, os, config.presharedKey, false);
+                        os = keys.wrap(os);
+                        is = keys.wrap(is);
+                    }
+                    if (config.compress) {
+                        sendOs = new CompressedBlockOutputStream(os, config.blocksize, config.deflaterLevel, 
+                                Deflater.DEFAULT_STRATEGY);
+                        sendIs = new CompressedBlockInputStream(is);
+                    } else { 
+                        sendOs = os;
+                        sendIs = is;
+                    }
+                    
+                    // send my version
+                    writeToStream(sendOs, VERSION);
+
+                    String[] senderForcesOverwrite = readFromStream(sendIs).split(",");
+                    int c;
+                    boolean thisOverwrite = config.overwrite;
+                    boolean thisCreateCopy = config.createCopy;
+                    if (FORCE_OVERWRITE.equals(senderForcesOverwrite[0])){
+                        log(Level.INFO, "Sender forces overwrite: "+senderForcesOverwrite[0]);
+                        thisOverwrite = true;
+                        thisCreateCopy = false;
+                    }
+                    List<String> features = acceptFeatures(senderForcesOverwrite, SUPPORTED_FEATURES);
+                    if (store == null || features.contains(FEATURE_RELAY)) {
+                        // the next hop gets the whole content anyway
+                        features.remove(FEATURE_DEDUP);
+                    }
+                    if (config.archive) {
+                        // the archive takes content in one piece, there is nothing to copy or compare
+                        features.remove(FEATURE_DUP);
+                        features.remove(FEATURE_SPARSE);
+                        features.remove(FEATURE_CRC);
+                        features.remove(FEATURE_VERIFY);
+                    }
+                    if (features.contains(FEATURE_RELAY)) {
+                        features.remove(FEATURE_DUP);
+                    }
+                    if (features.contains(FEATURE_RELAY) || features.contains(FEATURE_DEDUP)) {
+                        // the sender chooses chunks over holes, the next hop gets the whole content
+                        features.remove(FEATURE_SPARSE);
+                    }
+                    if (features.contains(FEATURE_RELAY) || features.contains(FEATURE_DEDUP)
+                            || features.contains(FEATURE_SPARSE)) {
+                        features.remove(FEATURE_CRC);
+                    }
+                    boolean dedup = features.contains(FEATURE_DEDUP);
+                    boolean sparse = features.contains(FEATURE_SPARSE);
+                    if (features.contains(FEATURE_RELAY)) {
+                        // the sender's checksums go down the chain, the next hops use md5
+                        features.remove(FEATURE_TREE);
+                        features.remove(FEATURE_VERIFY);
+                    }
+                    boolean crc = features.contains(FEATURE_CRC);
+                    // files received intact in this session by path, to copy their twins from
+                    Map<String, File> receivedFiles = features.contains(FEATURE_DUP) ? new HashMap<String, File>() : null;
+                    if (senderForcesOverwrite.length > 1) {
+                        writeToStream(sendOs, Xfer2.join(features));
+                    }
+                    if (features.contains(FEATURE_PROBE)) {
+                        LinkProbe link = LinkProbe.answer(sendIs, sendOs, config);
+                        link.applyTo(recvSocket, config);
+                        sessionBlocksize = link.blocksize;
+                        if (config.compress) {
+                            ((CompressedBlockOutputStream) sendOs).setBlockSize(sessionBlocksize);
+                        }
+                    }
+                    if (features.contains(FEATURE_RELAY)) {
+                        String chain = readFromStream(sendIs);
+                        relay = Destination.relay(chain, FORCE_OVERWRITE.equals(senderForcesOverwrite[0]), config);
+                        if (relay == null) {
+                            log(Level.SEVERE, "None of " + chain + " reachable, not forwarding");
+                        }
+                    }
+                    
+                    if (features.contains(FEATURE_VERIFY)) {
+                        TreeVerify.answer(targetDir, sendIs, sendOs, config);
+                        continue;
+                    }
+                    if (config.archive) {
+                        archive = TarArchive.create(targetDir, recvSocket.getInetAddress().getHostAddress(), config);
+                    }
+
+                    // 
+                    // start here to receive files
+                    //
+
+                    long transferStartTime = System.currentTimeMillis();
+                    long totalRead = 0;
+                    
+                    MessageDigest digest = null;
+                    if (features.contains(FEATURE_TREE)) {
+                        digest = new TreeDigest();
+                    } else try {
+                        digest = MessageDigest.getInstance("MD5");
+                    } catch (NoSuchAlgorithmException nsae){
+                        log(Level.WARNING, "MD5 not available", nsae);
+                    }
+
+                    boolean receiving = true;
+                    while (receiving){
+                        StringBuilder fileName = new StringBuilder();
+                        while ((c = sendIs.read()) != -1 && c != 0){
+                            fileName.append((char)c);
+                        }
+                        if (fileName.length() == 0){
+                            receiving=false;
+                            continue;
+                        }
+                        if ("FINIS.".equals(fileName.toString())){
+                            if (relay != null) relay.finish();
+                            if (archive != null) archive.finish();
+                            receiving = false;
+                            continue;
+                        }
+                        log(Level.INFO, "Receiving: "+fileName);
+                        File outFile = new File (targetDir, fileName.toString());
+                        PhaseTrace.Record tr = config.trace == null ? null : config.trace.begin("recv", fileName.toString(), 0L);
+                        XferEvents.FileEvent fileEvent = new XferEvents.FileEvent();
+                        fileEvent.begin();
+                        
+                        // receiving file modification date
+                        StringBuilder modDateStr = new StringBuilder();
+                        while ((c = sendIs.read()) != -1 && c != 0){
+                            modDateStr.append((char)c);
+                        }
+                        try {
+                            modDate = Long.parseLong(modDateStr.toString());
+                        } catch (NumberFormatException nfe){}
+                        
+                        // receiving file size
+                        StringBuilder sizeStr = new StringBuilder();
+                        while ((c = sendIs.read()) != -1 && c != 0){
+                            sizeStr.append((char)c);
+                        }
+                        // "size|path": the same as a file sent before
+                        File twin = null;
+                        int bar = sizeStr.indexOf("|");
+                        if (receivedFiles != null && bar >= 0) {
+                            twin = receivedFiles.get(sizeStr.substring(bar + 1));
+                            sizeStr.setLength(bar);
+                        }
+                        try {
+                            fileSize = Long.parseLong(sizeStr.toString());
+                        } catch (NumberFormatException nfe){}
+                        if (tr != null) {
+                            tr.setSize(fileSize);
+                            tr.mark(PhaseTrace.META);
+                        }
+                        boolean copyTwin = twin != null && twin.isFile() && twin.length() == fileSize;
+                        // the next hop decides for itself whether it wants the file
+                        boolean relayWants = false;
+                        if (relay != null) {
+                            relay.announce(fileName.toString(), modDate, fileSize);
+                            relayWants = relay.readAnswer();
+                        }
+                        
+                        if (fileSize == -1) {
+                            // this is a directory
+                            if (archive != null) {
+                                archive.directory(fileName.toString(), modDate);
+                                writeToStream(sendOs, EXISTS_NOT);
+                            } else if (outFile.exists()){
+                                log (Level.FINE, "  This is an existent directory");
+                                if (!outFile.isDirectory()) {
+                                    throw new RuntimeException("Output directory " + outFile.getAbsolutePath() + " is an existing file");
+                                }
+                                writeToStream(sendOs, EXISTS_WONT_OVERWRITE);
+                            } else {
+                                log (Level.FINE, "  This is a non-existent directory");
+                                if (!outFile.mkdirs()) {
+                                    log (Level.SEVERE, "  Directories could not be created for " + outFile.getAbsolutePath());
+                                    receiving = false;
+                                    writeToStream(sendOs, EXISTS_WONT_OVERWRITE);
+                                } else {
+                                    log (Level.FINE, "  Created "+outFile.getAbsolutePath());
+                                    writeToStream(sendOs, EXISTS_NOT);
+                                }
+                            }
+                            if (tr != null) {
+                                tr.mark(PhaseTrace.REPLY);
+                                tr.end();
+                            }
+                            continue;
+                        }
+        
+                        // on Windows, bla.txt equals BLA.TXT, so "exists" has a different semantic
+                        /*
+                        if (outFile.exists()){
+                            if (outFile.getName().equals(outFile.getName().toUpperCase())){
+                                File altFileLower = new File(outFile.getParent(), outFile.getName().toLowerCase()+DUPLICATE_SUFFIX);
+                                outFile = altFileLower;
+                            }
+                        }*/
+                        if (archive != null) {
+                            // nothing exists in a new archive
+                            writeToStream(sendOs, EXISTS_NOT);
+                            outFile = null;
+                        } else if (outFile.exists()) {
+                            if (outFile.isDirectory()){
+                                //log (Level.SEVERE, "Output file " + outFile.getAbsolutePath() + " is an existing directory");
+                                throw new RuntimeException("Output file " + outFile.getAbsolutePath() + " is an existing directory");
+                            }
+                            if (thisOverwrite) {
+                                log(Level.INFO, "Output file " + outFile.getAbsolutePath() + " exists already, will be overwritten");
+                                writeToStream(sendOs, copyTwin ? Duplicates.COPIED_LOCALLY : EXISTS_WILL_OVERWRITE);
+                            } else if (thisCreateCopy){
+                                log(Level.INFO, "Output file " + outFile.getAbsolutePath() + " exists already, will create copy");
+                                writeToStream(sendOs, copyTwin ? Duplicates.COPIED_LOCALLY : EXISTS_NOT);
+                                outFile = new File(outFile.getParent(), outFile.getName() + DUPLICATE_SUFFIX);
+                            } else if (relayWants){
+                                log(Level.INFO, "Output file " + outFile.getAbsolutePath() + " exists already, will only be forwarded");
+                                writeToStream(sendOs, EXISTS_NOT);
+                                outFile = null;
+                            } else {
+                                log(Level.INFO, "Output file " + outFile.getAbsolutePath() + " exists already, will NOT be overwritten");
+                                writeToStream(sendOs, EXISTS_WONT_OVERWRITE);
+                                if (tr != null) {
+                                    tr.mark(PhaseTrace.REPLY);
+                                    tr.end();
+                                }
+                                continue;
+                            }
+                        } else {
+                            writeToStream(sendOs, copyTwin ? Duplicates.COPIED_LOCALLY : EXISTS_NOT);
+                            log(Level.FINER, "Creating dirs for " + outFile.getAbsoluteFile().getParent());
+                            if (!outFile.getAbsoluteFile().getParentFile().exists() && 
+                                    !outFile.getAbsoluteFile().getParentFile().mkdirs()) {
+                                log (Level.SEVERE, "  Directories could not be created.");
+                                receiving = false;
+                                continue;
+                                //throw new RuntimeException("  Directories could not be created."    );
+                            }
+                        }
+                        if (tr != null) tr.mark(PhaseTrace.REPLY);
+                        if (copyTwin) {
+                            log(Level.INFO, "  Same as " + twin.getPath() + ", copying it");
+                            digest.reset();
+                            String myMd5;
+                            boolean linked = false;
+                            try {
+                                linked = Duplicates.materialize(twin, outFile, modDate, digest, config);
+                                myMd5 = createMd5(digest);
+                            } catch (IOException ioe) {
+                                log(Level.WARNING, "  Could not copy " + twin.getPath() + ", getting the content", ioe);
+                                myMd5 = Duplicates.COPY_FAILED;
+                                // the sender announces the file again and must not find it existing
+                                if (outFile.exists() && !outFile.delete()) {
+                                    log(Level.SEVERE, "  Could not remove " + outFile.getAbsolutePath());
+                                }
+                            }
+                            String md5src = readFromStream(sendIs);
+                            writeToStream(sendOs, myMd5);
+                            if (tr != null) {
+                                tr.mark(PhaseTrace.MD5);
+                                tr.end();
+                            }
+                            if (Duplicates.COPY_FAILED.equals(myMd5)) {
+                                continue;
+                            }
+                            // a hard link shares the twin's time, which agrees anyway
+                            if (!linked && outFile.isFile()) setModificationDate(outFile, modDate, config);
+                            if (checkMd5(config, digest, md5src, myMd5)) receivedFiles.put(fileName.toString(), outFile);
+                            sessionEvent.files++;
+                            Metrics.filesReceived.increment();
+                            continue;
+                        }
+                        long openStart = Metrics.enabled ? System.nanoTime() : 0L;
+                        bfos = null;
+                        rafOut = null;
+                        if (archive != null) {
+                            // straight into the archive's buffer
+                            bfos = archive.file(fileName.toString(), modDate, fileSize);
+                        }
+                        boolean mapped = config.mmapWindow > 0 && fileSize >= config.mmapWindow && !dedup && !sparse
+                                && !crc && !relayWants;
+                        if (outFile != null) try {
+                            if (sparse || crc) {
+                                // written at the extents' or blocks' positions
+                                rafOut = new RandomAccessFile(outFile, "rw");
+                                rafOut.setLength(0);
+                            } else if (mapped) {
+                                rafOut = new RandomAccessFile(outFile, "rw");
+                            } else {
+                                bfos = new BufferedOutputStream(new FileOutputStream (outFile));
+                            }
+                            if (Metrics.enabled) Metrics.fileOpen.since(openStart);
+                            if (tr != null) tr.mark(PhaseTrace.OPEN);
+                            log(Level.FINER, "Writing to: "+outFile.getAbsolutePath());
+                        } catch (FileNotFoundException fnfe){
+                            log (Level.SEVERE, "  Output file could not be created: "+outFile.getAbsolutePath());
+                            receiving = false;
+                            continue;
+                            //throw new RuntimeException("Output file could not be created: "+outFile.getAbsolutePath());
+                        }
+                        byte[] buf = BufferPool.take(sessionBlocksize);
+                        int len = 0;
+                        long fileRead = 0;
+                        long digestNanos = 0;
+                        boolean timeDigest = Metrics.enabled || tr != null;
+                        digest.reset();
+                        StringBuilder md5src = new StringBuilder();
+                        BlockCheck check = null;
+                        if (dedup) {
+                            // only missing chunks come, the md5 follows on its own
+                            finished = false;
+                            fileRead = store.receive(sendIs, sendOs, bfos, digest);
+                        } else if (sparse) {
+                            finished = false;
+                            fileRead = Sparse.receive(sendIs, rafOut, fileSize, buf, digest, config);
+                        } else if (crc) {
+                            // the md5 follows on its own, maybe damaged blocks after it
+                            finished = false;
+                            check = new BlockCheck(rafOut, fileSize, config);
+                            fileRead = check.receive(sendIs, digest);
+                        } else if (mapped && rafOut != null) {
+                            // exactly the content, the md5 follows on its own
+                            finished = false;
+                            MappedWindows.receive(sendIs, outFile, rafOut, fileSize, config.mmapWindow, buf, digest);
+                            fileRead = fileSize;
+                        } else {
+                            while ((len = sendIs.read(buf)) != -1) {
+                                fileRead += len;
+                                if (fileRead > fileSize){
+                                    // the end of the content and the beginning of the md5
+                                    int firstPart = len-(int)(fileRead-fileSize);
+                                    finished = buf[len-1] == 0;
+                                    if (digest != null) {
+                                        long digestStart = timeDigest ? System.nanoTime() : 0L;
+                                        digest.update(buf, 0, firstPart);
+                                        if (timeDigest) digestNanos += System.nanoTime() - digestStart;
+                                    }
+                                    if (bfos != null) bfos.write(buf, 0, firstPart);
+                                    if (relayWants) relay.write(buf, 0, firstPart);
+                                    if (Metrics.enabled) Metrics.bytesIn.add(firstPart);
+                                    for (int i = firstPart; i < len; i++) {
+                                        if (buf[i] != 0) {
+                                            md5src.append((char) buf[i]);
+                                        }
+                                    }
+                                    break;
+                                }
+                                if (digest != null) {
+                                    long digestStart = timeDigest ? System.nanoTime() : 0L;
+                                    digest.update(buf, 0, len);
+                                    if (timeDigest) digestNanos += System.nanoTime() - digestStart;
+                                }
+                                if (bfos != null) bfos.write(buf, 0, len);
+                                if (relayWants) relay.write(buf, 0, len);
+                                if (Metrics.enabled) Metrics.bytesIn.add(len);
+                            }
+                        }
+                        if (bfos != null) bfos.flush();
+                        BufferPool.give(buf);
+                        totalRead += fileRead;
+                        if (tr != null) {
+                            tr.mark(PhaseTrace.BODY);
+                            tr.split(PhaseTrace.BODY, PhaseTrace.DIGEST, digestNanos);
+                        }
+    
+                        // receiving md5 hash, its beginning may have come with the content
+                        //log(Level.FINEST, "preliminary md5: " + md5src);
+                        //   then read the rest of the file
+                        while (!finished && ((c = sendIs.read()) != -1) && (c != 0)){
+                            md5src.append((char)c);
+                        }
+                        log(Level.FINEST, "final md5: " + md5src);
+                        if (check != null) check.repair(sendIs, sendOs, digest);
+                        
+                        String myMd5 = createMd5(digest);
+                        String bounceMd5 = myMd5;
+                        if (relayWants) {
+                            relay.sendChecksum(md5src.toString());
+                            String relayMd5 = relay.readChecksum();
+                            // a failure further down must reach the sender: bounce what won't match
+                            if (relayMd5 != null) bounceMd5 = relayMd5;
+                        }
+                        writeToStream(sendOs, bounceMd5);
+                        if (tr != null) tr.mark(PhaseTrace.MD5);
+                        
+                        try {
+                            if (bfos != null) bfos.close();
+                            if (rafOut != null) rafOut.close();
+                        } catch (IOException ioe1){}
+                        if (tr != null) tr.mark(PhaseTrace.CLOSE);
+
+                        // setLastModified() must be called after all file handles to this file have been 
+                        // closed, otherwise it doesn't work on Windows (Linux is OK)
+                        if (outFile != null) setModificationDate(outFile, modDate, config);
+                        if (tr != null) tr.mark(PhaseTrace.MTIME);
+                        
+                        boolean checksumOk = checkMd5(config, digest, md5src, myMd5);
+                        if (receivedFiles != null && checksumOk && outFile != null) {
+                            receivedFiles.put(fileName.toString(), outFile);
+                        }
+                        if (tr != null) {
+                            tr.mark(PhaseTrace.MD5);
+                            tr.end();
+                        }
+                        sessionEvent.files++;
+                        sessionEvent.bytes += fileRead;
+                        fileEvent.end();
+                        if (fileEvent.shouldCommit()) {
+                            fileEvent.side = "recv";
+                            fileEvent.path = outFile == null ? fileName.toString() : outFile.getPath();
+                            fileEvent.bytes = fileRead;
+                            fileEvent.checksumOk = checksumOk;
+                            fileEvent.commit();
+                        }
+                        Metrics.filesReceived.increment();
+                        if (Metrics.enabled) Metrics.digest.record(digestNanos);
+        
+                    }
+                    // at this point, 1 or more files have been received
+
+                    if (totalRead == 0){
+                        log (Level.WARNING, "Nothing transferred.");
+                        continue;
+                    }
+                    
+                    long transferEndTime = System.currentTimeMillis();
+                    double transferTime = transferEndTime - transferStartTime;
+                    log(Level.INFO, String.format ("Received %d bytes in %1.0f ms = %s ", totalRead, transferTime, 
+                            formatTransferRate(transferTime, totalRead)));
+
+                    
+                } catch (IOException ioe) {
+                    log(Level.SEVERE, "echo failed: ",  ioe);
+                } finally {
+                    try { if (sendOs != null) sendOs.close();} catch (IOException ioe1){}
+                    try { if (sendIs != null) sendIs.close();} catch (IOException ioe1){}
+                    try { recvSocket.close();} catch (IOException ioe1){}
+                    try { if (bfos != null) bfos.close(); } catch (IOException ioe1){}
+                    try { if (rafOut != null) rafOut.close(); } catch (IOException ioe1){}
+                    if (relay != null) relay.close();
+                    if (archive != null) archive.close();
+                    if (share != null) share.close();
+                    Metrics.activeSessions.decrement();
+                    sessionEvent.end();
+                    if (sessionEvent.shouldCommit()) {
+                        sessionEvent.side = "recv";
+                        sessionEvent.remoteAddress = recvSocket.getInetAddress().getHostAddress();
+                        sessionEvent.commit();
+                    }
+                }
+        
+            }   
+        }
+        
+        /** Sets and checks the modification date of a received and closed file. */
+        static void setModificationDate(File outFile, long modDate, TransferConfig config) {
+            if (!outFile.setLastModified(modDate)) {
+                Xfer2.log(config, Level.WARNING, "Last modification date for "+ 
+                        outFile.getAbsoluteFile() + " could not be set");
+            }
+            long checkModDate = outFile.lastModified();
+            Xfer2.log(config, Level.FINER, "Modification date for "+ outFile.getAbsoluteFile()+":" + 
+                    dateFmt.get().format(checkModDate));
+            if (Math.abs(checkModDate-modDate) > config.modifyWindow) {
+                Xfer2.log(config, Level.WARNING, "Last modification dates don't agree. Should be: " + 
+                        dateFmt.get().format(modDate) + "  Diff=" + Math.abs(checkModDate-modDate)+"ms");
+                Xfer2.log(config, Level.FINER, "Last modification dates don't agree. Should be: " + 
+                        modDate+ " but is " + checkModDate);
+            }
+        }
+
+        static String createMd5 (MessageDigest digest){
+            String output = "";
+            if (digest != null){
+                byte[] md5sum = digest.digest();
+                BigInteger bigInt = new BigInteger(1, md5sum);
+                output = bigInt.toString(16);
+            }
+            return output;
+        }
+
+        /** Compares and logs the checksums; true if they agree (or MD5 is not available). */
+        static boolean checkMd5(TransferConfig config, MessageDigest digest, CharSequence md5src, String myMd5) {
+            if (digest != null){
+                Xfer2.log(config, Level.FINE, "MD5: " + myMd5);
+                if (!myMd5.equals(md5src.toString())){
+                    Xfer2.log(config, Level.WARNING, "MD5 hashes don't agree: src="+md5src.toString());
+                    return false;
+                } else {
+                    Xfer2.log(config, Level.FINE, "MD5 hashes agree.");
+                }
+            }
+            return true;
+        }
+        
+        void shutdown(){
+            try {
+                closed = true;
+                log(Level.FINE, "Closing server socket");
+                serverSocket.close();
+            } catch (IOException ioe){
+                log(Level.SEVERE, "Shutdown not successful: ", ioe);
+            }
+        }
+    }
+    
+    /** Sender functionality. */
+    static class Sender {
+        private final TransferConfig config;
+        private volatile Socket sendSocket = null;
+        private volatile boolean aborted = false;
+        private String host;
+        private int port;
+        private OutputStream rcvos = null;
+        private InputStream rcvis = null;
+        private byte[] buf;
+        private MessageDigest digest = null;
+        private XferEvents.SessionEvent sessionEvent = null;
+        private boolean pooling = false;
+        private boolean poolable = false;
+        private boolean dedup = false;
+        private boolean dupes = false;
+        private boolean sparse = false;
+        private boolean crc = false;
+        /** file to read blocks from that the receiver asks for again (feature "crc") */
+        private File resendFrom = null;
+        /** content is written through {@link #write} from outside, see {@link #setStepwise} */
+        private boolean stepwise = false;
+        private TransferListener listener = null;
+        /** files and bytes sent since the connection was opened */
+        private long filesSent = 0L;
+        private long bytesSent = 0L;
+        private long filesSkipped = 0L;
+        private final List<String> checksumFailures = new ArrayList<String>();
+        /** the entry between {@link #announce} and {@link #readChecksum} */
+        private String announcedPath = null;
+        private long announcedSize = 0L;
+        private String announcedMd5 = null;
+        private boolean copiedLocally = false;
+        /** files with twins (feature "dup"): entry -> content hash; <tt>null</tt>: none looked for */
+        private Map<FileEntry, String> contentKeys = null;
+        /** content hash -> path and md5 of the file the receiver got in this session */
+        private final Map<String, String[]> sentContent = new HashMap<String, String[]>();
+        /** further hops the receiver forwards the session to, see {@link #setRelay} */
+        private String relay = null;
+
+        Sender(TransferConfig config) {
+            this.config = config;
+        }
+
+        private void log(Level level, String s) {
+            Xfer2.log(config, level, s);
+        }
+
+        private void log(Level level, String s, Exception e) {
+            Xfer2.log(config, level, s, e);
+        }
+
+        void send(String host, int port, List<File> roots) {
+
+            log(Level.INFO, "=====================================");
+            try {
+                transfer(host, port, roots);
+                // at this point, 1 or more files have been sent
+            } catch (IOException ioe){
+                log(Level.SEVERE, "", ioe);
+            }
+    
+        }
+
+        /** One session: connect, send the roots, disconnect. */
+        TransferResult transfer(String host, int port, List<File> roots) throws IOException {
+            long startTime = System.currentTimeMillis();
+            try {
+                open(host, port);
+            } catch (IOException sockEx){
+                throw new IOException("Could not open port: " + host + ":" + port, sockEx);
+            }
+            
+            try {
+                handshake(config.overwrite);
+
+                //
+                // start to send files here //
+                //
+                if (config.verify) {
+                    checksumFailures.addAll(TreeVerify.compare(roots, rcvis, rcvos, config));
+                    return getResult(System.currentTimeMillis() - startTime);
+                }
+                ScanSnapshot snapshot = null;
+                if (config.snapshotFile != null) {
+                    snapshot = ScanSnapshot.load(config.snapshotFile, config);
+                }
+                sendRoots(roots, snapshot);
+                
+                finish();
+
+                if (snapshot != null) {
+                    try {
+                        snapshot.save();
+                    } catch (IOException ioe) {
+                        log(Level.WARNING, "Could not save scan snapshot " + config.snapshotFile, ioe);
+                    }
+                }
+                return getResult(System.currentTimeMillis() - startTime);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+        * Send files or whole directory trees.
+        *
+        * @param snapshot - previous scan, may be <tt>null</tt>
+        */
+        void sendRoots(List<File> roots, ScanSnapshot snapshot) throws IOException {
+            List<List<FileEntry>> trees = new ArrayList<List<FileEntry>>();
+            List<File> rootParents = new ArrayList<File>();
+            ListIterator<File> rootsIt = roots.listIterator();
+            while (rootsIt.hasNext()) {
+                File rootDir = rootsIt.next();
+                List<FileEntry> dirTree = new ArrayList<FileEntry>();
+                FileEntry rootEntry;
+                try {
+                    rootEntry = FileEntry.stat(null, rootDir.getName(), rootDir.toPath());
+                } catch (IOException ioe) {
+                    log(Level.SEVERE, "File not found: "+rootDir.getAbsolutePath(), ioe);
+                    continue;
+                }
+                if (rootEntry.isDirectory()){
+                    // copy whole recursive tree
+                    dirTree = DirTree.getEntries(rootEntry, rootDir, snapshot);
+                } else {
+                    // only copy the one file
+                    dirTree.add(rootEntry);
+                }
+                log(Level.FINE, "Root directory: "+rootDir);
+                trees.add(dirTree);
+                // paths sent to the other side are relative to the root's parent
+                rootParents.add(rootDir.getAbsoluteFile().getParentFile());
+            }
+            contentKeys = null;
+            if (dupes) {
+                List<FileEntry> all = new ArrayList<FileEntry>();
+                List<File> files = new ArrayList<File>();
+                for (int i = 0; i < trees.size(); i++) {
+                    for (FileEntry entry : trees.get(i)) {
+                        all.add(entry);
+                        files.add(entry.toFile(rootParents.get(i)));
+                    }
+                }
+                contentKeys = Duplicates.find(all, files, config);
+            }
+            try {
+                for (int i = 0; i < trees.size(); i++) {
+                    sendEntries(trees.get(i), rootParents.get(i));
+                }
+            } finally {
+                contentKeys = null;
+            }
+        }
+
+        /** Connect to the receiver; the session lasts until {@link #close()}. */
+        void open(String host, int port) throws IOException {
+            this.host = host;
+            this.port = port;
+            log(Level.FINE, "Connect to " + host + ":" + port);
+            // the channel lets mapped files go to the socket directly
+            sendSocket = config.mmapWindow > 0 ? SocketChannel.open().socket() : new Socket();
+            try {
+                configureSocket(sendSocket, config);
+                if (config.autoBlocksize) {
+                    LinkProbe.beforeConnect(sendSocket, host, port, config);
+                }
+                sendSocket.connect(new InetSocketAddress(host, port));
+                if (aborted) {
+                    throw new IOException("Aborted");
+                }
+            } catch (IOException sockEx){
+                try { sendSocket.close(); } catch (IOException ioe1){}
+                sendSocket = null;
+                throw sockEx;
+            }
+
+            Metrics.sessions.increment();
+            Metrics.activeSessions.increment();
+            filesSent = 0L;
+            bytesSent = 0L;
+            filesSkipped = 0L;
+            checksumFailures.clear();
+            sentContent.clear();
+            sessionEvent = new XferEvents.SessionEvent();
+            sessionEvent.begin();
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae){
+                log(Level.WARNING, "MD5 not available");
+            }
+            BufferPool.give(buf);
+            buf = BufferPool.take(config.blocksize);
+
+            OutputStream socketOs = sendSocket.getOutputStream();
+            if (config.shaper != null) {
+                socketOs = new ThrottledOutputStream(socketOs, config.shaper.register(1));
+            }
+            OutputStream os = new BufferedOutputStream(socketOs);
+            InputStream is = new BufferedInputStream(sendSocket.getInputStream());
+            if (config.presharedKey != null) {
+                Encryption keys;
+                try {
+                    keys = Encryption.agree(is, os, config.presharedKey, true);
+                } catch (IOException ioe) {
+                    close();
+                    throw ioe;
+                }
+                os = keys.wrap(os);
+                is = keys.wrap(is);
+            }
+            if (config.compress) { 
+                rcvos = new CompressedBlockOutputStream(os, config.blocksize, config.deflaterLevel, 
+                        Deflater.DEFAULT_STRATEGY);
+                rcvis = new CompressedBlockInputStream(is);
+            } else { 
+                rcvos = os;
+                rcvis = is;
+            }
+        }
+
+        /** Check the receiver's version, send the overwrite flag and negotiate features. */
+        void handshake(boolean forceOverwrite) throws IOException {
+            long handshakeStart = Metrics.enabled ? System.nanoTime() : 0L;
+            String rcvVer = readFromStream(rcvis);
+            if (! rcvVer.equals (VERSION)){
+                // also seen with -z or -key on only one side
+                throw new IOException("Receiver's version wrong: " + rcvVer + " vs my " + VERSION);
+            } else {
+                log(Level.FINE, "Receiver sends version " + rcvVer);
+                if (Metrics.enabled) Metrics.handshake.since(handshakeStart);
+            }
+
+            List<String> wanted = new ArrayList<String>();
+            if (config.autoBlocksize) wanted.add(FEATURE_PROBE);
+            if (pooling) wanted.add(FEATURE_POOL);
+            if (relay != null) wanted.add(FEATURE_RELAY);
+            if (config.dedup && !stepwise) wanted.add(FEATURE_DEDUP);
+            if (config.findDuplicates && !stepwise) wanted.add(FEATURE_DUP);
+            if (config.sparse && !stepwise) wanted.add(FEATURE_SPARSE);
+            if (config.blockChecks && !stepwise) wanted.add(FEATURE_CRC);
+            if (config.treeDigest && !stepwise) wanted.add(FEATURE_TREE);
+            if (config.verify && !stepwise) wanted.add(FEATURE_VERIFY);
+            List<String> features = requestFeatures(rcvis, rcvos, forceOverwrite ? FORCE_OVERWRITE : "x", wanted, config);
+            poolable = features.contains(FEATURE_POOL);
+            dedup = features.contains(FEATURE_DEDUP);
+            dupes = features.contains(FEATURE_DUP);
+            sparse = features.contains(FEATURE_SPARSE);
+            crc = features.contains(FEATURE_CRC);
+            if (features.contains(FEATURE_TREE)) {
+                digest = new TreeDigest();
+            } else if (config.treeDigest && !stepwise) {
+                log(Level.WARNING, "Receiver can't compute tree digests, using md5");
+            }
+            if (config.verify && !stepwise && !features.contains(FEATURE_VERIFY)) {
+                throw new IOException("Receiver " + host + ":" + port + " can't verify");
+            }
+            if (config.blockChecks && !crc && !sparse && !dedup && !stepwise) {
+                log(Level.WARNING, "Receiver can't check blocks, relying on the md5 only");
+            }
+            if (config.sparse && !sparse && !dedup && !stepwise) {
+                log(Level.WARNING, "Receiver can't keep files sparse, sending zeros");
+            }
+            if (config.dedup && !dedup && !stepwise) {
+                log(Level.WARNING, "Receiver has no chunk store, sending whole files");
+            }
+            if (features.contains(FEATURE_PROBE)) {
+                LinkProbe link = LinkProbe.measure(rcvis, rcvos, config);
+                link.applyTo(sendSocket, config);
+                link.remember(host, port);
+                BufferPool.give(buf);
+                buf = BufferPool.take(link.blocksize);
+                if (config.compress) {
+                    ((CompressedBlockOutputStream) rcvos).setBlockSize(link.blocksize);
+                }
+            } else if (config.autoBlocksize) {
+                log(Level.WARNING, "Receiver can't measure the link, using block size " + config.blocksize);
+            }
+            if (relay != null) {
+                if (!features.contains(FEATURE_RELAY)) {
+                    throw new IOException("Receiver " + host + ":" + port + " can't forward to " + relay);
+                }
+                writeToStream(rcvos, relay);
+            }
+        }
+
+        /**
+        * Send files and directories. Entries that vanished in the meantime
+        * are skipped; an IOException means the session is broken.
+        *
+        * @param entries - directories must precede their contents
+        * @param rootParent - the entries' paths are relative to this directory
+        */
+        void sendEntries(List<FileEntry> entries, File rootParent) throws IOException {
+            BufferedInputStream bfis = null;
+            try {
+                for (FileEntry entry : entries){
+        
+                    long sendFileSize = entry.getSize();
+                    long modDate = entry.getLastModified();
+                    File sendFile = entry.toFile(rootParent);
+                    if (digest != null) digest.reset();
+                    PhaseTrace.Record tr = config.trace == null ? null : config.trace.begin("send", entry.getPath(), sendFileSize);
+                    XferEvents.FileEvent fileEvent = new XferEvents.FileEvent();
+                    fileEvent.begin();
+    
+                    bfis = null;
+                    if (entry.isFile()) {
+                        long openStart = Metrics.enabled ? System.nanoTime() : 0L;
+                        try {
+                            bfis = new BufferedInputStream(new FileInputStream(sendFile));
+                            if (Metrics.enabled) Metrics.fileOpen.since(openStart);
+                            if (tr != null) tr.mark(PhaseTrace.OPEN);
+                        } catch (FileNotFoundException fnfe) {
+                            log(Level.SEVERE, "File not found: "+sendFile.getAbsolutePath(), fnfe);
+                            continue;
+                        }
+                    } else if (!entry.isDirectory()) {
+                        log(Level.WARNING, "Not a regular file, not sending: "+sendFile.getAbsolutePath());
+                        continue;
+                    }
+
+                    long transferStartTime = System.currentTimeMillis();
+                    log(Level.INFO, "Sending "+sendFile);
+    
+                    // send file name to the other side
+                    String rootlessPath = entry.getPath();
+                    log (Level.FINEST, "Rootless path: " + rootlessPath);
+                    if (listener != null) listener.fileStarted(rootlessPath, sendFileSize);
+                    int len = 0;
+                    String contentKey = contentKeys == null ? null : contentKeys.get(entry);
+                    String[] twin = contentKey == null ? null : sentContent.get(contentKey);
+                    announce(rootlessPath, modDate, sendFileSize, twin == null ? null : twin[0]);
+                    if (tr != null) tr.mark(PhaseTrace.META);
+    
+                    boolean wanted = readAnswer();
+                    if (tr != null) tr.mark(PhaseTrace.REPLY);
+                    if (!wanted){
+                        if (entry.isDirectory()) {
+                            log(Level.FINE, "Directory exists on other side.");
+                        } else {
+                            log(Level.WARNING, "File exists on other side, not sending.");
+                            try { bfis.close(); } catch (IOException ioe1){}
+                            if (listener != null) listener.fileSkipped(rootlessPath);
+                            if (tr != null) tr.mark(PhaseTrace.CLOSE);
+                        }
+                        if (tr != null) tr.end();
+                        continue;
+                    }
+    
+                    // for directories, stop here, nothing to transmit; the receiver will just mkdir
+                    if (sendFileSize == -1) {
+                        if (tr != null) tr.end();
+                        continue;
+                    }
+
+                    if (copiedLocally) {
+                        if (twin == null) {
+                            throw new IOException("Receiver copies " + rootlessPath + " from nothing");
+                        }
+                        log(Level.INFO, "Same as " + twin[0] + ", receiver copies it");
+                        sendChecksum(twin[1]);
+                        String rcvmd5 = readChecksum();
+                        if (!Duplicates.COPY_FAILED.equals(rcvmd5)) {
+                            try { bfis.close(); } catch (IOException ioe1){}
+                            if (listener != null) listener.fileFinished(rootlessPath, sendFileSize, rcvmd5 == null);
+                            if (tr != null) {
+                                tr.mark(PhaseTrace.MD5);
+                                tr.end();
+                            }
+                            continue;
+                        }
+                        // the receiver removed its attempt: announce the file again, without twin
+                        log(Level.WARNING, "Receiver could not copy " + twin[0] + ", sending the content");
+                        announce(rootlessPath, modDate, sendFileSize, null);
+                        if (!readAnswer()) {
+                            log(Level.WARNING, "File exists on other side, not sending.");
+                            try { bfis.close(); } catch (IOException ioe1){}
+                            if (listener != null) listener.fileSkipped(rootlessPath);
+                            if (tr != null) tr.end();
+                            continue;
+                        }
+                    }
+                    
+                    // this is the send loop
+                    long sentBytes = 0;
+                    long digestNanos = 0;
+                    boolean timeDigest = Metrics.enabled || tr != null;
+                    long tickFactor = sendFileSize / config.progressTicks;
+                    long nextTickAt = tickFactor;
+                    int ticksPrinted = 0;
+                    if (config.printProgressBar) {
+                        log(Level.INFO, String.format("Each tick is %s", formatKiBMiBGiB(tickFactor)));
+                        System.out.print("[");
+                    }
+                    // never send more than announced, the receiver relies on the size
+                    if (dedup) {
+                        // the receiver may have most of it already
+                        long sent = ChunkStore.send(bfis, sendFile, sendFileSize, buf, digest, rcvis, rcvos, config);
+                        if (Metrics.enabled) Metrics.bytesOut.add(sent);
+                        sentBytes = sendFileSize;
+                        if (listener != null) listener.progress(rootlessPath, sentBytes, sendFileSize);
+                    } else if (sparse) {
+                        // zero pages go as holes
+                        long sent = Sparse.send(bfis, sendFile, sendFileSize, buf, digest, rcvos, config);
+                        if (Metrics.enabled) Metrics.bytesOut.add(sent);
+                        sentBytes = sendFileSize;
+                        if (listener != null) listener.progress(rootlessPath, sentBytes, sendFileSize);
+                    } else if (crc) {
+                        // damaged blocks are sent again when the checksum is read
+                        BlockCheck.send(bfis, sendFile, sendFileSize, digest, rcvos);
+                        resendFrom = sendFile;
+                        sentBytes = sendFileSize;
+                        if (listener != null) listener.progress(rootlessPath, sentBytes, sendFileSize);
+                    } else if (config.mmapWindow > 0 && sendFileSize >= config.mmapWindow) {
+                        // compressed, encrypted or throttled content has to go through the streams
+                        MappedWindows.send(sendFile, sendFileSize, config.mmapWindow, digest, rcvos,
+                                config.compress || config.presharedKey != null || config.shaper != null ? null
+                                : sendSocket.getChannel(), buf);
+                        sentBytes = sendFileSize;
+                        if (listener != null) listener.progress(rootlessPath, sentBytes, sendFileSize);
+                    } else {
+                        while (sentBytes < sendFileSize && 
+                                (len = bfis.read(buf, 0, (int)Math.min(buf.length, sendFileSize - sentBytes))) != -1) {
+                            if (digest != null) {
+                                long digestStart = timeDigest ? System.nanoTime() : 0L;
+                                digest.update(buf, 0, len);
+                                if (timeDigest) digestNanos += System.nanoTime() - digestStart;
+                            }
+                            rcvos.write(buf, 0, len);
+                            sentBytes += len;
+                            if (Metrics.enabled) Metrics.bytesOut.add(len);
+                            if (listener != null) listener.progress(rootlessPath, sentBytes, sendFileSize);
+                            if (config.printProgressBar && (sentBytes >= nextTickAt)){
+                                System.out.print(TICK_SYMBOL);
+                                nextTickAt += tickFactor;
+                                ticksPrinted++;
+                            }
+                        }
+                    }
+                    if (sentBytes < sendFileSize) {
+                        throw new IOException("File shrank while sending: " + sendFile.getAbsolutePath());
+                    }
+                    if (tr != null) {
+                        tr.mark(PhaseTrace.BODY);
+                        tr.split(PhaseTrace.BODY, PhaseTrace.DIGEST, digestNanos);
+                    }
+                    if (config.printProgressBar) {
+                        for (int i = ticksPrinted; i < config.progressTicks; i++) System.out.print(TICK_SYMBOL);
+                        System.out.print("] ");
+                    }
+                    if (config.printProgressBar) {
+                        System.out.println();
+                    }
+                    long transferEndTime = System.currentTimeMillis();
+                    double transferTime = transferEndTime - transferStartTime;
+                    if (config.printProgressBar) {
+                        log(Level.INFO, String.format ("Sent %d bytes in %1.0f ms = %s ", sentBytes, transferTime, 
+                                formatTransferRate(transferTime, sentBytes)));
+                    } else {
+                        log(Level.FINE, String.format ("Sent %d bytes in %1.0f ms = %s ", sentBytes, transferTime, 
+                                formatTransferRate(transferTime, sentBytes)));
+                    }
+
+                    //rcvos.flush();
+    
+                    // send file md5 hash to the other side
+                    String md5 = Receiver.createMd5(digest);
+                    sendChecksum(md5);
+                    
+                    // expecting receiver to bounce md5 sum
+                    boolean checksumOk = readChecksum() == null;
+                    if (contentKey != null && checksumOk && !sentContent.containsKey(contentKey)) {
+                        // the receiver has it now, its twins needn't travel
+                        sentContent.put(contentKey, new String[] {rootlessPath, md5});
+                    }
+                    if (listener != null) listener.fileFinished(rootlessPath, sentBytes, checksumOk);
+                    sessionEvent.files++;
+                    sessionEvent.bytes += sentBytes;
+                    fileEvent.end();
+                    if (fileEvent.shouldCommit()) {
+                        fileEvent.side = "send";
+                        fileEvent.path = rootlessPath;
+                        fileEvent.bytes = sentBytes;
+                        fileEvent.checksumOk = checksumOk;
+                        fileEvent.commit();
+                    }
+                    if (Metrics.enabled) Metrics.digest.record(digestNanos);
+                    if (tr != null) tr.mark(PhaseTrace.MD5);
+
+                    try { 
+                        if (bfis != null) bfis.close();
+                    } catch (IOException ioe1){
+                        //ignore
+                    }
+                    if (tr != null) {
+                        tr.mark(PhaseTrace.CLOSE);
+                        tr.end();
+                    }
+                }
+            } finally {
+                try { 
+                    if (bfis != null) bfis.close();
+                } catch (IOException ioe1){}
+            }
+        }
+
+        /**
+        * Send the name, modification date and size (-1 for a directory) of
+        * an entry; {@link #readAnswer()} tells whether its content is wanted.
+        */
+        void announce(String path, long modDate, long size) throws IOException {
+            announce(path, modDate, size, null);
+        }
+
+        /**
+        * @param twin - path of an identical file sent in this session, the
+        *        receiver may copy it (feature "dup"); <tt>null</tt>: none
+        */
+        void announce(String path, long modDate, long size, String twin) throws IOException {
+            announcedPath = path;
+            announcedSize = size;
+            writeToStream(rcvos, path, false);
+            // send file modification date to the other side
+            log(Level.FINE, "modDate " + modDate);
+            writeToStream(rcvos, String.valueOf(modDate), false);
+            // send file size to the other side
+            log(Level.FINE, "Sending " + size + " bytes");
+            writeToStream(rcvos, twin == null ? String.valueOf(size) : size + "|" + twin, true);
+        }
+
+        /**
+        * The receiver's answer to {@link #announce}: false if the entry
+        * exists there and won't be overwritten. After a true answer for a
+        * file, exactly the announced number of bytes must follow, then
+        * {@link #sendChecksum}; only the checksum if the receiver copied
+        * a twin instead.
+        */
+        boolean readAnswer() throws IOException {
+            String existsOnOtherSide = readFromStream(rcvis);
+            log(Level.FINEST, "Exists on other side: " + existsOnOtherSide);
+            if (existsOnOtherSide.length() == 0){
+                throw new IOException("Connection closed by receiver");
+            }
+            copiedLocally = existsOnOtherSide.equals(Duplicates.COPIED_LOCALLY);
+            if (existsOnOtherSide.equals(EXISTS_WONT_OVERWRITE)){
+                if (announcedSize != -1) filesSkipped++;
+                return false;
+            }
+            return true;
+        }
+
+        /** Content of the announced file. */
+        void write(byte[] b, int off, int len) throws IOException {
+            rcvos.write(b, off, len);
+        }
+
+        void sendChecksum(String md5) throws IOException {
+            log(Level.FINER, "MD5: " + md5);
+            announcedMd5 = md5;
+            writeToStream(rcvos, md5);
+        }
+
+        /**
+        * The checksum the receiver bounces after {@link #sendChecksum};
+        * <tt>null</tt> if it agrees, otherwise the receiver's.
+        * {@link Duplicates#COPY_FAILED} if the receiver couldn't copy the
+        * file from its twin; it isn't counted then, as the content still
+        * has to be sent.
+        */
+        String readChecksum() throws IOException {
+            String rcvmd5 = readFromStream(rcvis);
+            if (copiedLocally && Duplicates.COPY_FAILED.equals(rcvmd5)) {
+                return rcvmd5;
+            }
+            while (resendFrom != null && rcvmd5.startsWith(BlockCheck.RESEND)) {
+                BlockCheck.resend(rcvmd5, resendFrom, announcedSize, rcvos, config);
+                rcvmd5 = readFromStream(rcvis);
+            }
+            resendFrom = null;
+            if (rcvmd5.length() == 0){
+                log(Level.SEVERE, "An error has occured, probably connection closed, giving up.");
+                throw new IOException ("An error has occured, probably connection closed, giving up.");
+            }
+            boolean checksumOk = rcvmd5.equals(announcedMd5);
+            if (! checksumOk){
+                log(Level.SEVERE, "Receiver advises wrong md5 sum: " + rcvmd5 + " vs my " + announcedMd5);
+                checksumFailures.add(announcedPath);
+            } else {
+                log(Level.FINE, "Receiver advises correct md5 sum");
+            }
+            Metrics.filesSent.increment();
+            filesSent++;
+            if (!copiedLocally) bytesSent += announcedSize;
+            return checksumOk ? null : rcvmd5;
+        }
+
+        /** Tell the receiver that the session is over. */
+        void finish() throws IOException {
+            writeToStream(rcvos, "FINIS.");
+        }
+
+        boolean isOpen() {
+            return sendSocket != null;
+        }
+
+        /**
+        * Whether an idle connection still works. The receiver never sends
+        * unasked, so anything but a timeout means the connection is gone.
+        */
+        boolean isAlive() {
+            if (sendSocket == null || sendSocket.isClosed()) {
+                return false;
+            }
+            try {
+                sendSocket.setSoTimeout(1);
+                try {
+                    sendSocket.getInputStream().read();
+                    return false;
+                } catch (SocketTimeoutException ste) {
+                    return true;
+                } finally {
+                    sendSocket.setSoTimeout(0);
+                }
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        /** Whether the receiver agreed to idle sessions, see {@link #setPooling}. */
+        boolean isPoolable() {
+            return poolable;
+        }
+
+        long getFilesSent() {
+            return filesSent;
+        }
+
+        long getBytesSent() {
+            return bytesSent;
+        }
+
+        /** What was sent since the connection was opened. */
+        TransferResult getResult(long millis) {
+            return new TransferResult(filesSent, bytesSent, filesSkipped, checksumFailures, millis);
+        }
+
+        void close() {
+            if (sendSocket == null) {
+                return;
+            }
+            try { 
+                if (rcvos != null) rcvos.close();
+            } catch (IOException ioe1){}
+            try { 
+                if (rcvis != null) rcvis.close();
+            } catch (IOException ioe1){}
+            try { 
+                sendSocket.close();
+            } catch (IOException ioe1){}
+            sendSocket = null;
+            BufferPool.give(buf);
+            buf = null;
+            rcvos = null;
+            rcvis = null;
+            Metrics.activeSessions.decrement();
+            sessionEvent.end();
+            if (sessionEvent.shouldCommit()) {
+                sessionEvent.side = "send";
+                sessionEvent.remoteAddress = host + ":" + port;
+                sessionEvent.commit();
+            }
+        }
+        
+        void setListener(TransferListener listener) {
+            this.listener = listener;
+        }
+
+        /** Break off a transfer running in another thread; it fails with an IOException. */
+        void abort() {
+            aborted = true;
+            Socket socket = sendSocket;
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ioe1){}
+        }
+
+        /**
+        * Ask the receiver in the handshake to forward everything to the
+        * next of these comma separated "host:port" hops, which forwards it
+        * to the rest; <tt>null</tt>: no chain.
+        */
+        void setRelay(String relay){
+            this.relay = relay;
+        }
+
+        /**
+        * The content of files is written through {@link #write} from
+        * outside, byte for byte, so no features are requested that change
+        * how it travels (chunks, twins, holes).
+        */
+        void setStepwise(){
+            this.stepwise = true;
+        }
+
+        /** Ask the receiver in the handshake whether the connection may be kept open idle. */
+        void setPooling(boolean pooling){
+            this.pooling = pooling;
+        }
+
+    }
+
+    /** Custom logger. */
+    static String dolog (Level level, String s){
+        StringBuilder output = new StringBuilder()
+        .append("[")
+        .append(level).append('|')
+        .append(Thread.currentThread().getName()).append('|')
+        .append(AsyncLog.formatTime(System.currentTimeMillis()))
+        .append("]: ")
+        .append(s).append(' ')
+        .append(System.getProperty("line.separator"));
+        return output.toString();
+    }
+    
+    static String dolog (Level level, String s, Exception e){
+        return dolog(level, s) + " " + e.toString();
+    }
+    
+    /** Log for the sender or receiver with <tt>config</tt>, honouring its log level. */
+    static void log (TransferConfig config, Level level, String s){
+        write(config.logLevel, level, s, null);
+    }
+
+    static void log (TransferConfig config, Level level, String s, Exception e){
+        write(config.logLevel, level, s, e);
+    }
+
+    /** Log what doesn't belong to one sender or receiver, at the default level. */
+    static void log (Level level, String s){
+        write(TransferConfig.DEFAULT_LOG_LEVEL, level, s, null);
+    }
+ 
+    static void log (Level level, String s, Exception e){
+        write(TransferConfig.DEFAULT_LOG_LEVEL, level, s, e);
+    }
+
+    private static void write (Level threshold, Level level, String s, Exception e){
+        if (level.intValue() < threshold.intValue()){
+            return;
+        }
+        boolean stackTrace = threshold.intValue() <= Level.FINE.intValue();
+        if (AsyncLog.append(level, s, e, e != null && stackTrace)){
+            return;
+        }
+        if (e == null){
+            if (level.intValue() >= Level.WARNING.intValue()){
+                System.err.print(dolog(level, s));
+            } else {
+                System.out.print(dolog(level, s));
+            }
+            return;
+        }
+        System.err.println(dolog(level, s, e));
+        if (stackTrace){
+            for (StackTraceElement ste : e.getStackTrace()){
+                System.err.print(String.format("         %s : %n", ste.toString()));
+            }
+        }
+    }
+
+    private static void usage() {
+        log (Level.SEVERE, "Usage: [[-t <output dir>] || ");
+        log (Level.SEVERE, "  [-help] this help");
+        log (Level.SEVERE, "  [--help] this help");
+        log (Level.SEVERE, "  [-h <target host>[:<port>][,<target host>[:<port>] ...]]]  (sender mode only); if not provided, localhost is assumed; several hosts: send to all at once, reading each file once");
+        log (Level.SEVERE, "  [-p <port>]");
+        log (Level.SEVERE, "  [-B <blocksize in bytes>|auto]   -> auto: measure rtt and throughput when connecting, choose block size and socket buffers (sender mode only)");
+        log (Level.SEVERE, "  [-sndbuf <bytes>] [-rcvbuf <bytes>]   -> socket send/receive buffer sizes, e.g. 4M");
+        log (Level.SEVERE, "  [-nodelay]   -> set TCP_NODELAY (no Nagle delay for the small protocol messages)");
+        log (Level.SEVERE, "  [-keepalive]   -> set SO_KEEPALIVE");
+        log (Level.SEVERE, "  [-o] overwrite existing files (sender overrides reader; cancels -O)");
+        log (Level.SEVERE, "  [-O] create copy if file exists (cancels -o; receiver mode only)");
+        log (Level.SEVERE, "  [-z] compress (zip) network stream");
+        log (Level.SEVERE, "      if used, MUST be used on both sides, otherwise OutOfMemoryError on sending side"); 
+        log (Level.SEVERE, "  [-key <file>]   -> encrypt the connection (AES-GCM) with session keys derived from the pre-shared key in <file>; MUST be used on both sides");
+        log (Level.SEVERE, "  [-Z <1|5|9>]  compress level (1:fast, 5:default, 9:high compression; default 5)"); 
+        log (Level.SEVERE, "  [-l SEVERE|WARNING|INFO|FINE|FINER|FINEST]");
+        log (Level.SEVERE, "  [-i <ip address[,ip address]>]  -> allowed ip addresses");
+        log (Level.SEVERE, "  [-v  print version]");
+        log (Level.SEVERE, "  [-mod  <milliseconds>]   -> modification time window to test last modification times; default 1000ms, because Windows only has a 1000ms resolution");
+        log (Level.SEVERE, "  [-b[<number of ticks>]   -> print progress bar; num ticks optional, default 40");
+        log (Level.SEVERE, "  [-metrics <port>]   -> serve metrics on http://127.0.0.1:<port>/metrics and via JMX; port 0: JMX only");
+        log (Level.SEVERE, "  [-rate <bytes/s>]   -> limit bandwidth of all connections together, e.g. 512K, 20M; 0: unlimited");
+        log (Level.SEVERE, "  [-srate <bytes/s>]   -> limit bandwidth of each connection");
+        log (Level.SEVERE, "  [-ratefile <file>]   -> read limits (global=, session=, weight.<ip prefix>=) from file, reread when changed");
+        log (Level.SEVERE, "  [-nio[<number of I/O threads>]]   -> event driven receiver for many concurrent senders (receiver mode only); default 2 I/O threads");
+        log (Level.SEVERE, "  [-poolidle <milliseconds>]   -> with -nio: close connections kept open between jobs after this idle time; default " + TransferConfig.DEFAULT_POOL_IDLE_MILLIS + "ms");
+        log (Level.SEVERE, "  [-snap <file>]   -> keep a snapshot of the scanned tree in <file> to speed up the next scan (sender mode only)");
+        log (Level.SEVERE, "  [-async]   -> log from a background thread, transfer threads don't wait for console output");
+        log (Level.SEVERE, "  [-logfile <file>]   -> log asynchronously to <file>, rotated at 10 MiB, 5 old files kept (<file>.1 ... <file>.5)");
+        log (Level.SEVERE, "  [-trace <file>]   -> append per-file phase timings as JSON lines to <file>; summary: java -cp xfer.jar xfer.PhaseTrace <file>");
+        log (Level.SEVERE, "  [-watch[<milliseconds>]]   -> keep running, send changed files when there were no changes for <milliseconds> (default 1000); implies -o (sender mode only)");
+        log (Level.SEVERE, "  [-agent[<dir>]]    -> without files: run a resident sender taking jobs on a socket in <dir> (mode 0700, default ~/.xfer-agent); with files: hand them to it");
+        log (Level.SEVERE, "  [-dedup]   -> send only the content-defined chunks of files the receiver's chunk store lacks (sender mode only)");
+        log (Level.SEVERE, "  [-chunks <dir>[,<bytes>]]   -> keep received chunks for -dedup senders in <dir>, at most <bytes> (default 1G) (receiver mode only)");
+        log (Level.SEVERE, "  [-mmap[<window>]]   -> read or write files of at least <window> bytes (default 64M) through memory mapped windows of that size");
+        log (Level.SEVERE, "  [-verify]  -> send nothing, compare the trees with the receiver's by hashes and list the paths that differ (sender mode only)");
+        log (Level.SEVERE, "  [-tree]    -> check files with a Merkle tree digest hashed on all cores instead of md5 (sender mode only)");
+        log (Level.SEVERE, "  [-crc]     -> send a CRC32C per 64K block, the receiver asks for damaged blocks again (sender mode only)");
+        log (Level.SEVERE, "  [-sparse]  -> send runs of zero pages as holes, the receiver keeps the files sparse (sender mode only)");
+        log (Level.SEVERE, "  [-dupes]   -> send files with identical content once, the receiver copies them (sender mode only)");
+        log (Level.SEVERE, "  [-links]   -> hard link such identical files instead of copying if their times agree (receiver mode only)");
+        log (Level.SEVERE, "  [-chain]   -> with several hosts: send to the first only, each receiver forwards to the next while writing");
+        log (Level.SEVERE, "  [-archive]   -> write each session into one tar file <sender>-<time>.tar in the target dir instead of creating files (receiver mode only)");
+        log (Level.SEVERE, "  [-extract <archive>]   -> unpack such an archive (or any tar file) into the target dir and exit; existing files only with -o");
+        log (Level.SEVERE, "  [-cyg]   -> treat paths as cygwin paths and convert to windows paths for java's benefit");
+        log (Level.SEVERE, "  [<files|dir> [<files|dir> ...]]  (sender mode only)");
+        log (Level.SEVERE, "If <files|dir> is a directory, it will be copied recursively.");
+        log (Level.SEVERE, "Examples:");
+        log(Level.SEVERE, "  Sending: java -jar xfer.jar [-p port] [-h host] [-l FINE (logging)] <file(s)>");
+        log(Level.SEVERE, "  Receiving: java -jar xfer.jar [-p port] [-l FINE (logging)] [-t targetDir]");
+        
+        // TODO: not yet ; log (Level.SEVERE, "Semantics of dir like in rsync (adir vs adir/).");
+    }
+
+    public static void main (String[] args){
+        int port = PORT;
+        File targetDir = new File(".");
+        String host = "";
+        List<File> sendRoots = new ArrayList<File>();
+        boolean useCygpaths = false;
+        File extractArchive = null;
+        TransferConfig config = new TransferConfig();
+        
+        // parse command line options
+        int a = 0;
+        while(a < args.length){
+            String opt = args[a];
+            if (opt.startsWith("-")){
+                // first options without argument
+                if (opt.startsWith("-o")){ // overwrite
+                    config.overwrite = true;
+                    config.createCopy = false;
+                    a++;
+                    log (config, Level.CONFIG, "Setting overwrite");
+                } else if (opt.startsWith("-O")){ // create copy with added suffix
+                    config.createCopy = true;
+                    config.overwrite = false;
+                    a++;
+                    log (config, Level.CONFIG, "Setting create copy with added suffix if exists, cancels set overwrite");
+                } else if (opt.startsWith("-z")){ // zip
+                        config.compress = true;
+                        a++;
+                        log (config, Level.CONFIG, "Setting compression");
+                } else if (opt.startsWith("-verify")){ // compare trees instead of sending
+                    config.verify = true;
+                    a++;
+                    log (config, Level.CONFIG, "Verifying the receiver's copy");
+                } else if (opt.startsWith("-v")){ // version
+                    log(config, Level.SEVERE, "This is version " + VERSION);
+                    a++;
+                } else if (opt.startsWith("-b")){ // progress bar
+                    config.printProgressBar = true;
+                    if (opt.length() > 2){
+                        try { 
+                            config.progressTicks = Integer.parseInt(opt.substring(2));
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse progress bar option "+opt);
+                            config.printProgressBar = false;
+                        }
+                    }
+                    if (config.printProgressBar) log(config, Level.CONFIG, "Setting progress bar to "+config.progressTicks
+                            + " ticks");
+                    a++;
+                } else if (opt.startsWith("-nio")){ // NIO receiver
+                    config.ioThreads = 2;
+                    if (opt.length() > 4){
+                        try { 
+                            config.ioThreads = Math.max(1, Integer.parseInt(opt.substring(4)));
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse nio option "+opt);
+                        }
+                    }
+                    log(config, Level.CONFIG, "Using event driven receiver with " + config.ioThreads + " I/O threads");
+                    a++;
+                } else if (opt.startsWith("-nodelay")){ // TCP_NODELAY
+                    config.tcpNoDelay = true;
+                    a++;
+                    log (config, Level.CONFIG, "Setting TCP_NODELAY");
+                } else if (opt.startsWith("-keepalive")){ // SO_KEEPALIVE
+                    config.keepAlive = true;
+                    a++;
+                    log (config, Level.CONFIG, "Setting SO_KEEPALIVE");
+                } else if (opt.startsWith("-archive")){ // sessions into tar files
+                    config.archive = true;
+                    a++;
+                    log (config, Level.CONFIG, "Writing each session into an archive");
+                } else if (opt.startsWith("-async")){ // asynchronous logging
+                    try {
+                        AsyncLog.start(null, 0L, 0);
+                    } catch (IOException ioe){
+                        log(config, Level.SEVERE, "Could not start asynchronous logging", ioe);
+                    }
+                    a++;
+                } else if (opt.startsWith("-watch")){ // continuous replication
+                    watchDebounce = 1000L;
+                    if (opt.length() > 6){
+                        try { 
+                            watchDebounce = Long.parseLong(opt.substring(6));
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse watch option "+opt);
+                        }
+                    }
+                    log(config, Level.CONFIG, "Watching for changes, debounce " + watchDebounce + " ms");
+                    a++;
+                } else if (opt.startsWith("-agent")){ // resident sender
+                    agentDir = opt.length() > 6 ? new File(opt.substring(6)) : SenderAgent.defaultDir();
+                    a++;
+                } else if (opt.startsWith("-dedup")){ // send only chunks the receiver lacks
+                    config.dedup = true;
+                    a++;
+                    log (config, Level.CONFIG, "Sending only chunks missing on the receiver");
+                } else if (opt.startsWith("-mmap")){ // map large files in windows
+                    config.mmapWindow = MappedWindows.DEFAULT_WINDOW;
+                    if (opt.length() > 5){
+                        try {
+                            long window = parseSize(opt.substring(5));
+                            if (window > 0) {
+                                config.mmapWindow = Math.min(window, MappedWindows.MAX_WINDOW);
+                            } else {
+                                log(config, Level.SEVERE, "mmap window must be positive: "+opt);
+                            }
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse mmap option "+opt+": "+nfe.getMessage());
+                        }
+                    }
+                    log(config, Level.CONFIG, "Mapping files of at least " + config.mmapWindow + " bytes in windows of that size");
+                    a++;
+                } else if (opt.startsWith("-tree")){ // parallel tree digest
+                    config.treeDigest = true;
+                    a++;
+                    log (config, Level.CONFIG, "Checking files with tree digests");
+                } else if (opt.startsWith("-crc")){ // checksum per block
+                    config.blockChecks = true;
+                    a++;
+                    log (config, Level.CONFIG, "Sending a CRC per block");
+                } else if (opt.startsWith("-sparse")){ // zero pages are sent as holes
+                    config.sparse = true;
+                    a++;
+                    log (config, Level.CONFIG, "Sending zero pages as holes");
+                } else if (opt.startsWith("-dupes")){ // identical files are sent once
+                    config.findDuplicates = true;
+                    a++;
+                    log (config, Level.CONFIG, "Sending identical files once");
+                } else if (opt.startsWith("-links")){ // hard link identical files
+                    config.linkDuplicates = true;
+                    a++;
+                    log (config, Level.CONFIG, "Hard linking identical files");
+                } else if (opt.startsWith("-chain")){ // receivers forward to each other
+                    chain = true;
+                    a++;
+                    log (config, Level.CONFIG, "Sending through a chain of receivers");
+                } else if (opt.startsWith("-cyg")){ // cygwin paths
+                    log(config, Level.SEVERE, "Using cygwin paths");
+                    useCygpaths = true;
+                    a++;
+                } else if (opt.equals("-help") || opt.equals("--help")){ 
+                    usage();
+                    System.exit(0);
+                } else {
+                    // now options with 1 argument 
+                    a++;
+                    if (a >= args.length){
+                        //usage();
+                        continue;
+                    }
+                    String parm = args[a];
+                    if (opt.startsWith("-sndbuf") || opt.startsWith("-rcvbuf")){ // socket buffers
+                        try {
+                            long size = parseSize(parm);
+                            if (size > Integer.MAX_VALUE){
+                                log(config, Level.SEVERE, "Buffer size too large: "+parm);
+                            } else if (opt.startsWith("-sndbuf")) {
+                                config.sndBuf = (int) size;
+                                log (config, Level.CONFIG, "Setting socket send buffer to " + config.sndBuf);
+                            } else {
+                                config.rcvBuf = (int) size;
+                                log (config, Level.CONFIG, "Setting socket receive buffer to " + config.rcvBuf);
+                            }
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse buffer size "+parm+": "+nfe.getMessage());
+                        }
+                        a++;
+                    } else if (opt.startsWith("-logfile")){ // asynchronous logging to rotated files
+                        try {
+                            AsyncLog.start(new File(parm), LOGFILE_SIZE, LOGFILE_KEEP);
+                        } catch (IOException ioe){
+                            log(config, Level.SEVERE, "Could not open log file "+parm, ioe);
+                        }
+                        a++;
+                    } else if (opt.startsWith("-trace")){ // per-file phase timing
+                        try { 
+                            config.trace = PhaseTrace.open(new File(parm));
+                            log (config, Level.CONFIG, "Writing phase trace to " + parm);
+                        } catch (IOException ioe){
+                            log(config, Level.SEVERE, "Could not open trace file "+parm, ioe);
+                        }
+                        a++;
+                    } else if (opt.startsWith("-metrics")){ // metrics endpoint
+                        try { 
+                            Metrics.start(Integer.parseInt(parm), config);
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse metrics port "+parm);
+                        }
+                        a++;
+                    } else if (opt.startsWith("-poolidle")){ // idle time of pooled sessions
+                        try { 
+                            config.setPoolIdleMillis(Long.parseLong(parm));
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse pool idle option "+parm);
+                        } catch (IllegalArgumentException iae){
+                            log(config, Level.SEVERE, iae.getMessage());
+                        }
+                        a++;
+                        log (config, Level.CONFIG, "Closing pooled connections idle for " + config.poolIdleMillis + " ms");
+                    } else if (opt.startsWith("-ratefile")){ // runtime adjustable bandwidth limits
+                        if (config.shaper == null) config.shaper = new BandwidthShaper(0, 0);
+                        config.shaper.watch(new File(parm));
+                        a++;
+                        log (config, Level.CONFIG, "Reading bandwidth limits from " + parm);
+                    } else if (opt.startsWith("-rate") || opt.startsWith("-srate")){ // bandwidth limits
+                        try {
+                            long rate = BandwidthShaper.parseRate(parm);
+                            if (config.shaper == null) config.shaper = new BandwidthShaper(0, 0);
+                            if (opt.startsWith("-rate")) {
+                                config.shaper.setLimits(rate, config.shaper.getSessionRate());
+                            } else {
+                                config.shaper.setLimits(config.shaper.getGlobalRate(), rate);
+                            }
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse rate "+parm+": "+nfe.getMessage());
+                        }
+                        a++;
+                    } else if (opt.startsWith("-p")){ // Port
+                        try { 
+                            port = Integer.parseInt(parm);
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse port "+parm);
+                            port = PORT;
+                        }
+                        log (config, Level.CONFIG, "Setting port to " + port);
+                        a++;
+                    } else if (opt.startsWith("-t")){ // Target Directory on receiver
+                        targetDir = new File(parm);
+                        a++;
+                        log (config, Level.CONFIG, "Setting target dir to " + targetDir.getAbsolutePath());
+                    } else if (opt.equals("-h")){ // Receiver Host
+                        host = parm;
+                        a++;
+                        log (config, Level.CONFIG, "Setting host to " + host);
+                    } else if (opt.startsWith("-i")){ // allowed IP addresses that can connect
+                        config.ipAddresses = parm.split(",");
+                        a++;
+                        log (config, Level.CONFIG, "Accepting connections from ip address ranges: " + Arrays.toString(config.ipAddresses));
+                    } else if (opt.startsWith("-l")){ // log level
+                        if (parm.startsWith("FINEST")){
+                            config.logLevel = Level.FINEST;
+                        } else if (parm.startsWith("FINER")){
+                            config.logLevel = Level.FINER;
+                        } else if (parm.startsWith("FINE")){
+                            config.logLevel = Level.FINE;
+                        } else if (parm.startsWith("CONFIG")){
+                            config.logLevel = Level.CONFIG;
+                        } else if (parm.startsWith("INFO")){
+                            config.logLevel = Level.INFO;
+                        } else if (parm.startsWith("WARNING")){
+                            config.logLevel = Level.WARNING;
+                        } else if (parm.startsWith("SEVERE")){
+                            config.logLevel = Level.SEVERE;
+                        }
+                        log (config, Level.CONFIG, "Setting log level to " + config.logLevel.getName());
+                        a++;
+                    } else if (opt.startsWith("-B") && "auto".equals(parm)){ // block size from link measurements
+                        config.autoBlocksize = true;
+                        a++;
+                        log (config, Level.CONFIG, "Choosing block size and socket buffers from link measurements");
+                    } else if (opt.startsWith("-B")){ // block size
+                        try { 
+                            config.blocksize = Integer.parseInt(parm);
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse block size "+parm);
+                            config.blocksize = BLOCKSIZE;
+                        }
+                        a++;
+                        log (config, Level.CONFIG, "Setting block size to " + config.blocksize);
+                    } else if (opt.startsWith("-Z")){ // compression mode (1:fast, 5:default, 9:high compression)
+                        try { 
+                            config.deflaterLevel = Integer.parseInt(parm);
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse deflater level "+parm);
+                            config.deflaterLevel = Deflater.DEFAULT_COMPRESSION;
+                        }
+                        switch (config.deflaterLevel){
+                            case 0: case 1: config.deflaterLevel = 1; break;
+                            case 2: case 3: case 4: case 5: config.deflaterLevel = 5; break;
+                            case 6: case 7: case 8:
+                            case 9: config.deflaterLevel = 9; break;
+                            default: config.deflaterLevel = 9; break;
+                        }
+                        a++;
+                        log (config, Level.CONFIG, "Setting compress level to " + config.deflaterLevel);
+                    } else if (opt.startsWith("-chunks")){ // chunk store for deduplication
+                        String[] store = parm.split(",");
+                        config.chunkDir = new File(store[0]);
+                        if (store.length > 1) {
+                            try {
+                                config.chunkStoreMax = parseSize(store[1]);
+                            } catch (NumberFormatException nfe){
+                                log(config, Level.SEVERE, "Could not parse chunk store size "+store[1]+": "+nfe.getMessage());
+                            }
+                        }
+                        a++;
+                        log (config, Level.CONFIG, "Using chunk store " + config.chunkDir.getAbsolutePath() + ", at most "
+                                + config.chunkStoreMax + " bytes");
+                    } else if (opt.startsWith("-key")){ // encryption with a pre-shared key
+                        try {
+                            config.presharedKey = Encryption.readKey(new File(parm));
+                            log (config, Level.CONFIG, "Encrypting with the key in " + parm);
+                        } catch (IOException ioe){
+                            // never fall back to clear text
+                            log(config, Level.SEVERE, "Could not read key", ioe);
+                            System.exit(1);
+                        }
+                        a++;
+                    } else if (opt.startsWith("-extract")){ // unpack an archive
+                        extractArchive = new File(parm);
+                        a++;
+                    } else if (opt.startsWith("-snap")){ // scan snapshot
+                        config.snapshotFile = new File(parm);
+                        a++;
+                        log (config, Level.CONFIG, "Using scan snapshot " + config.snapshotFile.getAbsolutePath());
+                    } else if (opt.startsWith("-mod")){ // modifyWindow
+                        try { 
+                            config.modifyWindow = Long.parseLong(parm);
+                        } catch (NumberFormatException nfe){
+                            log(config, Level.SEVERE, "Could not parse modify window option "+parm);
+                        }
+                        a++;
+                    } else if (opt.startsWith("-")){
+                        log (config, Level.WARNING, "Unknown option: " + opt);
+                        usage();
+                        System.exit(1);
+                    }
+                }
+            } else { // files to send
+                String f = null;
+                try {
+                    f = args[a++];
+                    if (useCygpaths) {
+                        f = cyg2win(f, config);
+                        log(config, Level.FINE, "Converted root to " + f);
+                    }
+                    if (!"".equals(f))
+                        sendRoots.add(new File(f).getCanonicalFile());
+                } catch (IOException ioe) {
+                    log (config, Level.SEVERE, "Could not create canonical name of " + f);
+                }
+            }
+        }
+        
+        log(config, Level.CONFIG, "This is version " + VERSION);
+        new Xfer2();
+        if (host.indexOf(',') >= 0 && (watchDebounce >= 0 || agentDir != null)){
+            log(config, Level.SEVERE, "-watch and -agent send to one host only");
+            System.exit(1);
+        }
+        if (config.presharedKey != null && config.ioThreads > 0 && sendRoots.size() == 0 && agentDir == null){
+            log(config, Level.SEVERE, "-key is not supported by the event driven receiver (-nio)");
+            System.exit(1);
+        }
+        if (config.archive && config.ioThreads > 0 && sendRoots.size() == 0 && agentDir == null){
+            log(config, Level.SEVERE, "-archive is not supported by the event driven receiver (-nio)");
+            System.exit(1);
+        }
+        if (config.verify && (host.indexOf(',') >= 0 || watchDebounce >= 0 || agentDir != null)){
+            log(config, Level.SEVERE, "-verify compares with one host only, without -watch and -agent");
+            System.exit(1);
+        }
+        
+        if (extractArchive != null){
+            try {
+                int files = TarArchive.extract(extractArchive, targetDir, config);
+                log(config, Level.INFO, "Extracted " + files + " files from " + extractArchive + " to "
+                        + targetDir.getAbsolutePath());
+            } catch (IOException ioe){
+                log(config, Level.SEVERE, "Could not extract " + extractArchive, ioe);
+                System.exit(1);
+            }
+
+        } else if (agentDir != null && sendRoots.size() == 0){
+            log(config, Level.INFO, "Starting as sender agent.");
+            final SenderAgent agent = new SenderAgent(agentDir, config);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    agent.shutdown();
+                    if (config.trace != null) config.trace.close();
+                }
+             });
+            agent.run();
+
+        } else if (agentDir != null){
+            log(config, Level.FINE, "Handing job to sender agent.");
+            if (!SenderAgent.submit(agentDir, host, port, sendRoots, config)) {
+                System.exit(1);
+            }
+
+        } else if (sendRoots.size() == 0){
+            log(config, Level.INFO, config.ioThreads > 0 ? "Starting in receiving mode (event driven)." : "Starting in receiving mode.");
+            final TransferServer server = new TransferServer(port, targetDir, config);
+            try {
+                server.start();
+            } catch (IOException ioe){
+                log(config, Level.SEVERE, "Could not start receiver", ioe);
+                System.exit(1);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    server.stop();
+                    if (config.trace != null) config.trace.close();
+                }
+             });
+
+        } else {
+            log(config, Level.FINE, "Starting in sending mode.");
+
+            if (watchDebounce >= 0) {
+                if (config.trace != null) {
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            config.trace.close();
+                        }
+                     });
+                }
+                new WatchSender(host, port, sendRoots, watchDebounce, config).run();
+                return;
+            }
+        
+            String[] hosts = host.split(",");
+            List<String> targets = new ArrayList<String>();
+            for (String h : hosts) {
+                targets.add(withPort(h, port));
+            }
+            if (targets.size() > 1 && !chain) {
+                boolean ok = new FanOutSender(targets, config).send(sendRoots);
+                if (config.trace != null) config.trace.close();
+                if (!ok) System.exit(1);
+                return;
+            }
+
+            Sender sender = new Sender(config);
+            if (config.verify) {
+                boolean ok = false;
+                try {
+                    ok = sender.transfer(Destination.host(targets.get(0)), Destination.port(targets.get(0)),
+                            sendRoots).isOk();
+                } catch (IOException ioe){
+                    log(config, Level.SEVERE, "", ioe);
+                }
+                if (config.trace != null) config.trace.close();
+                if (!ok) System.exit(1);
+                return;
+            }
+            if (targets.size() > 1) {
+                sender.setRelay(join(targets.subList(1, targets.size())));
+            }
+            sender.send(Destination.host(targets.get(0)), Destination.port(targets.get(0)), sendRoots);
+            if (config.trace != null) config.trace.close();
+        }
+    }
+}
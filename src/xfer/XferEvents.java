@@ -0,0 +1,90 @@
+package xfer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+* Java Flight Recorder events of xfer, category "Xfer".
+*
+* The events are only recorded when a recording enables them, e.g.
+* <pre>
+*   java -XX:StartFlightRecording:filename=xfer.jfr -jar xfer.jar ...
+* </pre>
+* Otherwise <tt>begin()</tt>/<tt>end()</tt> are no-ops, <tt>shouldCommit()</tt>
+* is false and the JIT removes the event objects, so the call sites fill
+* in fields only after checking <tt>shouldCommit()</tt>.
+*
+* @author amhlaobh@users.noreply.github.com
+*/
+final class XferEvents {
+
+    private XferEvents() {
+    }
+
+    /** One connection, from accept (or connect) until it is closed. */
+    @Name("xfer.Session")
+    @Label("Xfer Session")
+    @Category("Xfer")
+    @Description("A connection between sender and receiver")
+    @StackTrace(false)
+    static final class SessionEvent extends Event {
+        @Label("Side")
+        @Description("send or recv")
+        String side;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Files")
+        long files;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /** One file sent or received, from its announcement until the checksums were compared. */
+    @Name("xfer.File")
+    @Label("Xfer File")
+    @Category("Xfer")
+    @StackTrace(false)
+    static final class FileEvent extends Event {
+        @Label("Side")
+        @Description("send or recv")
+        String side;
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Checksum OK")
+        boolean checksumOk;
+    }
+
+    /** Compression or decompression of one block of a "-z" stream. */
+    @Name("xfer.Block")
+    @Label("Xfer Compression Block")
+    @Category("Xfer")
+    @StackTrace(false)
+    static final class BlockEvent extends Event {
+        @Label("Compress")
+        @Description("true: deflate, false: inflate")
+        boolean compress;
+
+        @Label("Raw Size")
+        @DataAmount
+        long rawSize;
+
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedSize;
+    }
+}